@@ -0,0 +1,196 @@
+package nl.esciencecenter.esight.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/* Copyright [2013] [Netherlands eScience Center]
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Command-line tool that compares two JMH result files, written with
+ * <code>-rf csv</code>, and reports the change per benchmark. A change is
+ * flagged as a regression or an improvement only when the confidence intervals
+ * reported by JMH for both runs do not overlap, so noise is not reported as a
+ * change.
+ * 
+ * Usage:
+ * 
+ * <pre>
+ * java nl.esciencecenter.esight.benchmarks.CompareRuns baseline.csv candidate.csv
+ * </pre>
+ * 
+ * The exit code is 1 if any regression was found, so this tool can be used in
+ * scripts.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+public class CompareRuns {
+    /** A single result row from a JMH csv file. */
+    private static class Result {
+        final double score;
+        final double error;
+        final String unit;
+
+        Result(double score, double error, String unit) {
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+        }
+
+        /**
+         * Throughput units (ops/time) are better when higher, all others
+         * (time/op, B/op) are better when lower.
+         */
+        boolean higherIsBetter() {
+            return unit.startsWith("ops/");
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: CompareRuns <baseline.csv> <candidate.csv>");
+            System.exit(2);
+        }
+
+        Map<String, Result> baseline = read(args[0]);
+        Map<String, Result> candidate = read(args[1]);
+
+        int regressions = 0;
+        System.out.println(String.format("%-70s %14s %14s %9s", "Benchmark",
+                "baseline", "candidate", "change"));
+
+        for (Map.Entry<String, Result> entry : baseline.entrySet()) {
+            Result before = entry.getValue();
+            Result after = candidate.get(entry.getKey());
+            if (after == null) {
+                System.out.println(String.format("%-70s %14.3f %14s", entry.getKey(), before.score, "missing"));
+                continue;
+            }
+
+            double change = (before.score == 0.0) ? 0.0 : (after.score - before.score) / before.score * 100.0;
+
+            String verdict = "";
+            boolean significant = Math.abs(after.score - before.score) > (nanToZero(before.error) + nanToZero(after.error));
+            if (significant) {
+                boolean better = (after.score > before.score) == before.higherIsBetter();
+                if (better) {
+                    verdict = "improvement";
+                } else {
+                    verdict = "REGRESSION";
+                    regressions++;
+                }
+            }
+
+            System.out.println(String.format("%-70s %14.3f %14.3f %+8.1f%% %s %s", entry.getKey(), before.score,
+                    after.score, change, before.unit, verdict));
+        }
+
+        if (regressions > 0) {
+            System.out.println(regressions + " regression(s) found.");
+            System.exit(1);
+        }
+    }
+
+    private static double nanToZero(double value) {
+        return Double.isNaN(value) ? 0.0 : value;
+    }
+
+    /**
+     * Reads a JMH csv result file into a map, keyed by benchmark name plus its
+     * parameters.
+     * 
+     * @param fileName
+     *            The file to read.
+     * @return The results in file order.
+     * @throws IOException
+     *             if the file could not be read.
+     */
+    private static Map<String, Result> read(String fileName) throws IOException {
+        Map<String, Result> results = new LinkedHashMap<String, Result>();
+
+        BufferedReader reader = new BufferedReader(new FileReader(fileName));
+        try {
+            List<String> header = split(reader.readLine());
+            int benchmarkIndex = header.indexOf("Benchmark");
+            int scoreIndex = header.indexOf("Score");
+            int unitIndex = header.indexOf("Unit");
+            int errorIndex = -1;
+            for (int i = 0; i < header.size(); i++) {
+                if (header.get(i).startsWith("Score Error")) {
+                    errorIndex = i;
+                }
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                List<String> fields = split(line);
+
+                StringBuilder key = new StringBuilder(fields.get(benchmarkIndex));
+                for (int i = 0; i < header.size(); i++) {
+                    if (header.get(i).startsWith("Param: ") && !fields.get(i).isEmpty()) {
+                        key.append(" ").append(header.get(i).substring(7)).append("=").append(fields.get(i));
+                    }
+                }
+
+                double error = (errorIndex < 0) ? Double.NaN : parse(fields.get(errorIndex));
+                results.put(key.toString(), new Result(parse(fields.get(scoreIndex)), error, fields.get(unitIndex)));
+            }
+        } finally {
+            reader.close();
+        }
+
+        return results;
+    }
+
+    private static double parse(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Splits a csv line into its (unquoted) fields.
+     */
+    private static List<String> split(String line) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                fields.add(current.toString());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+        fields.add(current.toString());
+
+        return fields;
+    }
+}
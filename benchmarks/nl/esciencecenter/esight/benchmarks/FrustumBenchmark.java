@@ -0,0 +1,114 @@
+package nl.esciencecenter.esight.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import nl.esciencecenter.esight.math.Frustum;
+import nl.esciencecenter.esight.math.MatF4;
+import nl.esciencecenter.esight.math.MatrixFMath;
+import nl.esciencecenter.esight.math.Point4;
+import nl.esciencecenter.esight.math.VecF4;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* Copyright [2013] [Netherlands eScience Center]
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * JMH benchmarks for {@link Frustum} culling, comparing one box at a time with
+ * the batch test. Scores are reported per batch.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrustumBenchmark {
+    /** The number of boxes tested per invocation. */
+    @Param({ "16", "1024", "65536" })
+    public int batchSize;
+
+    private MatF4 pmv;
+    private Frustum frustum;
+
+    private float[] centerX, centerY, centerZ, extentX, extentY, extentZ;
+    private boolean[] visible;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+
+        MatF4 p = MatrixFMath.perspective(45f, 1.5f, 0.1f, 100f);
+        MatF4 mv = MatrixFMath.lookAt(new Point4(3f, 2f, 10f, 1f), new Point4(
+                0f, 0f, 0f, 1f), new VecF4(0f, 1f, 0f, 0f));
+        pmv = p.mul(mv);
+        frustum = new Frustum(pmv);
+
+        centerX = new float[batchSize];
+        centerY = new float[batchSize];
+        centerZ = new float[batchSize];
+        extentX = new float[batchSize];
+        extentY = new float[batchSize];
+        extentZ = new float[batchSize];
+        visible = new boolean[batchSize];
+
+        for (int i = 0; i < batchSize; i++) {
+            centerX[i] = random.nextFloat() * 60f - 30f;
+            centerY[i] = random.nextFloat() * 60f - 30f;
+            centerZ[i] = random.nextFloat() * 120f - 100f;
+            extentX[i] = random.nextFloat();
+            extentY[i] = random.nextFloat();
+            extentZ[i] = random.nextFloat();
+        }
+    }
+
+    @Benchmark
+    public Frustum extractPlanes() {
+        return frustum.set(pmv);
+    }
+
+    @Benchmark
+    public int classifyBoxes() {
+        int visibleCount = 0;
+        for (int i = 0; i < batchSize; i++) {
+            if (frustum.classifyBox(centerX[i] - extentX[i], centerY[i]
+                    - extentY[i], centerZ[i] - extentZ[i], centerX[i]
+                    + extentX[i], centerY[i] + extentY[i], centerZ[i]
+                    + extentZ[i]) != Frustum.OUTSIDE) {
+                visibleCount++;
+            }
+        }
+        return visibleCount;
+    }
+
+    @Benchmark
+    public int intersectsBoxes() {
+        return frustum.intersectsBoxes(centerX, centerY, centerZ, extentX,
+                extentY, extentZ, 0, batchSize, visible);
+    }
+}
@@ -0,0 +1,129 @@
+package nl.esciencecenter.esight.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import nl.esciencecenter.esight.exceptions.InverseNotAvailableException;
+import nl.esciencecenter.esight.math.MatF3;
+import nl.esciencecenter.esight.math.MatF4;
+import nl.esciencecenter.esight.math.MatrixFMath;
+import nl.esciencecenter.esight.math.Point4;
+import nl.esciencecenter.esight.math.VecF4;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* Copyright [2013] [Netherlands eScience Center]
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * JMH benchmarks for the single-matrix operations in {@link MatF4} and
+ * {@link MatrixFMath}. Every operation is measured both in its allocating form
+ * and, where available, in its in-place form, so the cost of the garbage can be
+ * read from the GC profiler output (run with <code>-prof gc</code>).
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MatrixFMathBenchmark {
+    private MatF4 a, b, ab, dest;
+    private MatF3 normalDest;
+    private VecF4 eye, at, up;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+
+        a = MatrixFMath.rotate(random.nextFloat() * 360f, 1f, 2f, 3f).mul(
+                MatrixFMath.translate(random.nextFloat(), random.nextFloat(),
+                        random.nextFloat()));
+        b = MatrixFMath.perspective(45f, 1.5f, 0.1f, 3000f);
+        ab = b.mul(a);
+        dest = new MatF4();
+        normalDest = new MatF3();
+
+        eye = new Point4(random.nextFloat(), random.nextFloat(), 5f, 1f);
+        at = new Point4(0f, 0f, 0f, 1f);
+        up = new VecF4(0f, 1f, 0f, 0f);
+    }
+
+    @Benchmark
+    public MatF4 mul() {
+        return a.mul(b);
+    }
+
+    @Benchmark
+    public MatF4 mulInto() {
+        return a.mulInto(b, dest);
+    }
+
+    @Benchmark
+    public MatF4 inverse() throws InverseNotAvailableException {
+        return MatrixFMath.inverse(a);
+    }
+
+    @Benchmark
+    public MatF3 normalMatrix() {
+        return MatrixFMath.getNormalMatrix(a);
+    }
+
+    @Benchmark
+    public MatF4 inverseInto() throws InverseNotAvailableException {
+        return MatrixFMath.inverse(a, dest);
+    }
+
+    @Benchmark
+    public MatF4 inverseProjectiveInto() throws InverseNotAvailableException {
+        return MatrixFMath.inverse(ab, dest);
+    }
+
+    @Benchmark
+    public MatF3 normalMatrixInto() {
+        return MatrixFMath.getNormalMatrix(a, normalDest);
+    }
+
+    @Benchmark
+    public MatF4 lookAt() {
+        return MatrixFMath.lookAt(eye, at, up);
+    }
+
+    @Benchmark
+    public MatF4 setLookAt() {
+        return dest.setLookAt(eye, at, up);
+    }
+
+    @Benchmark
+    public MatF4 rotate() {
+        return MatrixFMath.rotate(33f, 1f, 2f, 3f);
+    }
+
+    @Benchmark
+    public MatF4 setRotate() {
+        return dest.setRotate(33f, 1f, 2f, 3f);
+    }
+}
@@ -0,0 +1,110 @@
+package nl.esciencecenter.esight.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import nl.esciencecenter.esight.math.VecF3;
+import nl.esciencecenter.esight.scenegraph.OctreeElement;
+import nl.esciencecenter.esight.scenegraph.OctreeNode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* Copyright [2013] [Netherlands eScience Center]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * JMH benchmarks for building an {@link OctreeNode} tree, comparing serial
+ * insertion with the fork/join build on pools of increasing size. The speedup
+ * for a number of cores is the score of serialBuild divided by the score of
+ * parallelBuild with that many threads. Scores are reported per build.
+ *
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class OctreeBuildBenchmark {
+    /** The number of elements added per build. */
+    @Param({ "1000000" })
+    public int elementCount;
+
+    /** The number of threads in the fork/join pool. */
+    @Param({ "1", "2", "4", "8" })
+    public int threads;
+
+    private static final int MAX_ELEMENTS = 10;
+    private static final float EDGES = 800f;
+
+    private ForkJoinPool pool;
+    private List<OctreeElement> elements;
+    private VecF3 corner;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+
+        pool = new ForkJoinPool(threads);
+        corner = new VecF3(-.5f * EDGES, -.5f * EDGES, -.5f * EDGES);
+
+        // Clustered around the center, like a gas cloud
+        elements = new ArrayList<OctreeElement>(elementCount);
+        for (int i = 0; i < elementCount; i++) {
+            elements.add(new OctreeElement(new VecF3(
+                    (float) random.nextGaussian() * 80f,
+                    (float) random.nextGaussian() * 80f,
+                    (float) random.nextGaussian() * 80f)));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public OctreeNode serialBuild() {
+        OctreeNode root = new OctreeNode(null, MAX_ELEMENTS, 0, corner, EDGES);
+        for (OctreeElement element : elements) {
+            root.addElement(element);
+        }
+        root.finalizeAdding();
+        return root;
+    }
+
+    @Benchmark
+    public OctreeNode parallelBuild() {
+        OctreeNode root = new OctreeNode(null, MAX_ELEMENTS, 0, corner, EDGES);
+        root.addElements(pool, elements);
+        root.finalizeAdding();
+        return root;
+    }
+}
@@ -0,0 +1,209 @@
+package nl.esciencecenter.esight.benchmarks;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import nl.esciencecenter.esight.math.MatF4;
+import nl.esciencecenter.esight.math.MatrixFMath;
+import nl.esciencecenter.esight.math.VecF3;
+import nl.esciencecenter.esight.math.VecF4;
+import nl.esciencecenter.esight.math.VectorFMath;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/* Copyright [2013] [Netherlands eScience Center]
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * JMH benchmarks for the batch operations on vectors, parameterized by batch
+ * size so the scaling behaviour of {@link VectorFMath} and of the per-vector
+ * {@link MatF4} product becomes visible. Scores are reported per batch;
+ * multiply them by the batch size to compare throughput per vector.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class VectorFMathBenchmark {
+    /** The number of vectors processed per invocation. */
+    @Param({ "16", "1024", "65536" })
+    public int batchSize;
+
+    private VecF3[] vec3s;
+    private VecF4[] vec4s;
+    private List<VecF4> vec4List;
+    private VecF4 scratch;
+    private MatF4 matrix;
+
+    private float[] points, transformed;
+    private float[] xs, ys, zs, destXs, destYs, destZs;
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+
+        vec3s = new VecF3[batchSize];
+        vec4s = new VecF4[batchSize];
+        vec4List = new ArrayList<VecF4>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            vec3s[i] = new VecF3(random.nextFloat(), random.nextFloat(),
+                    random.nextFloat());
+            vec4s[i] = new VecF4(vec3s[i], 1f);
+            vec4List.add(vec4s[i]);
+        }
+
+        points = new float[batchSize * 4];
+        transformed = new float[batchSize * 4];
+        xs = new float[batchSize];
+        ys = new float[batchSize];
+        zs = new float[batchSize];
+        destXs = new float[batchSize];
+        destYs = new float[batchSize];
+        destZs = new float[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            System.arraycopy(vec4s[i].asArray(), 0, points, i * 4, 4);
+            xs[i] = vec3s[i].get(0);
+            ys[i] = vec3s[i].get(1);
+            zs[i] = vec3s[i].get(2);
+        }
+        pool = new ForkJoinPool();
+
+        scratch = new VecF4();
+        matrix = MatrixFMath.rotate(33f, 1f, 2f, 3f).mul(
+                MatrixFMath.translate(1f, 2f, 3f));
+    }
+
+    /**
+     * Normalizes the whole batch.
+     * 
+     * @param bh
+     *            The JMH blackhole, to prevent dead code elimination.
+     */
+    @Benchmark
+    public void normalize(Blackhole bh) {
+        for (int i = 0; i < batchSize; i++) {
+            bh.consume(VectorFMath.normalize(vec3s[i]));
+        }
+    }
+
+    /**
+     * Converts the whole batch to a FloatBuffer.
+     * 
+     * @return the FloatBuffer.
+     */
+    @Benchmark
+    public FloatBuffer vec4ListToBuffer() {
+        return VectorFMath.vec4ListToBuffer(vec4List);
+    }
+
+    /**
+     * Converts the whole batch to a FloatBuffer.
+     * 
+     * @return the FloatBuffer.
+     */
+    @Benchmark
+    public FloatBuffer toBuffer() {
+        return VectorFMath.toBuffer(vec4s);
+    }
+
+    /**
+     * Transforms the whole batch, one new vector per point.
+     * 
+     * @param bh
+     *            The JMH blackhole, to prevent dead code elimination.
+     */
+    @Benchmark
+    public void transform(Blackhole bh) {
+        for (int i = 0; i < batchSize; i++) {
+            bh.consume(matrix.mul(vec4s[i]));
+        }
+    }
+
+    /**
+     * Transforms the whole batch in-place into a single scratch vector.
+     * 
+     * @param bh
+     *            The JMH blackhole, to prevent dead code elimination.
+     */
+    @Benchmark
+    public void transformInto(Blackhole bh) {
+        for (int i = 0; i < batchSize; i++) {
+            bh.consume(matrix.mulInto(vec4s[i], scratch));
+        }
+    }
+
+    /**
+     * Transforms the whole batch as an interleaved x,y,z,w array.
+     * 
+     * @return the transformed values.
+     */
+    @Benchmark
+    public float[] transformBatch() {
+        MatrixFMath.transformPoints(matrix, points, 0, transformed, 0,
+                batchSize);
+        return transformed;
+    }
+
+    /**
+     * Transforms the whole batch as a structure of arrays.
+     * 
+     * @return the transformed x values.
+     */
+    @Benchmark
+    public float[] transformBatchSoA() {
+        MatrixFMath.transformPoints(matrix, xs, ys, zs, destXs, destYs,
+                destZs, 0, batchSize);
+        return destXs;
+    }
+
+    /**
+     * Transforms the whole batch as an interleaved x,y,z,w array, split over
+     * all cores.
+     * 
+     * @return the transformed values.
+     */
+    @Benchmark
+    public float[] transformBatchParallel() {
+        MatrixFMath.transformPoints(pool, matrix, points, transformed,
+                batchSize);
+        return transformed;
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+}
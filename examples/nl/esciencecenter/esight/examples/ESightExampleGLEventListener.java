@@ -104,6 +104,11 @@ public class ESightExampleGLEventListener extends ESightGLEventListener {
     final Point4 at = new Point4(0.0f, 0.0f, 0.0f, 1.0f);
     final VecF4 up = new VecF4(0.0f, 1.0f, 0.0f, 0.0f);
 
+    // Matrices that are filled in-place every frame. Reusing them means the
+    // display loop does not generate garbage for the Java Garbage Collector.
+    private final MatF4 modelViewMatrix = new MatF4();
+    private final MatF4 scratchMatrix = new MatF4();
+
     /**
      * Basic constructor for ESightExampleGLEventListener.
      */
@@ -257,21 +262,26 @@ public class ESightExampleGLEventListener extends ESightGLEventListener {
         gl.glClear(GL.GL_COLOR_BUFFER_BIT | GL.GL_DEPTH_BUFFER_BIT);
 
         // Construct a modelview matrix out of camera viewpoint and angle.
-        MatF4 modelViewMatrix = MatrixFMath.lookAt(eye, at, up);
+        modelViewMatrix.setLookAt(eye, at, up);
 
         // Translate the camera backwards according to the inputhandler's view
-        // distance setting.
-        modelViewMatrix = modelViewMatrix.mul(MatrixFMath.translate(new VecF3(
-                0f, 0f, inputHandler.getViewDist())));
+        // distance setting. The mulInto methods multiply in-place, without
+        // creating new matrices.
+        modelViewMatrix.mulInto(
+                scratchMatrix.setTranslate(0f, 0f, inputHandler.getViewDist()),
+                modelViewMatrix);
 
         // Rotate tha camera according to the rotation angles defined in the
         // inputhandler.
-        modelViewMatrix = modelViewMatrix.mul(MatrixFMath
-                .rotationX(inputHandler.getRotation().get(0)));
-        modelViewMatrix = modelViewMatrix.mul(MatrixFMath
-                .rotationY(inputHandler.getRotation().get(1)));
-        modelViewMatrix = modelViewMatrix.mul(MatrixFMath
-                .rotationZ(inputHandler.getRotation().get(2)));
+        modelViewMatrix.mulInto(
+                scratchMatrix.setRotationX(inputHandler.getRotation().get(0)),
+                modelViewMatrix);
+        modelViewMatrix.mulInto(
+                scratchMatrix.setRotationY(inputHandler.getRotation().get(1)),
+                modelViewMatrix);
+        modelViewMatrix.mulInto(
+                scratchMatrix.setRotationZ(inputHandler.getRotation().get(2)),
+                modelViewMatrix);
 
         // Render the scene with these modelview settings. In this case, the end
         // result of this action will be that the AxesFBO has been filled with
@@ -11,9 +11,8 @@ import javax.media.opengl.GLException;
 import nl.esciencecenter.esight.input.InputHandler;
 import nl.esciencecenter.esight.math.MatF4;
 import nl.esciencecenter.esight.math.MatrixFMath;
-import nl.esciencecenter.esight.math.Point4;
-import nl.esciencecenter.esight.math.VecF3;
-import nl.esciencecenter.esight.math.VecF4;
+import nl.esciencecenter.esight.math.QuatF;
+import nl.esciencecenter.esight.math.VecD3;
 import nl.esciencecenter.esight.shaders.ShaderProgramLoader;
 
 import com.jogamp.graph.font.Font;
@@ -85,6 +84,17 @@ public abstract class ESightGLEventListener implements GLEventListener {
      */
     protected InputHandler              inputHandler;
 
+    /**
+     * The world space position the view (as generated by lookAt) orbits
+     * around. Used as the origin for camera-relative rendering, see
+     * SGNode.draw(GL3, ShaderProgram, MatF4, VecD3).
+     */
+    protected final VecD3               viewOrigin    = new VecD3();
+
+    /** Scratch storage used by the lookAt helper function. */
+    private final MatF4                 lookAtScratch = new MatF4();
+    private final QuatF                 orbit         = new QuatF();
+
     /**
      * Creates a new GLEventListener
      */
@@ -221,30 +231,43 @@ public abstract class ESightGLEventListener implements GLEventListener {
      *         at coordinates (0,0,0).
      */
     public MatF4 lookAt() {
-        Point4 eye = new Point4(
-                (float) (radius * Math.sin(ftheta) * Math.cos(phi)),
-                (float) (radius * Math.sin(ftheta) * Math.sin(phi)),
-                (float) (radius * Math.cos(ftheta)), 1.0f);
-        Point4 at = new Point4(0.0f, 0.0f, 0.0f, 1.0f);
-        VecF4 up = new VecF4(0.0f, 1.0f, 0.0f, 0.0f);
-
-        MatF4 mv = MatrixFMath.lookAt(eye, at, up);
-
-        if (inputHandler != null) {
-            mv = mv.mul(MatrixFMath.translate(new VecF3(0f, 0f,
-                    inputViewDistance)));
-            mv = mv.mul(MatrixFMath.rotationX(inputRotationX));
-            mv = mv.mul(MatrixFMath.rotationY(inputRotationY));
+        return lookAt(new MatF4());
+    }
+
+    /**
+     * Allocation-free version of {@link #lookAt()}, that stores the resulting
+     * ModelView Matrix in the given matrix.
+     * 
+     * @param dest
+     *            The matrix to store the result in.
+     * @return
+     *         The destination matrix, now defining a rotated and translated
+     *         view at coordinates (0,0,0).
+     */
+    public MatF4 lookAt(MatF4 dest) {
+        float eyeX = (float) (radius * Math.sin(ftheta) * Math.cos(phi));
+        float eyeY = (float) (radius * Math.sin(ftheta) * Math.sin(phi));
+        float eyeZ = (float) (radius * Math.cos(ftheta));
+
+        dest.setLookAt(eyeX, eyeY, eyeZ, 0f, 0f, 0f, 0f, 1f, 0f);
+
+        float viewDist, rotationX, rotationY;
+        if (inputHandler == null) {
+            viewDist = inputViewDistance;
+            rotationX = inputRotationX;
+            rotationY = inputRotationY;
         } else {
-            mv = mv.mul(MatrixFMath.translate(new VecF3(0f, 0f, inputHandler
-                    .getViewDist())));
-            mv = mv.mul(MatrixFMath
-                    .rotationX(inputHandler.getRotation().get(0)));
-            mv = mv.mul(MatrixFMath
-                    .rotationY(inputHandler.getRotation().get(1)));
+            viewDist = inputHandler.getViewDist();
+            rotationX = inputHandler.getRotation().get(0);
+            rotationY = inputHandler.getRotation().get(1);
         }
 
-        return mv;
+        // translate(0,0,viewDist) * rotationX * rotationY is the orbit
+        // rotation matrix with viewDist in its translation column.
+        orbit.setRotationXYZ(rotationX, rotationY, 0f).toMatF4(lookAtScratch);
+        lookAtScratch.set(11, viewDist);
+
+        return dest.mulInto(lookAtScratch, dest);
     }
 
     /**
@@ -364,6 +387,27 @@ public abstract class ESightGLEventListener implements GLEventListener {
         this.inputRotationY = inputRotationY;
     }
 
+    /**
+     * Getter for the world space position the view orbits around.
+     * 
+     * @return the viewOrigin
+     */
+    public VecD3 getViewOrigin() {
+        return viewOrigin;
+    }
+
+    /**
+     * Setter for the world space position the view orbits around. Moving the
+     * view origin far away does not cost precision when the scene is drawn
+     * camera-relative.
+     * 
+     * @param viewOrigin
+     *            the viewOrigin to set
+     */
+    public void setViewOrigin(VecD3 viewOrigin) {
+        this.viewOrigin.set(viewOrigin);
+    }
+
     /**
      * Variable used (among others) to define the ModelView matrix in the lookAt
      * helper function if no inputHandler was specified when constructing this
@@ -0,0 +1,369 @@
+package nl.esciencecenter.esight.datastructures;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.media.opengl.GL3;
+
+import nl.esciencecenter.esight.shaders.ShaderProgram;
+
+import com.jogamp.common.nio.Buffers;
+
+/* Copyright [2013] [Netherlands eScience Center]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Sub-allocating buffer arena, for scenes with many small models. Instead of
+ * a VBO of its own, every model reserves a {@link Range} of vertices inside
+ * one of a few large pages. Each page is a single {@link VBO}, holding the
+ * vertices of all its ranges interleaved in the format of this arena, so
+ * models that share a page are drawn without binding another buffer in
+ * between, and all ranges of a page can be drawn with a single
+ * glMultiDrawArrays call (see {@link #draw(GL3, ShaderProgram, int)}).
+ *
+ * Ranges are written through mapped buffer ranges. Ranges that are freed are
+ * merged with their free neighbours and reused by later allocations, pages
+ * are only added when no free range is large enough.
+ *
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+public class BufferArena {
+    /** The default number of vertices per page. */
+    public static final int DEFAULT_PAGE_VERTICES = 65536;
+
+    /** A range of vertices, reserved inside one of the pages of an arena. */
+    public static class Range {
+        private final Page page;
+        private final int first;
+        private final int count;
+
+        private Range(Page page, int first, int count) {
+            this.page = page;
+            this.first = first;
+            this.count = count;
+        }
+
+        /**
+         * Getter for the VBO of the page holding this range, shared with the
+         * other ranges in that page.
+         *
+         * @return the VBO holding this range.
+         */
+        public VBO getVBO() {
+            return page.vbo;
+        }
+
+        /**
+         * Getter for the index of the first vertex of this range, to pass to
+         * glDrawArrays.
+         *
+         * @return the first vertex of this range.
+         */
+        public int getFirst() {
+            return first;
+        }
+
+        /**
+         * Getter for the number of vertices in this range.
+         *
+         * @return the number of vertices.
+         */
+        public int getCount() {
+            return count;
+        }
+    }
+
+    /** A single large buffer, with its used and free ranges. */
+    private static class Page {
+        final VBO vbo;
+
+        /** The used and free ranges, first vertex to number of vertices. */
+        final TreeMap<Integer, Integer> used = new TreeMap<Integer, Integer>();
+        final TreeMap<Integer, Integer> free = new TreeMap<Integer, Integer>();
+
+        /**
+         * The used ranges as passed to glMultiDrawArrays, only rebuilt when a
+         * range is allocated or freed.
+         */
+        int[] firsts = new int[16];
+        int[] counts = new int[16];
+        int drawCount = 0;
+
+        Page(VBO vbo, int capacity) {
+            this.vbo = vbo;
+            free.put(0, capacity);
+        }
+
+        void updateDraws() {
+            drawCount = used.size();
+            if (drawCount > firsts.length) {
+                int length = Math.max(drawCount, firsts.length * 2);
+                firsts = new int[length];
+                counts = new int[length];
+            }
+
+            int i = 0;
+            for (Map.Entry<Integer, Integer> entry : used.entrySet()) {
+                firsts[i] = entry.getKey();
+                counts[i] = entry.getValue();
+                i++;
+            }
+        }
+    }
+
+    private final int pageVertices;
+    private final String[] names;
+    private final int[] vectorSizes;
+
+    /** The byte offset of each attribute within a vertex. */
+    private final int[] offsets;
+    private final int stride;
+
+    private final ArrayList<Page> pages;
+    private int usedVertices;
+
+    /**
+     * Creates a new, empty, arena. Pages are created on the first
+     * allocations that need them.
+     *
+     * @param pageVertices
+     *            The number of vertices per page. Larger allocations get a
+     *            page of their own.
+     * @param names
+     *            The GLSL names of the (float) attributes of a vertex.
+     * @param vectorSizes
+     *            The size (number of floats) of each attribute.
+     */
+    public BufferArena(int pageVertices, String[] names, int[] vectorSizes) {
+        if (names.length != vectorSizes.length) {
+            throw new IllegalArgumentException(
+                    "Every attribute needs a name and a vector size.");
+        }
+        this.pageVertices = pageVertices;
+        this.names = names.clone();
+        this.vectorSizes = vectorSizes.clone();
+
+        offsets = new int[vectorSizes.length];
+        int vertexSize = 0;
+        for (int i = 0; i < vectorSizes.length; i++) {
+            offsets[i] = vertexSize;
+            vertexSize += vectorSizes[i] * Buffers.SIZEOF_FLOAT;
+        }
+        stride = vertexSize;
+
+        pages = new ArrayList<Page>();
+        usedVertices = 0;
+    }
+
+    /**
+     * Reserves a range of vertices and fills it with the given data.
+     *
+     * @param gl
+     *            The global openGL instance.
+     * @param count
+     *            The number of vertices to reserve.
+     * @param data
+     *            The (float) attributes to fill the range with, matched to
+     *            the attributes of this arena by name. Attributes of the
+     *            arena that are missing are filled with zeros.
+     * @return The reserved range.
+     */
+    public Range allocate(GL3 gl, int count, GLSLAttrib... data) {
+        if (count < 1) {
+            throw new IllegalArgumentException(
+                    "A range should hold at least one vertex.");
+        }
+
+        Range range = null;
+        for (int i = 0; i < pages.size() && range == null; i++) {
+            range = take(pages.get(i), count);
+        }
+        if (range == null) {
+            range = take(newPage(gl, Math.max(pageVertices, count)), count);
+        }
+        usedVertices += count;
+
+        write(gl, range, data);
+
+        return range;
+    }
+
+    private Page newPage(GL3 gl, int capacity) {
+        // All attributes share the same (empty) buffer, which makes them
+        // interleaved. The storage itself is written through map().
+        ByteBuffer interleaved = Buffers.newDirectByteBuffer(0);
+        GLSLAttrib[] attribs = new GLSLAttrib[names.length];
+        for (int i = 0; i < names.length; i++) {
+            attribs[i] = new GLSLAttrib(interleaved, names[i], vectorSizes[i],
+                    GL3.GL_FLOAT, false, stride, offsets[i]);
+        }
+
+        VBO vbo = new VBO(gl, GL3.GL_DYNAMIC_DRAW, attribs);
+        vbo.allocate(gl, capacity * stride);
+
+        Page page = new Page(vbo, capacity);
+        pages.add(page);
+        return page;
+    }
+
+    /** First fit, takes the range from the start of a free range. */
+    private Range take(Page page, int count) {
+        for (Map.Entry<Integer, Integer> entry : page.free.entrySet()) {
+            if (entry.getValue() >= count) {
+                int first = entry.getKey();
+                int left = entry.getValue() - count;
+
+                page.free.remove(first);
+                if (left > 0) {
+                    page.free.put(first + count, left);
+                }
+                page.used.put(first, count);
+                page.updateDraws();
+
+                return new Range(page, first, count);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Overwrites the vertices of a range with new data.
+     *
+     * @param gl
+     *            The global openGL instance.
+     * @param range
+     *            The range to write to.
+     * @param data
+     *            The (float) attributes to fill the range with, @see
+     *            #allocate(GL3, int, GLSLAttrib...)
+     */
+    public void write(GL3 gl, Range range, GLSLAttrib... data) {
+        FloatBuffer[] sources = new FloatBuffer[names.length];
+        for (GLSLAttrib attrib : data) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(attrib.name)) {
+                    sources[i] = (FloatBuffer) attrib.buffer;
+                }
+            }
+        }
+
+        ByteBuffer mapped = range.page.vbo.map(gl, range.first * stride,
+                range.count * stride);
+        for (int v = 0; v < range.count; v++) {
+            for (int i = 0; i < names.length; i++) {
+                int target = v * stride + offsets[i];
+                for (int c = 0; c < vectorSizes[i]; c++) {
+                    int index = v * vectorSizes[i] + c;
+                    float value = (sources[i] != null && index < sources[i]
+                            .capacity()) ? sources[i].get(index) : 0f;
+                    mapped.putFloat(target + c * Buffers.SIZEOF_FLOAT, value);
+                }
+            }
+        }
+        range.page.vbo.unmap(gl);
+    }
+
+    /**
+     * Returns a range to the free list of its page, merged with the free
+     * ranges next to it. The range must not be used afterwards.
+     *
+     * @param range
+     *            The range to free.
+     */
+    public void free(Range range) {
+        Page page = range.page;
+        if (page.used.remove(range.first) == null) {
+            return;
+        }
+        page.updateDraws();
+        usedVertices -= range.count;
+
+        int first = range.first;
+        int count = range.count;
+
+        Map.Entry<Integer, Integer> before = page.free.lowerEntry(first);
+        if (before != null && before.getKey() + before.getValue() == first) {
+            page.free.remove(before.getKey());
+            first = before.getKey();
+            count += before.getValue();
+        }
+        Integer after = page.free.remove(first + count);
+        if (after != null) {
+            count += after;
+        }
+
+        page.free.put(first, count);
+    }
+
+    /**
+     * Draws every range in this arena, with one glMultiDrawArrays call per
+     * page.
+     *
+     * @param gl
+     *            The global openGL instance.
+     * @param program
+     *            The shader program to draw with, already in use.
+     * @param mode
+     *            The OpenGL primitive, for example GL_TRIANGLES.
+     */
+    public void draw(GL3 gl, ShaderProgram program, int mode) {
+        for (int i = 0; i < pages.size(); i++) {
+            Page page = pages.get(i);
+            if (page.drawCount == 0) {
+                continue;
+            }
+
+            page.vbo.bind(gl);
+            program.linkAttribs(gl, page.vbo);
+            gl.glMultiDrawArrays(mode, page.firsts, 0, page.counts, 0,
+                    page.drawCount);
+        }
+    }
+
+    /**
+     * Getter for the number of pages (buffers) in this arena.
+     *
+     * @return the number of pages.
+     */
+    public int getPageCount() {
+        return pages.size();
+    }
+
+    /**
+     * Getter for the number of vertices in use.
+     *
+     * @return the number of reserved vertices.
+     */
+    public int getUsedVertices() {
+        return usedVertices;
+    }
+
+    /**
+     * Deletes all pages of this arena. All of its ranges become invalid.
+     *
+     * @param gl
+     *            The global openGL instance.
+     */
+    public void delete(GL3 gl) {
+        for (Page page : pages) {
+            page.vbo.delete(gl);
+        }
+        pages.clear();
+        usedVertices = 0;
+    }
+}
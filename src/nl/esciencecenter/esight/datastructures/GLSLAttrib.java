@@ -2,6 +2,10 @@ package nl.esciencecenter.esight.datastructures;
 
 import java.nio.Buffer;
 
+import javax.media.opengl.GL3;
+
+import com.jogamp.common.nio.Buffers;
+
 /* Copyright [2013] [Netherlands eScience Center]
  * 
  * Licensed under the Apache License, Version 2.0 (the "License");
@@ -22,6 +26,16 @@ import java.nio.Buffer;
  * sent to the GPU. In GLSL shaders, these attributes are referred to by the
  * keyword "in".
  * 
+ * By default an attribute holds tightly packed float vectors, stored in a
+ * block of its own. Smaller vertices can be described with the full
+ * constructor: normalized byte or short components (colors, {@link
+ * nl.esciencecenter.esight.math.VectorS} data), half floats (see
+ * {@link #toHalfFloat(float)}) or packed 10-10-10-2 normals (see
+ * {@link #packNormal(float, float, float)}). Attributes that share the same
+ * buffer object are interleaved: the buffer is uploaded once, and each
+ * attribute reads its components at its own offset within every vertex of
+ * stride bytes.
+ * 
  * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
  * 
  */
@@ -35,6 +49,15 @@ public class GLSLAttrib {
     public int numVectors;
     public int vectorSize;
 
+    /** The OpenGL type of the components, GL_FLOAT by default. */
+    public int type;
+    /** Whether integer components are mapped to [0, 1] or [-1, 1]. */
+    public boolean normalized;
+    /** The number of bytes from one vector to the next, 0 if packed. */
+    public int stride;
+    /** The byte offset of the first vector within the buffer. */
+    public int offset;
+
     /**
      * Basic constructor for GLSLAttrib.
      * 
@@ -52,9 +75,183 @@ public class GLSLAttrib {
      *            The size (number of places) per vector.
      */
     public GLSLAttrib(Buffer buffer, String name, int numVectors, int vectorSize) {
+        this(buffer, name, vectorSize, GL3.GL_FLOAT, false, 0, 0);
+        this.numVectors = numVectors;
+    }
+
+    /**
+     * Constructor for GLSLAttribs of any component type, possibly interleaved
+     * with other attributes in the same buffer. The number of vectors is
+     * derived from the size of the buffer at construction, @see
+     * #getVectorByteSize()
+     * 
+     * @param buffer
+     *            The buffer to be associated with this attribute. Pass the
+     *            same buffer to all attributes interleaved in it.
+     * @param name
+     *            The GLSL name for this attribute, must correspond to the "in"
+     *            variable in your GLSL shader.
+     * @param vectorSize
+     *            The size (number of components) per vector, 4 for
+     *            GL_INT_2_10_10_10_REV.
+     * @param type
+     *            The OpenGL type of the components, for example GL_FLOAT,
+     *            GL_HALF_FLOAT, GL_UNSIGNED_BYTE, GL_SHORT or
+     *            GL_INT_2_10_10_10_REV.
+     * @param normalized
+     *            Whether integer components are mapped to [0, 1] (unsigned)
+     *            or [-1, 1] (signed) in the shader, instead of converted to
+     *            float as they are.
+     * @param stride
+     *            The number of bytes from the start of one vertex to the
+     *            next, or 0 if the vectors are tightly packed.
+     * @param offset
+     *            The byte offset of this attribute within a vertex.
+     */
+    public GLSLAttrib(Buffer buffer, String name, int vectorSize, int type,
+            boolean normalized, int stride, int offset) {
         this.buffer = buffer;
         this.name = name;
-        this.numVectors = numVectors;
         this.vectorSize = vectorSize;
+        this.type = type;
+        this.normalized = normalized;
+        this.stride = stride;
+        this.offset = offset;
+
+        int vectorBytes = getVectorByteSize();
+        int step = (stride != 0) ? stride : vectorBytes;
+        int byteSize = getByteSize();
+        if (byteSize >= offset + vectorBytes) {
+            this.numVectors = (byteSize - offset - vectorBytes) / step + 1;
+        } else {
+            this.numVectors = 0;
+        }
+    }
+
+    /**
+     * Getter for the size of a single vector of this attribute.
+     * 
+     * @return the size of a vector, in bytes.
+     */
+    public int getVectorByteSize() {
+        if (type == GL3.GL_INT_2_10_10_10_REV) {
+            // All components packed into a single int
+            return 4;
+        } else if (type == GL3.GL_BYTE || type == GL3.GL_UNSIGNED_BYTE) {
+            return vectorSize;
+        } else if (type == GL3.GL_SHORT || type == GL3.GL_UNSIGNED_SHORT
+                || type == GL3.GL_HALF_FLOAT) {
+            return vectorSize * SIZE_SHORT;
+        }
+        return vectorSize * SIZE_FLOAT;
+    }
+
+    /**
+     * Getter for the size of this attribute's buffer.
+     * 
+     * @return the size of the buffer, in bytes.
+     */
+    public int getByteSize() {
+        return buffer.capacity() * Buffers.sizeOfBufferElem(buffer);
+    }
+
+    /**
+     * Computes where the attributes are stored when uploaded one after the
+     * other into a single array buffer. Every distinct buffer is stored once,
+     * in order of appearance, so interleaved attributes share a start.
+     * 
+     * @param attribs
+     *            The attributes, in the order they are uploaded.
+     * @return The byte start of the buffer of each attribute, followed by the
+     *         total size of all buffers.
+     */
+    public static int[] getStarts(GLSLAttrib... attribs) {
+        int[] starts = new int[attribs.length + 1];
+        int nextStart = 0;
+        for (int i = 0; i < attribs.length; i++) {
+            starts[i] = -1;
+            for (int j = 0; j < i; j++) {
+                if (attribs[j].buffer == attribs[i].buffer) {
+                    starts[i] = starts[j];
+                    break;
+                }
+            }
+            if (starts[i] < 0) {
+                starts[i] = nextStart;
+                nextStart += attribs[i].getByteSize();
+            }
+        }
+        starts[attribs.length] = nextStart;
+
+        return starts;
+    }
+
+    /**
+     * Converts a float to the bits of a half float (IEEE 754 binary16), for
+     * attributes of type GL_HALF_FLOAT. Rounds to the nearest half float,
+     * values out of range become infinity.
+     * 
+     * @param value
+     *            The value to convert.
+     * @return the half float bits.
+     */
+    public static short toHalfFloat(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = ((bits >>> 23) & 0xff) - 127 + 15;
+        int mantissa = bits & 0x7fffff;
+
+        if (exponent >= 0x1f) {
+            if (((bits >>> 23) & 0xff) == 0xff && mantissa != 0) {
+                // NaN
+                return (short) (sign | 0x7e00);
+            }
+            // Infinity, or too large
+            return (short) (sign | 0x7c00);
+        }
+        if (exponent <= 0) {
+            if (exponent < -10) {
+                // Too small, signed zero
+                return (short) sign;
+            }
+            // Subnormal, shift in the implicit leading bit
+            mantissa |= 0x800000;
+            int shift = 14 - exponent;
+            int half = mantissa >> shift;
+            if (((mantissa >> (shift - 1)) & 1) != 0) {
+                half++;
+            }
+            return (short) (sign | half);
+        }
+
+        int half = sign | (exponent << 10) | (mantissa >> 13);
+        if ((mantissa & 0x1000) != 0) {
+            // Round up, a carry into the exponent is still correct
+            half++;
+        }
+        return (short) half;
+    }
+
+    /**
+     * Packs a normal into a single int, for attributes of type
+     * GL_INT_2_10_10_10_REV (normalized, vectorSize 4). Each component gets
+     * 10 signed bits, the fourth (w) component is 0.
+     * 
+     * @param x
+     *            The x component, in [-1, 1].
+     * @param y
+     *            The y component, in [-1, 1].
+     * @param z
+     *            The z component, in [-1, 1].
+     * @return the packed normal.
+     */
+    public static int packNormal(float x, float y, float z) {
+        return packSigned10(x) | (packSigned10(y) << 10)
+                | (packSigned10(z) << 20);
+    }
+
+    private static int packSigned10(float value) {
+        float clamped = Math.max(-1f, Math.min(1f, value));
+        return Math.round(clamped * 511f) & 0x3ff;
     }
 }
@@ -11,6 +11,8 @@ import javax.media.opengl.GL;
 import javax.media.opengl.GL3;
 
 import nl.esciencecenter.esight.exceptions.UninitializedException;
+import nl.esciencecenter.esight.io.ImageEncoder;
+import nl.esciencecenter.esight.io.ImageEncoder.Format;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,14 +35,44 @@ import org.slf4j.LoggerFactory;
 /**
  * PixelBuffer object used for copying the frambuffer to a file (screenshots).
  * 
+ * Besides the blocking screenshot methods, the PBO can read back every frame
+ * without stalling the pipeline (for movies). It then holds a ring of pixel
+ * pack buffers: {@link #readAsync(GL3)} starts the readback of a frame into
+ * the next buffer and sets a fence behind it, {@link #poll(GL3, ByteBuffer)}
+ * hands out the oldest frame once its fence has passed. With the default
+ * ring of 3 buffers, the readback of frame N is typically mapped at frame
+ * N+2, long after the GPU finished it. The blocking screenshot methods use a
+ * buffer of their own, after the ring, so they can be used while capturing.
+ * 
  * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
  */
 public class IntPBO {
     private final static Logger logger = LoggerFactory.getLogger(IntPBO.class);
 
-    /** Internal OpenGL pointer to the PBO */
+    /** The default number of buffers in the ring. */
+    public static final int DEFAULT_RING_SIZE = 3;
+
+    /**
+     * Internal OpenGL pointers to the ring of PBOs, followed by the PBO for
+     * blocking screenshots
+     */
     private final IntBuffer pboPointer;
 
+    /** The fence behind the readback in each PBO, 0 if it is not in use. */
+    private final long[] fences;
+
+    /** The frame number of the readback in each PBO. */
+    private final int[] frames;
+
+    /** The PBO the oldest pending readback is in, and the number pending. */
+    private int oldest, pending;
+
+    /** The number of frames read back asynchronously so far. */
+    private int frameCount;
+
+    /** The frame number of the last frame handed out by poll or take. */
+    private int lastFrame;
+
     /** width and height of this PBO, and the resulting picture. */
     private final int width, height;
 
@@ -59,10 +91,36 @@ public class IntPBO {
      *            The height of the canvas to take a screenshot of.
      */
     public IntPBO(int width, int height) {
+        this(width, height, DEFAULT_RING_SIZE);
+    }
+
+    /**
+     * Constructor for IntPBO with a ring of the given number of buffers for
+     * asynchronous readback.
+     * 
+     * @param width
+     *            The width of the canvas to take a screenshot of.
+     * @param height
+     *            The height of the canvas to take a screenshot of.
+     * @param ringSize
+     *            The number of buffers in the ring, the maximum number of
+     *            readbacks in flight. 2 or 3 is usually enough.
+     */
+    public IntPBO(int width, int height, int ringSize) {
+        if (ringSize < 1) {
+            throw new IllegalArgumentException(
+                    "ringSize should be at least 1.");
+        }
         this.width = width;
         this.height = height;
 
-        pboPointer = IntBuffer.allocate(1);
+        pboPointer = IntBuffer.allocate(ringSize + 1);
+        fences = new long[ringSize];
+        frames = new int[ringSize];
+        oldest = 0;
+        pending = 0;
+        frameCount = 0;
+        lastFrame = -1;
 
         data = ByteBuffer.allocate(width * height * 4);
     }
@@ -77,15 +135,15 @@ public class IntPBO {
     public void init(GL3 gl) {
         checkNoError(gl, "PRE: ", true);
 
-        /* generate the pixel buffer object */
-        gl.glGenBuffers(1, pboPointer);
-        gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, pboPointer.get(0));
+        /* generate the pixel buffer objects */
+        gl.glGenBuffers(pboPointer.capacity(), pboPointer);
         gl.glPixelStorei(GL3.GL_UNPACK_ALIGNMENT, 1);
 
-        gl.glBufferData(GL3.GL_PIXEL_PACK_BUFFER, width * height * 4, null,
-                GL3.GL_STREAM_READ);
-        gl.glReadPixels(0, 0, width, height, GL3.GL_BGRA, GL3.GL_UNSIGNED_BYTE,
-                0);
+        for (int i = 0; i < pboPointer.capacity(); i++) {
+            gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, pboPointer.get(i));
+            gl.glBufferData(GL3.GL_PIXEL_PACK_BUFFER, width * height * 4,
+                    null, GL3.GL_STREAM_READ);
+        }
 
         checkNoError(gl, "POST: ", false);
 
@@ -129,7 +187,10 @@ public class IntPBO {
 
     /**
      * Makes the calls to the OpenGL instance necessary to copy the current
-     * framebuffer to the data storage.
+     * framebuffer to the data storage. This waits for the GPU to finish
+     * drawing the frame, use {@link #readAsync(GL3)} to capture many frames.
+     * Uses a buffer outside of the ring, so pending asynchronous readbacks are
+     * left alone.
      * 
      * @param gl
      *            The opengl instance.
@@ -138,16 +199,191 @@ public class IntPBO {
      */
     public void copyToPBO(GL3 gl) throws UninitializedException {
         if (initialized) {
-            gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, pboPointer.get(0));
+            gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER,
+                    pboPointer.get(fences.length));
 
             gl.glReadPixels(0, 0, width, height, GL3.GL_BGRA,
                     GL3.GL_UNSIGNED_BYTE, 0);
-            data = gl.glMapBuffer(GL3.GL_PIXEL_PACK_BUFFER, GL3.GL_WRITE_ONLY);
+            data = gl.glMapBuffer(GL3.GL_PIXEL_PACK_BUFFER, GL3.GL_READ_ONLY);
         } else {
             throw new UninitializedException("PBO not initialized.");
         }
     }
 
+    /**
+     * Starts reading back the current framebuffer into the next buffer of the
+     * ring, without waiting for the GPU. Fails when all buffers still hold
+     * readbacks that were not handed out by {@link #poll(GL3, ByteBuffer)}
+     * or {@link #take(GL3, ByteBuffer)}.
+     * 
+     * @param gl
+     *            The opengl instance.
+     * @return true if the readback was started, false if the ring is full.
+     * @throws UninitializedException
+     *             if the PBO was not initialized before use.
+     */
+    public boolean readAsync(GL3 gl) throws UninitializedException {
+        if (!initialized) {
+            throw new UninitializedException("PBO not initialized.");
+        }
+        if (pending == fences.length) {
+            return false;
+        }
+
+        int slot = (oldest + pending) % fences.length;
+        gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, pboPointer.get(slot));
+        gl.glReadPixels(0, 0, width, height, GL3.GL_BGRA,
+                GL3.GL_UNSIGNED_BYTE, 0);
+        gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, 0);
+
+        fences[slot] = gl.glFenceSync(GL3.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        frames[slot] = frameCount++;
+        pending++;
+
+        return true;
+    }
+
+    /**
+     * Hands out the oldest asynchronous readback if the GPU has finished it,
+     * without waiting. The pixels are copied to the given buffer (BGRA, rows
+     * bottom to top), after which its buffer in the ring is free for reuse.
+     * Call this every frame, until it returns false.
+     * 
+     * @param gl
+     *            The opengl instance.
+     * @param destination
+     *            The buffer to copy the pixels to, with at least width *
+     *            height * 4 bytes remaining. Its position is advanced past the
+     *            copied pixels.
+     * @return true if a frame was copied, false if none was finished, or if
+     *         the finished frame could not be mapped and was dropped.
+     */
+    public boolean poll(GL3 gl, ByteBuffer destination) {
+        return handOut(gl, destination, 0L);
+    }
+
+    /**
+     * Hands out the oldest asynchronous readback, waiting for the GPU if it
+     * has not finished it yet. Use this to collect the last frames when
+     * capturing stops.
+     * 
+     * @param gl
+     *            The opengl instance.
+     * @param destination
+     *            The buffer to copy the pixels to, @see #poll(GL3, ByteBuffer)
+     * @return true if a frame was copied, false if there was none pending,
+     *         or if it could not be mapped and was dropped.
+     */
+    public boolean take(GL3 gl, ByteBuffer destination) {
+        return handOut(gl, destination, Long.MAX_VALUE);
+    }
+
+    private boolean handOut(GL3 gl, ByteBuffer destination, long timeout) {
+        if (!oldestFinished(gl, timeout)) {
+            return false;
+        }
+
+        gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, pboPointer.get(oldest));
+        ByteBuffer mapped = gl.glMapBuffer(GL3.GL_PIXEL_PACK_BUFFER,
+                GL3.GL_READ_ONLY);
+        boolean copied = mapped != null;
+        if (copied) {
+            mapped.rewind();
+            mapped.limit(width * height * 4);
+            destination.put(mapped);
+            gl.glUnmapBuffer(GL3.GL_PIXEL_PACK_BUFFER);
+            lastFrame = frames[oldest];
+        } else {
+            logger.error("Could not map the readback of frame "
+                    + frames[oldest] + ", dropped.");
+        }
+        gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, 0);
+
+        dropOldest(gl);
+
+        return copied;
+    }
+
+    /** Frees the buffer of the oldest pending readback for reuse. */
+    private void dropOldest(GL3 gl) {
+        gl.glDeleteSync(fences[oldest]);
+        fences[oldest] = 0;
+        oldest = (oldest + 1) % fences.length;
+        pending--;
+    }
+
+    /** Whether the GPU finished the oldest pending readback. */
+    private boolean oldestFinished(GL3 gl, long timeout) {
+        if (pending == 0) {
+            return false;
+        }
+
+        int status = gl.glClientWaitSync(fences[oldest],
+                GL3.GL_SYNC_FLUSH_COMMANDS_BIT, timeout);
+        return status == GL3.GL_ALREADY_SIGNALED
+                || status == GL3.GL_CONDITION_SATISFIED;
+    }
+
+    /**
+     * Hands all finished asynchronous readbacks to the given encoder, to be
+     * written as a numbered image sequence (see
+     * {@link ImageEncoder#sequenceFile(File, String, int, Format)}). Frames
+     * the encoder has no room for are dropped without being mapped, so the
+     * ring keeps up with the render loop. Does not wait for the GPU.
+     * 
+     * @param gl
+     *            The opengl instance.
+     * @param encoder
+     *            The encoder to write the frames with, of the same size as
+     *            this PBO.
+     * @param directory
+     *            The directory of the sequence.
+     * @param prefix
+     *            The file name prefix of the sequence.
+     * @param format
+     *            The format of the sequence.
+     * @return the number of frames handed to the encoder.
+     */
+    public int encodeFrames(GL3 gl, ImageEncoder encoder, File directory,
+            String prefix, Format format) {
+        int handed = 0;
+        while (oldestFinished(gl, 0L)) {
+            ByteBuffer buffer = encoder.acquire();
+            if (buffer == null) {
+                // Dropped, counted by the encoder
+                dropOldest(gl);
+            } else if (!handOut(gl, buffer, 0L)) {
+                encoder.release(buffer);
+            } else {
+                buffer.flip();
+                encoder.submit(buffer, ImageEncoder.sequenceFile(directory,
+                        prefix, lastFrame, format), format);
+                handed++;
+            }
+        }
+        return handed;
+    }
+
+    /**
+     * Getter for the frame number of the last frame handed out by
+     * {@link #poll(GL3, ByteBuffer)} or {@link #take(GL3, ByteBuffer)}. Frames
+     * are numbered from 0, in the order of {@link #readAsync(GL3)}.
+     * 
+     * @return the number of the last frame handed out, -1 if none was.
+     */
+    public int getLastFrame() {
+        return lastFrame;
+    }
+
+    /**
+     * Getter for the number of asynchronous readbacks in flight.
+     * 
+     * @return the number of frames read back but not yet handed out.
+     */
+    public int getPendingCount() {
+        return pending;
+    }
+
     /**
      * Getter for the data storage.
      * 
@@ -173,13 +409,22 @@ public class IntPBO {
      *            The OpenGL instance
      */
     public void delete(GL3 gl) {
-        gl.glDeleteBuffers(1, pboPointer);
+        for (int i = 0; i < fences.length; i++) {
+            if (fences[i] != 0) {
+                gl.glDeleteSync(fences[i]);
+                fences[i] = 0;
+            }
+        }
+        pending = 0;
+
+        gl.glDeleteBuffers(pboPointer.capacity(), pboPointer);
     }
 
     /**
-     * Getter for the pointer to this PBO.
+     * Getter for the pointers to the ring of PBOs.
      * 
-     * @return The OpenGL internal pointer to this PBO.
+     * @return The OpenGL internal pointers to the PBOs of the ring, followed
+     *         by the one for blocking screenshots.
      */
     public IntBuffer getPointer() {
         return pboPointer;
@@ -188,7 +433,9 @@ public class IntPBO {
     /**
      * Convenience method that makes the neccesary calls to the OpenGL instance
      * in succession to copy the PBO to a buffer and then write it to disk using
-     * the {@link BufferedImage} construct.
+     * the {@link BufferedImage} construct. Waits for the GPU, and writes the
+     * file on the calling thread, see
+     * {@link #makeScreenshotPNG(GL3, String, ImageEncoder)}.
      * 
      * @param gl
      *            The OpenGL instance
@@ -201,47 +448,64 @@ public class IntPBO {
             ByteBuffer bb = getBuffer();
             bb.rewind();
 
-            int pixels = width * height;
-            int[] array = new int[pixels];
-            IntBuffer ib = IntBuffer.wrap(array);
-
-            for (int i = 0; i < (pixels * 4); i += 4) {
-                int b = bb.get(i) & 0xFF;
-                int g = bb.get(i + 1) & 0xFF;
-                int r = bb.get(i + 2) & 0xFF;
-                // int a = bb.get(i + 3) & 0xFF;
-
-                int argb = (r << 16) | (g << 8) | b;
-                ib.put(argb);
-            }
-            ib.rewind();
-
-            int[] destArray = new int[pixels];
-            IntBuffer dest = IntBuffer.wrap(destArray);
-
-            int[] rowPix = new int[width];
-            for (int row = 0; row < height; row++) {
-                ib.get(rowPix);
-                dest.position((height - row - 1) * width);
-                dest.put(rowPix);
-            }
-
             BufferedImage bufIm = new BufferedImage(width, height,
                     BufferedImage.TYPE_INT_RGB);
-            bufIm.setRGB(0, 0, width, height, dest.array(), 0, width);
+            ImageEncoder.toImage(bb, width, height, bufIm);
+
+            unBind(gl);
+
             try {
-                new File(filename).mkdirs();
-                ImageIO.write(bufIm, "png", new File(filename));
+                File file = new File(filename).getAbsoluteFile();
+                file.getParentFile().mkdirs();
+                ImageIO.write(bufIm, "png", file);
                 System.out.println("Saved screenshot: " + filename);
             } catch (IOException e2) {
                 // TODO Auto-generated catch block
                 e2.printStackTrace();
             }
+        } catch (UninitializedException e) {
+            logger.error("error while tring to make screenshot.");
+        }
+    }
 
-            unBind(gl);
+    /**
+     * Copies the framebuffer to a pooled buffer of the given encoder, which
+     * writes it to disk as PNG on one of its own threads. Still waits for the
+     * GPU to finish the frame, but not for the encoding.
+     * 
+     * @param gl
+     *            The OpenGL instance
+     * @param filename
+     *            The filename to use for writing this picture.
+     * @param encoder
+     *            The encoder to write the picture with, of the same size as
+     *            this PBO.
+     * @return true if the screenshot was queued, false if the encoder had no
+     *         room for it.
+     */
+    public boolean makeScreenshotPNG(GL3 gl, String filename,
+            ImageEncoder encoder) {
+        ByteBuffer buffer = encoder.acquire();
+        if (buffer == null) {
+            return false;
+        }
+
+        try {
+            copyToPBO(gl);
+            ByteBuffer bb = getBuffer();
+            bb.rewind();
+            bb.limit(width * height * 4);
+            buffer.put(bb);
+            buffer.flip();
 
+            unBind(gl);
         } catch (UninitializedException e) {
+            encoder.release(buffer);
             logger.error("error while tring to make screenshot.");
+            return false;
         }
+
+        encoder.submit(buffer, new File(filename), Format.PNG);
+        return true;
     }
 }
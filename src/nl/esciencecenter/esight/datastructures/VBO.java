@@ -1,7 +1,10 @@
 package nl.esciencecenter.esight.datastructures;
 
 import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.IntBuffer;
+import java.util.Arrays;
 
 import javax.media.opengl.GL3;
 
@@ -10,18 +13,65 @@ import com.jogamp.common.nio.Buffers;
 /**
  * A class representing a Vertex Buffer Object.
  * 
+ * By default the data is uploaded once, as GL_STATIC_DRAW. Data that changes
+ * often (animated positions, particles) should use a VBO created with a
+ * dynamic or streaming usage hint, see
+ * {@link #VBO(GL3, int, int, GLSLAttrib...)}. Changes to the attribute
+ * buffers are then marked with {@link #markDirty(int, int, int)} and uploaded
+ * with {@link #flush(GL3)}, which only copies the changed ranges, or orphans
+ * the storage when most of it changed. With a ring of more than one buffer,
+ * every flush writes to the buffer the GPU used longest ago, so the CPU never
+ * waits for the GPU to finish reading the data of the previous frame.
+ * 
  * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
  */
 public class VBO {
     /** The internal OpenGL pointer to the VBO */
     private final IntBuffer vboPointer;
 
-    /** The internal OpenGL pointer to the Array Buffer */
+    /** The internal OpenGL pointers to the ring of Array Buffers */
     private final IntBuffer bufferPointer;
 
+    /** The usage hint passed to OpenGL when allocating the Array Buffers */
+    private final int       usage;
+
+    /** The index of the Array Buffer in the ring that is currently drawn */
+    private int             current;
+
+    /** The size of the storage allocated for each Array Buffer, in bytes */
+    private final int[]     bufferSizes;
+
+    /**
+     * The changed range of each attribute, per Array Buffer, as first element
+     * and end element (exclusive) of the attribute's buffer. An empty range
+     * has first >= end.
+     */
+    private int[][]         dirtyFirst, dirtyEnd;
+
     /** The array of GLSL attributes associated with this VBO */
     private GLSLAttrib[]    attribs;
 
+    /**
+     * The layout of the attributes in the Array Buffers, @see
+     * GLSLAttrib#getStarts(GLSLAttrib...)
+     */
+    private int[]           starts;
+
+    /** The internal OpenGL pointer to the per-instance Array Buffer */
+    private IntBuffer       instanceBufferPointer;
+
+    /** The per-instance GLSL attributes, or null if not drawn instanced */
+    private GLSLAttrib[]    instanceAttribs;
+
+    /** The layout of the per-instance attributes, @see #getStarts() */
+    private int[]           instanceStarts;
+
+    /** The per-vertex followed by the per-instance GLSL attributes */
+    private GLSLAttrib[]    allAttribs;
+
+    /** The size of the per-instance Array Buffer's storage, in bytes */
+    private int             instanceBufferSize;
+
     /**
      * Constructor that creates a Vertex Buffer Object with the specified GLSL
      * attributes.
@@ -34,35 +84,72 @@ public class VBO {
      *            GLSLAttrib
      */
     public VBO(GL3 gl, GLSLAttrib... attribs) {
+        this(gl, GL3.GL_STATIC_DRAW, 1, attribs);
+    }
+
+    /**
+     * Constructor that creates a Vertex Buffer Object with the specified GLSL
+     * attributes and usage hint.
+     * 
+     * @param gl
+     *            The global openGL instance.
+     * @param usage
+     *            The OpenGL usage hint, typically GL_STATIC_DRAW for data
+     *            that is uploaded once, GL_DYNAMIC_DRAW for data that is
+     *            changed now and then and GL_STREAM_DRAW for data that is
+     *            changed every frame.
+     * @param attribs
+     *            One or more attributes that represent this VBO, @see
+     *            GLSLAttrib
+     */
+    public VBO(GL3 gl, int usage, GLSLAttrib... attribs) {
+        this(gl, usage, 1, attribs);
+    }
+
+    /**
+     * Constructor that creates a Vertex Buffer Object with the specified GLSL
+     * attributes and usage hint, backed by a ring of Array Buffers. Each
+     * {@link #flush(GL3)} that has changes to upload moves on to the next
+     * buffer in the ring, so the data drawn in the last (ringSize - 1) frames
+     * is never overwritten while the GPU may still be reading it.
+     * 
+     * @param gl
+     *            The global openGL instance.
+     * @param usage
+     *            The OpenGL usage hint, @see #VBO(GL3, int, GLSLAttrib...)
+     * @param ringSize
+     *            The number of Array Buffers in the ring, typically 1 (no
+     *            ring) up to 3.
+     * @param attribs
+     *            One or more attributes that represent this VBO, @see
+     *            GLSLAttrib
+     */
+    public VBO(GL3 gl, int usage, int ringSize, GLSLAttrib... attribs) {
+        if (ringSize < 1) {
+            throw new IllegalArgumentException(
+                    "ringSize should be at least 1.");
+        }
+        this.usage = usage;
         this.attribs = attribs;
+        this.starts = GLSLAttrib.getStarts(attribs);
 
         // Generate a new internal OpenGL VBO pointer
         this.vboPointer = Buffers.newDirectIntBuffer(1);
         gl.glGenVertexArrays(1, this.vboPointer);
         gl.glBindVertexArray(this.vboPointer.get(0));
 
-        // Generate a new internal OpenGL Array Buffer pointer
-        this.bufferPointer = Buffers.newDirectIntBuffer(1);
-        gl.glGenBuffers(1, this.bufferPointer);
-        gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, this.bufferPointer.get(0));
+        // Generate the internal OpenGL Array Buffer pointers
+        this.bufferPointer = Buffers.newDirectIntBuffer(ringSize);
+        gl.glGenBuffers(ringSize, this.bufferPointer);
+        this.bufferSizes = new int[ringSize];
 
-        // Allocate enough memory
-        int size = 0;
-        for (final GLSLAttrib attrib : attribs) {
-            size += attrib.buffer.capacity() * Buffers.SIZEOF_FLOAT;
-        }
-
-        gl.glBufferData(GL3.GL_ARRAY_BUFFER, size, (Buffer) null,
-                GL3.GL_STATIC_DRAW);
-
-        // Copy the GLSL Attribute data into the internal OpenGL buffer
-        int nextStart = 0;
-        for (final GLSLAttrib attrib : attribs) {
-            gl.glBufferSubData(GL3.GL_ARRAY_BUFFER, nextStart,
-                    attrib.buffer.capacity() * Buffers.SIZEOF_FLOAT,
-                    attrib.buffer);
-            nextStart += attrib.buffer.capacity() * Buffers.SIZEOF_FLOAT;
+        // Allocate and fill every buffer in the ring
+        for (int i = 0; i < ringSize; i++) {
+            current = i;
+            upload(gl);
         }
+        current = 0;
+        resetDirty();
     }
 
     /**
@@ -73,9 +160,58 @@ public class VBO {
      */
     public void bind(GL3 gl) {
         gl.glBindVertexArray(this.vboPointer.get(0));
-        gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, bufferPointer.get(0));
+        gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, bufferPointer.get(current));
 
     }
+    /**
+     * Bind the per-instance Array Buffer of this VBO, so that the per-instance
+     * attributes can be linked. Assumes the VBO itself is bound, @see
+     * #bind(GL3)
+     * 
+     * @param gl
+     *            The global openGL instance.
+     */
+    public void bindInstanceBuffer(GL3 gl) {
+        gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, instanceBufferPointer.get(0));
+    }
+
+    /**
+     * Sets (or replaces) the per-instance attributes of this VBO, used for
+     * instanced drawing. Each attribute holds one vector per instance, which
+     * OpenGL advances once per instance instead of once per vertex. The
+     * buffer storage is only reallocated when the data grows, so this may be
+     * called every frame.
+     * 
+     * @param gl
+     *            The global openGL instance.
+     * @param attribs
+     *            One or more per-instance attributes (typically translation,
+     *            scale and color), @see GLSLAttrib
+     */
+    public void setInstanceAttribs(GL3 gl, GLSLAttrib... attribs) {
+        this.instanceAttribs = attribs;
+
+        gl.glBindVertexArray(this.vboPointer.get(0));
+
+        if (instanceBufferPointer == null) {
+            instanceBufferPointer = Buffers.newDirectIntBuffer(1);
+            gl.glGenBuffers(1, instanceBufferPointer);
+            instanceBufferSize = 0;
+        }
+        gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, instanceBufferPointer.get(0));
+
+        instanceStarts = GLSLAttrib.getStarts(attribs);
+        int size = instanceStarts[attribs.length];
+        combineAttribs();
+
+        if (size > instanceBufferSize) {
+            gl.glBufferData(GL3.GL_ARRAY_BUFFER, size, (Buffer) null,
+                    GL3.GL_DYNAMIC_DRAW);
+            instanceBufferSize = size;
+        }
+
+        copyAttribs(gl, attribs, instanceStarts);
+    }
 
     /**
      * Delete this VBO properly.
@@ -86,7 +222,15 @@ public class VBO {
     public void delete(GL3 gl) {
         gl.glBindVertexArray(0);
         gl.glDeleteVertexArrays(1, this.vboPointer);
-        gl.glDeleteBuffers(1, this.bufferPointer);
+        gl.glDeleteBuffers(bufferSizes.length, this.bufferPointer);
+
+        if (instanceBufferPointer != null) {
+            gl.glDeleteBuffers(1, instanceBufferPointer);
+            instanceBufferPointer = null;
+            instanceAttribs = null;
+            instanceStarts = null;
+            allAttribs = null;
+        }
     }
 
     /**
@@ -99,7 +243,255 @@ public class VBO {
     }
 
     /**
-     * Update this VBO with (potentially) new data.
+     * Retrieve the layout of the GLSL Attributes in this VBO, computed once
+     * when the attributes are set, so binding the VBO allocates nothing.
+     * 
+     * @return The byte start of the buffer of each attribute in the Array
+     *         Buffer, followed by the total size, @see
+     *         GLSLAttrib#getStarts(GLSLAttrib...)
+     */
+    public int[] getStarts() {
+        return starts;
+    }
+
+    /**
+     * Retrieve the per-instance GLSL Attributes of this VBO, @see
+     * #setInstanceAttribs(GL3, GLSLAttrib...)
+     * 
+     * @return The per-instance GLSL Attributes, or null if none were set.
+     */
+    public GLSLAttrib[] getInstanceAttribs() {
+        return instanceAttribs;
+    }
+
+    /**
+     * Retrieve the per-vertex and per-instance GLSL Attributes of this VBO
+     * together, for checking them against the inputs of a shader.
+     * 
+     * @return The per-vertex attributes followed by the per-instance
+     *         attributes, or null if no per-instance attributes were set.
+     */
+    public GLSLAttrib[] getAllAttribs() {
+        return allAttribs;
+    }
+
+    /**
+     * Retrieve the layout of the per-instance GLSL Attributes in the
+     * per-instance Array Buffer, @see #getStarts()
+     * 
+     * @return The layout of the per-instance attributes, or null if none were
+     *         set.
+     */
+    public int[] getInstanceStarts() {
+        return instanceStarts;
+    }
+
+    /**
+     * Getter for the usage hint this VBO's storage is allocated with.
+     * 
+     * @return the OpenGL usage hint.
+     */
+    public int getUsage() {
+        return usage;
+    }
+
+    /**
+     * Getter for the number of Array Buffers in this VBO's ring.
+     * 
+     * @return the number of Array Buffers, 1 if this VBO is not a ring.
+     */
+    public int getRingSize() {
+        return bufferSizes.length;
+    }
+
+    /**
+     * Mark a whole attribute as changed, to be uploaded by the next
+     * {@link #flush(GL3)}.
+     * 
+     * @param attribIndex
+     *            The index of the attribute in {@link #getAttribs()}.
+     */
+    public void markDirty(int attribIndex) {
+        markDirty(attribIndex, 0, attribs[attribIndex].buffer.capacity());
+    }
+
+    /**
+     * Mark part of an attribute as changed, to be uploaded by the next
+     * {@link #flush(GL3)}. Ranges marked on the same attribute are merged
+     * into one range spanning all of them.
+     * 
+     * @param attribIndex
+     *            The index of the attribute in {@link #getAttribs()}.
+     * @param offset
+     *            The first changed element (float, for float attributes) of
+     *            the attribute's buffer.
+     * @param length
+     *            The number of changed elements.
+     */
+    public void markDirty(int attribIndex, int offset, int length) {
+        if (length <= 0) {
+            return;
+        }
+        // Every buffer in the ring misses this change until it is flushed
+        for (int i = 0; i < bufferSizes.length; i++) {
+            if (dirtyFirst[i][attribIndex] >= dirtyEnd[i][attribIndex]) {
+                dirtyFirst[i][attribIndex] = offset;
+                dirtyEnd[i][attribIndex] = offset + length;
+            } else {
+                dirtyFirst[i][attribIndex] = Math.min(
+                        dirtyFirst[i][attribIndex], offset);
+                dirtyEnd[i][attribIndex] = Math.max(dirtyEnd[i][attribIndex],
+                        offset + length);
+            }
+        }
+    }
+
+    /**
+     * Upload the changes marked since the last flush. With a ring of buffers,
+     * the next buffer in the ring becomes current first, and receives all
+     * changes it missed since it was last current. When at least half of the
+     * storage changed, it is orphaned and uploaded as a whole, so OpenGL can
+     * hand out fresh storage instead of waiting for pending draws. Does
+     * nothing when there are no changes, so this can be called every frame.
+     * 
+     * @param gl
+     *            The global openGL instance.
+     */
+    public void flush(GL3 gl) {
+        if (!isDirty(current)) {
+            return;
+        }
+        current = (current + 1) % bufferSizes.length;
+
+        gl.glBindVertexArray(this.vboPointer.get(0));
+        gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, this.bufferPointer.get(current));
+
+        int size = starts[attribs.length];
+        int dirtySize = 0;
+        for (int i = 0; i < attribs.length; i++) {
+            dirtySize += Math.max(0, dirtyEnd[current][i]
+                    - dirtyFirst[current][i])
+                    * Buffers.sizeOfBufferElem(attribs[i].buffer);
+        }
+
+        if (bufferSizes[current] != size || dirtySize * 2 >= size) {
+            upload(gl);
+        } else {
+            for (int i = 0; i < attribs.length; i++) {
+                int first = dirtyFirst[current][i];
+                int end = dirtyEnd[current][i];
+                if (first < end) {
+                    subData(gl, attribs[i].buffer, starts[i], first, end
+                            - first);
+                }
+            }
+        }
+
+        Arrays.fill(dirtyFirst[current], 0);
+        Arrays.fill(dirtyEnd[current], 0);
+    }
+
+    private boolean isDirty(int ringIndex) {
+        for (int i = 0; i < attribs.length; i++) {
+            if (dirtyFirst[ringIndex][i] < dirtyEnd[ringIndex][i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * (Re)allocates the storage of the current Array Buffer, leaving its
+     * contents undefined. For VBOs whose contents are written through
+     * {@link #map(GL3, int, int)} rather than copied from the buffers of
+     * their attributes, see {@link BufferArena}.
+     * 
+     * @param gl
+     *            The global openGL instance.
+     * @param size
+     *            The size of the storage, in bytes.
+     */
+    public void allocate(GL3 gl, int size) {
+        gl.glBindVertexArray(this.vboPointer.get(0));
+        gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, this.bufferPointer.get(current));
+
+        gl.glBufferData(GL3.GL_ARRAY_BUFFER, size, (Buffer) null, usage);
+        bufferSizes[current] = size;
+    }
+
+    /**
+     * Maps a range of the current Array Buffer for writing. The previous
+     * contents of the range are discarded, so OpenGL does not need to read
+     * them back. Every call must be followed by {@link #unmap(GL3)} before
+     * the VBO is drawn.
+     * 
+     * @param gl
+     *            The global openGL instance.
+     * @param offset
+     *            The first byte of the range.
+     * @param length
+     *            The number of bytes in the range.
+     * @return The mapped range, in native byte order.
+     */
+    public ByteBuffer map(GL3 gl, int offset, int length) {
+        gl.glBindVertexArray(this.vboPointer.get(0));
+        gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, this.bufferPointer.get(current));
+
+        ByteBuffer range = gl.glMapBufferRange(GL3.GL_ARRAY_BUFFER, offset,
+                length, GL3.GL_MAP_WRITE_BIT
+                        | GL3.GL_MAP_INVALIDATE_RANGE_BIT);
+        return range.order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Unmaps the range mapped by {@link #map(GL3, int, int)}.
+     * 
+     * @param gl
+     *            The global openGL instance.
+     */
+    public void unmap(GL3 gl) {
+        gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, this.bufferPointer.get(current));
+        gl.glUnmapBuffer(GL3.GL_ARRAY_BUFFER);
+    }
+
+    /**
+     * Update part of one attribute of this VBO in place, from the (changed)
+     * buffer of that attribute. The storage is not reallocated, so the
+     * attribute must not have grown since it was uploaded. Only the current
+     * buffer of a ring is written to, the others receive the change on their
+     * next {@link #flush(GL3)}.
+     * 
+     * @param gl
+     *            The global openGL instance.
+     * @param attribIndex
+     *            The index of the attribute in {@link #getAttribs()}.
+     * @param offset
+     *            The first element (float, for float attributes) of the
+     *            attribute's buffer to upload.
+     * @param length
+     *            The number of elements to upload.
+     */
+    public void update(GL3 gl, int attribIndex, int offset, int length) {
+        int start = starts[attribIndex];
+
+        gl.glBindVertexArray(this.vboPointer.get(0));
+        gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, this.bufferPointer.get(current));
+
+        subData(gl, attribs[attribIndex].buffer, start, offset, length);
+
+        if (bufferSizes.length > 1) {
+            int first = dirtyFirst[current][attribIndex];
+            int end = dirtyEnd[current][attribIndex];
+            markDirty(attribIndex, offset, length);
+            dirtyFirst[current][attribIndex] = first;
+            dirtyEnd[current][attribIndex] = end;
+        }
+    }
+
+    /**
+     * Update this VBO with (potentially) new data. The current buffer is
+     * orphaned and uploaded as a whole, the other buffers of a ring receive
+     * the new data on their next {@link #flush(GL3)}.
      * 
      * @param gl
      *            The global openGL instance.
@@ -109,26 +501,82 @@ public class VBO {
      */
     public void update(GL3 gl, GLSLAttrib... attribs) {
         this.attribs = attribs;
+        this.starts = GLSLAttrib.getStarts(attribs);
+        if (instanceAttribs != null) {
+            combineAttribs();
+        }
 
         gl.glBindVertexArray(this.vboPointer.get(0));
-        gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, this.bufferPointer.get(0));
+        gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, this.bufferPointer.get(current));
 
-        // Allocate enough memory
-        int size = 0;
-        for (final GLSLAttrib attrib : attribs) {
-            size += attrib.buffer.capacity() * Buffers.SIZEOF_FLOAT;
+        upload(gl);
+
+        resetDirty();
+        if (bufferSizes.length > 1) {
+            for (int i = 0; i < attribs.length; i++) {
+                markDirty(i);
+            }
+            Arrays.fill(dirtyFirst[current], 0);
+            Arrays.fill(dirtyEnd[current], 0);
         }
+    }
 
-        gl.glBufferData(GL3.GL_ARRAY_BUFFER, size, (Buffer) null,
-                GL3.GL_STATIC_DRAW);
+    /**
+     * (Re)allocates the storage of the bound Array Buffer and copies all
+     * attributes into it. Reallocating with a null pointer orphans the old
+     * storage, so this never waits for draws that still read from it.
+     */
+    private void upload(GL3 gl) {
+        gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, this.bufferPointer.get(current));
+
+        // Allocate enough memory
+        int size = starts[attribs.length];
+
+        gl.glBufferData(GL3.GL_ARRAY_BUFFER, size, (Buffer) null, usage);
+        bufferSizes[current] = size;
 
         // Copy the GLSL Attribute data into the internal OpenGL buffer
+        copyAttribs(gl, attribs, starts);
+    }
+
+    private void combineAttribs() {
+        int length = attribs.length + instanceAttribs.length;
+        if (allAttribs == null || allAttribs.length != length) {
+            allAttribs = new GLSLAttrib[length];
+        }
+        System.arraycopy(attribs, 0, allAttribs, 0, attribs.length);
+        System.arraycopy(instanceAttribs, 0, allAttribs, attribs.length,
+                instanceAttribs.length);
+    }
+
+    /**
+     * Copies the buffers of the given attributes into the bound Array Buffer,
+     * each (interleaved) buffer once, @see GLSLAttrib#getStarts(GLSLAttrib...)
+     */
+    private static void copyAttribs(GL3 gl, GLSLAttrib[] attribs,
+            int[] starts) {
         int nextStart = 0;
-        for (final GLSLAttrib attrib : attribs) {
-            gl.glBufferSubData(GL3.GL_ARRAY_BUFFER, nextStart,
-                    attrib.buffer.capacity() * Buffers.SIZEOF_FLOAT,
-                    attrib.buffer);
-            nextStart += attrib.buffer.capacity() * Buffers.SIZEOF_FLOAT;
+        for (int i = 0; i < attribs.length; i++) {
+            if (starts[i] == nextStart) {
+                gl.glBufferSubData(GL3.GL_ARRAY_BUFFER, nextStart,
+                        attribs[i].getByteSize(), attribs[i].buffer);
+                nextStart += attribs[i].getByteSize();
+            }
         }
     }
+
+    private void subData(GL3 gl, Buffer buffer, int start, int offset,
+            int length) {
+        int elementSize = Buffers.sizeOfBufferElem(buffer);
+
+        buffer.position(offset);
+        gl.glBufferSubData(GL3.GL_ARRAY_BUFFER, start + offset * elementSize,
+                length * elementSize, buffer);
+        buffer.position(0);
+    }
+
+    private void resetDirty() {
+        dirtyFirst = new int[bufferSizes.length][attribs.length];
+        dirtyEnd = new int[bufferSizes.length][attribs.length];
+    }
 }
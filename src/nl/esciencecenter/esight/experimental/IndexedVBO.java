@@ -35,20 +35,19 @@ public class IndexedVBO {
         gl.glGenBuffers(1, this.bufferPointer);
         gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, this.bufferPointer.get(0));
 
-        int size = 0;
-        for (final GLSLAttrib attrib : attribs) {
-            size += attrib.buffer.capacity() * Buffers.SIZEOF_FLOAT;
-        }
+        int[] starts = GLSLAttrib.getStarts(attribs);
+        int size = starts[attribs.length];
 
         gl.glBufferData(GL3.GL_ARRAY_BUFFER, size, (Buffer) null,
                 GL3.GL_STATIC_DRAW);
 
         int nextStart = 0;
-        for (final GLSLAttrib attrib : attribs) {
-            gl.glBufferSubData(GL3.GL_ARRAY_BUFFER, nextStart, attrib.buffer
-                    .capacity()
-                    * Buffers.SIZEOF_FLOAT, attrib.buffer);
-            nextStart += attrib.buffer.capacity() * Buffers.SIZEOF_FLOAT;
+        for (int i = 0; i < attribs.length; i++) {
+            if (starts[i] == nextStart) {
+                gl.glBufferSubData(GL3.GL_ARRAY_BUFFER, nextStart,
+                        attribs[i].getByteSize(), attribs[i].buffer);
+                nextStart += attribs[i].getByteSize();
+            }
         }
     }
 
@@ -88,20 +87,19 @@ public class IndexedVBO {
         // Bind regular attribs
         gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, this.bufferPointer.get(0));
 
-        int size = 0;
-        for (final GLSLAttrib attrib : attribs) {
-            size += attrib.buffer.capacity() * Buffers.SIZEOF_FLOAT;
-        }
+        int[] starts = GLSLAttrib.getStarts(attribs);
+        int size = starts[attribs.length];
 
         gl.glBufferData(GL3.GL_ARRAY_BUFFER, size, (Buffer) null,
                 GL3.GL_STATIC_DRAW);
 
         int nextStart = 0;
-        for (final GLSLAttrib attrib : attribs) {
-            gl.glBufferSubData(GL3.GL_ARRAY_BUFFER, nextStart, attrib.buffer
-                    .capacity()
-                    * Buffers.SIZEOF_FLOAT, attrib.buffer);
-            nextStart += attrib.buffer.capacity() * Buffers.SIZEOF_FLOAT;
+        for (int i = 0; i < attribs.length; i++) {
+            if (starts[i] == nextStart) {
+                gl.glBufferSubData(GL3.GL_ARRAY_BUFFER, nextStart,
+                        attribs[i].getByteSize(), attribs[i].buffer);
+                nextStart += attribs[i].getByteSize();
+            }
         }
     }
 }
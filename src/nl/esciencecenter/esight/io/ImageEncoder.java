@@ -0,0 +1,363 @@
+package nl.esciencecenter.esight.io;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jogamp.common.nio.Buffers;
+
+/* Copyright [2013] [Netherlands eScience Center]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Encodes frames read back from OpenGL (BGRA, rows bottom to top, see
+ * {@link nl.esciencecenter.esight.datastructures.IntPBO}) to image files on
+ * worker threads, so the GL thread only has to copy the pixels.
+ *
+ * The GL thread takes a pixel buffer from the pool of this encoder with
+ * {@link #acquire()}, fills it and hands it back with
+ * {@link #submit(ByteBuffer, File, Format)}. The workers swizzle and flip the
+ * pixels with bulk copies, write the file and return the buffer to the pool.
+ * The pool bounds the number of frames waiting to be encoded: when it is
+ * empty, {@link #acquire()} either waits for a worker to finish (back-pressure
+ * on the render loop) or returns null, counting the frame as dropped.
+ *
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ */
+public class ImageEncoder {
+    private final static Logger logger = LoggerFactory
+            .getLogger(ImageEncoder.class);
+
+    /** The file formats frames can be encoded to. */
+    public static enum Format {
+        /** Lossless compressed PNG, RGB. */
+        PNG("png"),
+        /** The pixels as they are, BGRA, but with rows top to bottom. */
+        RAW("raw");
+
+        private final String extension;
+
+        private Format(String extension) {
+            this.extension = extension;
+        }
+
+        /**
+         * Getter for the file name extension of this format.
+         *
+         * @return the extension, without a dot.
+         */
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    private final int width, height;
+
+    /** Whether acquire() waits for a free buffer, or drops the frame. */
+    private final boolean blockWhenFull;
+
+    /** The free pixel buffers. */
+    private final BlockingQueue<ByteBuffer> pool;
+
+    private final ThreadPoolExecutor workers;
+
+    /** An image per worker thread, reused for every PNG. */
+    private final ThreadLocal<BufferedImage> images;
+
+    private final AtomicInteger encoded, dropped, failed;
+
+    /**
+     * Creates a new encoder with its own worker threads.
+     *
+     * @param width
+     *            The width of the frames, in pixels.
+     * @param height
+     *            The height of the frames, in pixels.
+     * @param threads
+     *            The number of worker threads.
+     * @param queueCapacity
+     *            The number of frames that may wait for a worker. The pool
+     *            holds this many buffers plus one per worker.
+     * @param blockWhenFull
+     *            true to make {@link #acquire()} wait for a free buffer when
+     *            all are in use, false to drop the frame instead.
+     */
+    public ImageEncoder(int width, int height, int threads, int queueCapacity,
+            boolean blockWhenFull) {
+        this.width = width;
+        this.height = height;
+        this.blockWhenFull = blockWhenFull;
+
+        int buffers = threads + queueCapacity;
+        pool = new ArrayBlockingQueue<ByteBuffer>(buffers);
+        for (int i = 0; i < buffers; i++) {
+            pool.add(Buffers.newDirectByteBuffer(width * height * 4));
+        }
+
+        // Every submitted frame holds a buffer, so the work queue never
+        // holds more than the pool and submissions are never rejected.
+        workers = new ThreadPoolExecutor(threads, threads, 0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(buffers),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "ImageEncoder-"
+                                + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        images = new ThreadLocal<BufferedImage>() {
+            @Override
+            protected BufferedImage initialValue() {
+                return new BufferedImage(ImageEncoder.this.width,
+                        ImageEncoder.this.height, BufferedImage.TYPE_INT_RGB);
+            }
+        };
+
+        encoded = new AtomicInteger();
+        dropped = new AtomicInteger();
+        failed = new AtomicInteger();
+    }
+
+    /**
+     * Takes a free pixel buffer from the pool, to be filled and passed to
+     * {@link #submit(ByteBuffer, File, Format)}, or returned with
+     * {@link #release(ByteBuffer)} if it was not filled after all.
+     *
+     * @return a cleared buffer of width * height * 4 bytes, or null if the
+     *         pool is empty and this encoder drops frames when full.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = null;
+        if (blockWhenFull) {
+            try {
+                buffer = pool.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            buffer = pool.poll();
+        }
+
+        if (buffer == null) {
+            dropped.incrementAndGet();
+            return null;
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns an unused buffer to the pool.
+     *
+     * @param buffer
+     *            A buffer obtained from {@link #acquire()}.
+     */
+    public void release(ByteBuffer buffer) {
+        pool.add(buffer);
+    }
+
+    /**
+     * Queues a filled buffer to be encoded to the given file. The buffer
+     * returns to the pool once the file is written.
+     *
+     * @param buffer
+     *            A buffer obtained from {@link #acquire()}, holding a frame
+     *            in BGRA, rows bottom to top.
+     * @param file
+     *            The file to write to. Missing directories are created.
+     * @param format
+     *            The format to write.
+     */
+    public void submit(final ByteBuffer buffer, final File file,
+            final Format format) {
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(buffer, file, format);
+                    encoded.incrementAndGet();
+                } catch (IOException e) {
+                    failed.incrementAndGet();
+                    logger.error("Failed to write " + file + ": "
+                            + e.getMessage());
+                } finally {
+                    release(buffer);
+                }
+            }
+        });
+    }
+
+    /**
+     * Convenience method for image sequences, names a frame after its
+     * number.
+     *
+     * @param directory
+     *            The directory of the sequence.
+     * @param prefix
+     *            The file name prefix of the sequence.
+     * @param frame
+     *            The number of the frame.
+     * @param format
+     *            The format of the sequence.
+     * @return the file for the frame, for example directory/prefix000042.png.
+     */
+    public static File sequenceFile(File directory, String prefix, int frame,
+            Format format) {
+        return new File(directory, prefix + String.format("%06d", frame) + "."
+                + format.getExtension());
+    }
+
+    private void write(ByteBuffer buffer, File file, Format format)
+            throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+
+        if (format == Format.PNG) {
+            BufferedImage image = images.get();
+            toImage(buffer, width, height, image);
+            if (!ImageIO.write(image, "png", file)) {
+                throw new IOException("No PNG writer available.");
+            }
+        } else {
+            writeRaw(buffer, width, height, file);
+        }
+    }
+
+    /**
+     * Copies a frame read back from OpenGL into an image, flipping it right
+     * side up. Little endian BGRA bytes read as ints are ARGB, so every row
+     * is a single bulk copy.
+     *
+     * @param pixels
+     *            The frame, in BGRA, rows bottom to top.
+     * @param width
+     *            The width of the frame.
+     * @param height
+     *            The height of the frame.
+     * @param image
+     *            The TYPE_INT_RGB or TYPE_INT_ARGB image of the same size to
+     *            copy to.
+     */
+    public static void toImage(ByteBuffer pixels, int width, int height,
+            BufferedImage image) {
+        int[] destination = ((DataBufferInt) image.getRaster().getDataBuffer())
+                .getData();
+
+        IntBuffer argb = pixels.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+                .asIntBuffer();
+        for (int row = 0; row < height; row++) {
+            argb.position(row * width);
+            argb.get(destination, (height - row - 1) * width, width);
+        }
+    }
+
+    private static void writeRaw(ByteBuffer pixels, int width, int height,
+            File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            ByteBuffer row = pixels.duplicate();
+            for (int r = height - 1; r >= 0; r--) {
+                row.limit((r + 1) * width * 4);
+                row.position(r * width * 4);
+                while (row.hasRemaining()) {
+                    channel.write(row);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Getter for the number of frames written so far.
+     *
+     * @return the number of encoded frames.
+     */
+    public int getEncodedCount() {
+        return encoded.get();
+    }
+
+    /**
+     * Getter for the number of frames dropped because the pool was empty.
+     *
+     * @return the number of dropped frames.
+     */
+    public int getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Getter for the number of frames that could not be written.
+     *
+     * @return the number of failed frames.
+     */
+    public int getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Getter for the number of frames waiting for, or being written by, a
+     * worker.
+     *
+     * @return the number of queued frames.
+     */
+    public int getQueuedCount() {
+        return (int) (workers.getTaskCount() - workers.getCompletedTaskCount());
+    }
+
+    /**
+     * Stops accepting frames, and waits for the queued frames to be written.
+     *
+     * @param timeout
+     *            The maximum time to wait, in milliseconds.
+     * @return true if all frames were written, false if the timeout expired
+     *         first.
+     */
+    public boolean shutdown(long timeout) {
+        workers.shutdown();
+        try {
+            return workers.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
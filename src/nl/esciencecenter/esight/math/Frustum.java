@@ -0,0 +1,313 @@
+package nl.esciencecenter.esight.math;
+
+/* Copyright [2013] [Netherlands eScience Center]
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * View frustum, described by six planes, for culling geometry that is not on
+ * screen. The planes are extracted from a (Projection x ModelView) matrix, and
+ * are expressed in the space that the ModelView matrix transforms from. Planes
+ * point inwards, so a point p is inside a plane if dot(plane.xyz, p) + plane.w
+ * >= 0.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ * 
+ */
+public class Frustum {
+    /** Result of a classification: completely outside the frustum. */
+    public static final int OUTSIDE = 0;
+    /** Result of a classification: partially inside the frustum. */
+    public static final int INTERSECTING = 1;
+    /** Result of a classification: completely inside the frustum. */
+    public static final int INSIDE = 2;
+
+    /** Indices of the planes. */
+    public static final int LEFT = 0, RIGHT = 1, BOTTOM = 2, TOP = 3,
+            NEAR = 4, FAR = 5;
+
+    /** The number of planes. */
+    public static final int PLANES = 6;
+
+    /**
+     * The planes, stored as separate arrays per component so the batch tests
+     * work on plain float arrays.
+     */
+    private final float[] a = new float[PLANES];
+    private final float[] b = new float[PLANES];
+    private final float[] c = new float[PLANES];
+    private final float[] d = new float[PLANES];
+
+    /** Scratch storage for the combined matrix. */
+    private final MatF4 scratchMatrix = new MatF4();
+
+    /**
+     * Creates a new frustum. All planes are degenerate, so everything is
+     * considered inside until {@link #set(MatF4)} is called.
+     */
+    public Frustum() {
+    }
+
+    /**
+     * Creates a new frustum from a combined (Projection x ModelView) matrix.
+     * 
+     * @param pmv
+     *            The combined matrix.
+     */
+    public Frustum(MatF4 pmv) {
+        set(pmv);
+    }
+
+    /**
+     * Extracts the planes of the frustum from the given projection and
+     * modelview matrices.
+     * 
+     * @param p
+     *            The projection matrix.
+     * @param mv
+     *            The modelview matrix.
+     * @return this frustum.
+     */
+    public Frustum set(MatF4 p, MatF4 mv) {
+        return set(p.mulInto(mv, scratchMatrix));
+    }
+
+    /**
+     * Extracts the planes of the frustum from the given combined (Projection x
+     * ModelView) matrix.
+     * 
+     * @param pmv
+     *            The combined matrix.
+     * @return this frustum.
+     */
+    public Frustum set(MatF4 pmv) {
+        final float[] m = pmv.m;
+
+        // Each plane is the 4th row plus or minus one of the other rows.
+        setPlane(LEFT, m[12] + m[0], m[13] + m[1], m[14] + m[2], m[15] + m[3]);
+        setPlane(RIGHT, m[12] - m[0], m[13] - m[1], m[14] - m[2], m[15] - m[3]);
+        setPlane(BOTTOM, m[12] + m[4], m[13] + m[5], m[14] + m[6], m[15]
+                + m[7]);
+        setPlane(TOP, m[12] - m[4], m[13] - m[5], m[14] - m[6], m[15] - m[7]);
+        setPlane(NEAR, m[12] + m[8], m[13] + m[9], m[14] + m[10], m[15]
+                + m[11]);
+        setPlane(FAR, m[12] - m[8], m[13] - m[9], m[14] - m[10], m[15]
+                - m[11]);
+
+        return this;
+    }
+
+    private void setPlane(int i, float pa, float pb, float pc, float pd) {
+        float length = (float) Math.sqrt(pa * pa + pb * pb + pc * pc);
+        float invLength = (length == 0f) ? 0f : 1f / length;
+
+        a[i] = pa * invLength;
+        b[i] = pb * invLength;
+        c[i] = pc * invLength;
+        d[i] = pd * invLength;
+    }
+
+    /**
+     * Getter for one of the (normalized) planes.
+     * 
+     * @param i
+     *            The index of the plane, one of {@link #LEFT}, {@link #RIGHT},
+     *            {@link #BOTTOM}, {@link #TOP}, {@link #NEAR} or {@link #FAR}.
+     * @param dest
+     *            The vector to store the plane in, as (normal, distance).
+     * @return The destination vector.
+     */
+    public VecF4 getPlane(int i, VecF4 dest) {
+        return dest.set(a[i], b[i], c[i], d[i]);
+    }
+
+    /**
+     * Tests whether the given point is inside the frustum.
+     * 
+     * @param x
+     *            The x coordinate of the point.
+     * @param y
+     *            The y coordinate of the point.
+     * @param z
+     *            The z coordinate of the point.
+     * @return true if the point is inside.
+     */
+    public boolean containsPoint(float x, float y, float z) {
+        for (int i = 0; i < PLANES; i++) {
+            if (a[i] * x + b[i] * y + c[i] * z + d[i] < 0f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Classifies the given sphere against the frustum.
+     * 
+     * @param x
+     *            The x coordinate of the center.
+     * @param y
+     *            The y coordinate of the center.
+     * @param z
+     *            The z coordinate of the center.
+     * @param radius
+     *            The radius of the sphere.
+     * @return {@link #OUTSIDE}, {@link #INTERSECTING} or {@link #INSIDE}.
+     */
+    public int classifySphere(float x, float y, float z, float radius) {
+        int result = INSIDE;
+        for (int i = 0; i < PLANES; i++) {
+            float distance = a[i] * x + b[i] * y + c[i] * z + d[i];
+            if (distance < -radius) {
+                return OUTSIDE;
+            } else if (distance < radius) {
+                result = INTERSECTING;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Tests whether the given sphere is (partially) inside the frustum.
+     * 
+     * @param center
+     *            The center of the sphere.
+     * @param radius
+     *            The radius of the sphere.
+     * @return true if the sphere is not completely outside.
+     */
+    public boolean intersectsSphere(VecF3 center, float radius) {
+        return classifySphere(center.v[0], center.v[1], center.v[2], radius)
+                != OUTSIDE;
+    }
+
+    /**
+     * Classifies the given axis aligned box against the frustum. This test is
+     * conservative: boxes near a corner of the frustum may be reported as
+     * intersecting while they are actually outside.
+     * 
+     * @param minX
+     *            The minimum x coordinate of the box.
+     * @param minY
+     *            The minimum y coordinate of the box.
+     * @param minZ
+     *            The minimum z coordinate of the box.
+     * @param maxX
+     *            The maximum x coordinate of the box.
+     * @param maxY
+     *            The maximum y coordinate of the box.
+     * @param maxZ
+     *            The maximum z coordinate of the box.
+     * @return {@link #OUTSIDE}, {@link #INTERSECTING} or {@link #INSIDE}.
+     */
+    public int classifyBox(float minX, float minY, float minZ, float maxX,
+            float maxY, float maxZ) {
+        float cx = 0.5f * (minX + maxX);
+        float cy = 0.5f * (minY + maxY);
+        float cz = 0.5f * (minZ + maxZ);
+        float ex = 0.5f * (maxX - minX);
+        float ey = 0.5f * (maxY - minY);
+        float ez = 0.5f * (maxZ - minZ);
+
+        int result = INSIDE;
+        for (int i = 0; i < PLANES; i++) {
+            // Distance of the center, and the projected half size of the box
+            float distance = a[i] * cx + b[i] * cy + c[i] * cz + d[i];
+            float radius = Math.abs(a[i]) * ex + Math.abs(b[i]) * ey
+                    + Math.abs(c[i]) * ez;
+
+            if (distance < -radius) {
+                return OUTSIDE;
+            } else if (distance < radius) {
+                result = INTERSECTING;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Tests whether the given axis aligned box is (partially) inside the
+     * frustum. See
+     * {@link #classifyBox(float, float, float, float, float, float)}.
+     * 
+     * @param min
+     *            The minimum point of the box.
+     * @param max
+     *            The maximum point of the box.
+     * @return true if the box is not completely outside.
+     */
+    public boolean intersectsBox(VecF3 min, VecF3 max) {
+        return classifyBox(min.v[0], min.v[1], min.v[2], max.v[0], max.v[1],
+                max.v[2]) != OUTSIDE;
+    }
+
+    /**
+     * Tests many axis aligned boxes, given as centers and half extents, at
+     * once. The boxes are stored as separate arrays per component, and the
+     * inner loop runs over the boxes without branches so the JIT can
+     * vectorize it.
+     * 
+     * @param centerX
+     *            The x coordinates of the box centers.
+     * @param centerY
+     *            The y coordinates of the box centers.
+     * @param centerZ
+     *            The z coordinates of the box centers.
+     * @param extentX
+     *            The half sizes of the boxes on the x axis.
+     * @param extentY
+     *            The half sizes of the boxes on the y axis.
+     * @param extentZ
+     *            The half sizes of the boxes on the z axis.
+     * @param offset
+     *            The index of the first box to test.
+     * @param count
+     *            The number of boxes to test.
+     * @param visible
+     *            Output array, for every box set to true if it is (partially)
+     *            inside the frustum, false otherwise. Indexed like the input
+     *            arrays.
+     * @return The number of boxes that are (partially) inside.
+     */
+    public int intersectsBoxes(float[] centerX, float[] centerY,
+            float[] centerZ, float[] extentX, float[] extentY,
+            float[] extentZ, int offset, int count, boolean[] visible) {
+        final int end = offset + count;
+        for (int j = offset; j < end; j++) {
+            visible[j] = true;
+        }
+
+        for (int i = 0; i < PLANES; i++) {
+            final float pa = a[i], pb = b[i], pc = c[i], pd = d[i];
+            final float absA = Math.abs(pa), absB = Math.abs(pb), absC = Math
+                    .abs(pc);
+
+            for (int j = offset; j < end; j++) {
+                float distance = pa * centerX[j] + pb * centerY[j] + pc
+                        * centerZ[j] + pd;
+                float radius = absA * extentX[j] + absB * extentY[j] + absC
+                        * extentZ[j];
+                visible[j] &= distance >= -radius;
+            }
+        }
+
+        int visibleCount = 0;
+        for (int j = offset; j < end; j++) {
+            if (visible[j]) {
+                visibleCount++;
+            }
+        }
+        return visibleCount;
+    }
+}
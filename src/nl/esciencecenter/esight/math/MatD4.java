@@ -0,0 +1,215 @@
+package nl.esciencecenter.esight.math;
+
+/* Copyright [2013] [Netherlands eScience Center]
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Double precision counterpart of {@link MatF4}, using the same (row-major)
+ * layout. World transforms are composed in this type and only narrowed to
+ * float after the camera position has been subtracted (see
+ * {@link #toCameraRelative(VecD3, MatF4)}), so large world coordinates do not
+ * cause jitter when zoomed in.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ * 
+ */
+public class MatD4 extends MatrixD {
+    /** The number of elements in this matrix */
+    public static final int SIZE = 16;
+
+    /**
+     * Creates a new identity matrix.
+     */
+    public MatD4() {
+        super(SIZE);
+        setIdentity();
+    }
+
+    /**
+     * Creates a new matrix by copying the given matrix.
+     * 
+     * @param n
+     *            The matrix to be copied.
+     */
+    public MatD4(MatD4 n) {
+        super(SIZE);
+        set(n);
+    }
+
+    /**
+     * Creates a new matrix by widening the given float matrix.
+     * 
+     * @param n
+     *            The matrix to be copied.
+     */
+    public MatD4(MatF4 n) {
+        super(SIZE);
+        set(n);
+    }
+
+    /**
+     * Sets this matrix to identity.
+     * 
+     * @return this matrix.
+     */
+    public MatD4 setIdentity() {
+        for (int i = 0; i < SIZE; i++) {
+            m[i] = (i % 5 == 0) ? 1.0 : 0.0;
+        }
+        return this;
+    }
+
+    /**
+     * Sets this matrix to the values of the given matrix.
+     * 
+     * @param n
+     *            The matrix to copy.
+     * @return this matrix.
+     */
+    public MatD4 set(MatD4 n) {
+        System.arraycopy(n.m, 0, m, 0, SIZE);
+        return this;
+    }
+
+    /**
+     * Sets this matrix to the (widened) values of the given float matrix.
+     * 
+     * @param n
+     *            The matrix to copy.
+     * @return this matrix.
+     */
+    public MatD4 set(MatF4 n) {
+        final float[] a = n.m;
+        for (int i = 0; i < SIZE; i++) {
+            m[i] = a[i];
+        }
+        return this;
+    }
+
+    /**
+     * Sets this matrix to a translation matrix.
+     * 
+     * @param x
+     *            The translation on the x axis.
+     * @param y
+     *            The translation on the y axis.
+     * @param z
+     *            The translation on the z axis.
+     * @return this matrix.
+     */
+    public MatD4 setTranslate(double x, double y, double z) {
+        setIdentity();
+        m[3] = x;
+        m[7] = y;
+        m[11] = z;
+        return this;
+    }
+
+    /**
+     * Sets this matrix to a translation matrix.
+     * 
+     * @param translation
+     *            The translation vector.
+     * @return this matrix.
+     */
+    public MatD4 setTranslate(VecD3 translation) {
+        return setTranslate(translation.v[0], translation.v[1],
+                translation.v[2]);
+    }
+
+    /**
+     * Multiplies this matrix with the given matrix, returning a new matrix.
+     * 
+     * @param n
+     *            The matrix to be multiplied with the current matrix.
+     * @return The new matrix that is the result of the multiplication.
+     */
+    public MatD4 mul(MatD4 n) {
+        return mulInto(n, new MatD4());
+    }
+
+    /**
+     * Multiplies this matrix with the given matrix, storing the result in the
+     * given destination. The destination may be this matrix or n.
+     * 
+     * @param n
+     *            The matrix to be multiplied with the current matrix.
+     * @param dest
+     *            The matrix to store the result in.
+     * @return The destination matrix.
+     */
+    public MatD4 mulInto(MatD4 n, MatD4 dest) {
+        final double[] a = m;
+        final double[] b = n.m;
+
+        double b00 = b[0], b01 = b[1], b02 = b[2], b03 = b[3];
+        double b10 = b[4], b11 = b[5], b12 = b[6], b13 = b[7];
+        double b20 = b[8], b21 = b[9], b22 = b[10], b23 = b[11];
+        double b30 = b[12], b31 = b[13], b32 = b[14], b33 = b[15];
+
+        final double[] d = dest.m;
+        for (int row = 0; row < 16; row += 4) {
+            double a0 = a[row], a1 = a[row + 1];
+            double a2 = a[row + 2], a3 = a[row + 3];
+
+            d[row] = a0 * b00 + a1 * b10 + a2 * b20 + a3 * b30;
+            d[row + 1] = a0 * b01 + a1 * b11 + a2 * b21 + a3 * b31;
+            d[row + 2] = a0 * b02 + a1 * b12 + a2 * b22 + a3 * b32;
+            d[row + 3] = a0 * b03 + a1 * b13 + a2 * b23 + a3 * b33;
+        }
+
+        return dest;
+    }
+
+    /**
+     * Narrows this matrix to float precision, storing it in the given
+     * destination.
+     * 
+     * @param dest
+     *            The matrix to store the result in.
+     * @return The destination matrix.
+     */
+    public MatF4 toMatF4(MatF4 dest) {
+        final float[] d = dest.m;
+        for (int i = 0; i < SIZE; i++) {
+            d[i] = (float) m[i];
+        }
+        return dest;
+    }
+
+    /**
+     * Narrows this (affine, world space) matrix to float precision, with its
+     * translation made relative to the given origin. The subtraction happens
+     * in double precision, so only the (small) eye-relative offset is
+     * narrowed.
+     * 
+     * @param origin
+     *            The world space position (usually the camera) that becomes
+     *            the origin of the result.
+     * @param dest
+     *            The matrix to store the result in.
+     * @return The destination matrix.
+     */
+    public MatF4 toCameraRelative(VecD3 origin, MatF4 dest) {
+        toMatF4(dest);
+
+        final float[] d = dest.m;
+        d[3] = (float) (m[3] - origin.v[0]);
+        d[7] = (float) (m[7] - origin.v[1]);
+        d[11] = (float) (m[11] - origin.v[2]);
+
+        return dest;
+    }
+}
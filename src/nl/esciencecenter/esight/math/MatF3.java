@@ -32,15 +32,18 @@ public class MatF3 extends MatrixF {
      */
     public MatF3() {
         super(SIZE);
-        identity();
+        setIdentity();
     }
 
     /**
-     * Helper method to create a new identity matrix.
+     * Resets this matrix to the identity matrix.
+     * 
+     * @return This matrix.
      */
-    private void identity() {
+    public MatF3 setIdentity() {
         Arrays.fill(m, 0f);
         m[0] = m[4] = m[8] = 1.0f;
+        return this;
     }
 
     /**
@@ -265,6 +268,139 @@ public class MatF3 extends MatrixF {
         return result;
     }
 
+    /**
+     * Copies the values of the given matrix into this matrix.
+     * 
+     * @param n
+     *            The matrix to copy.
+     * @return This matrix.
+     */
+    public MatF3 set(MatF3 n) {
+        System.arraycopy(n.m, 0, m, 0, SIZE);
+        return this;
+    }
+
+    /**
+     * Copies the upper-left 3x3 part of the given matrix into this matrix.
+     * 
+     * @param n
+     *            The matrix to copy from.
+     * @return This matrix.
+     */
+    public MatF3 setUpper3x3(MatF4 n) {
+        m[0] = n.m[0];
+        m[1] = n.m[1];
+        m[2] = n.m[2];
+        m[3] = n.m[4];
+        m[4] = n.m[5];
+        m[5] = n.m[6];
+        m[6] = n.m[8];
+        m[7] = n.m[9];
+        m[8] = n.m[10];
+        return this;
+    }
+
+    /**
+     * Multiplies this matrix with the given matrix, storing the result in the
+     * destination matrix. The destination may be this matrix or the parameter.
+     * 
+     * @param n
+     *            The matrix to be multiplied with the current matrix.
+     * @param dest
+     *            The matrix to store the result in.
+     * @return The destination matrix.
+     */
+    public MatF3 mulInto(MatF3 n, MatF3 dest) {
+        final float[] a = m;
+        final float[] b = n.m;
+
+        float b00 = b[0], b01 = b[1], b02 = b[2];
+        float b10 = b[3], b11 = b[4], b12 = b[5];
+        float b20 = b[6], b21 = b[7], b22 = b[8];
+
+        final float[] d = dest.m;
+        for (int row = 0; row < 9; row += 3) {
+            float a0 = a[row], a1 = a[row + 1], a2 = a[row + 2];
+
+            d[row] = a0 * b00 + a1 * b10 + a2 * b20;
+            d[row + 1] = a0 * b01 + a1 * b11 + a2 * b21;
+            d[row + 2] = a0 * b02 + a1 * b12 + a2 * b22;
+        }
+
+        return dest;
+    }
+
+    /**
+     * Adds the given matrix to this matrix, storing the result in the
+     * destination matrix.
+     * 
+     * @param n
+     *            The matrix to be added to the current matrix.
+     * @param dest
+     *            The matrix to store the result in.
+     * @return The destination matrix.
+     */
+    public MatF3 addInto(MatF3 n, MatF3 dest) {
+        for (int i = 0; i < SIZE; ++i) {
+            dest.m[i] = m[i] + n.m[i];
+        }
+        return dest;
+    }
+
+    /**
+     * Substracts the given matrix from this matrix, storing the result in the
+     * destination matrix.
+     * 
+     * @param n
+     *            The matrix to be substracted from the current matrix.
+     * @param dest
+     *            The matrix to store the result in.
+     * @return The destination matrix.
+     */
+    public MatF3 subInto(MatF3 n, MatF3 dest) {
+        for (int i = 0; i < SIZE; ++i) {
+            dest.m[i] = m[i] - n.m[i];
+        }
+        return dest;
+    }
+
+    /**
+     * Multiplies this matrix with the given scalar, storing the result in the
+     * destination matrix.
+     * 
+     * @param n
+     *            The scalar to be multiplied with the current matrix.
+     * @param dest
+     *            The matrix to store the result in.
+     * @return The destination matrix.
+     */
+    public MatF3 mulInto(float n, MatF3 dest) {
+        for (int i = 0; i < SIZE; ++i) {
+            dest.m[i] = m[i] * n;
+        }
+        return dest;
+    }
+
+    /**
+     * Multiplies this matrix with the given vector, storing the result in the
+     * destination vector. The destination may be the parameter.
+     * 
+     * @param v
+     *            The vector to be multiplied with the current matrix.
+     * @param dest
+     *            The vector to store the result in.
+     * @return The destination vector.
+     */
+    public VecF3 mulInto(VecF3 v, VecF3 dest) {
+        float x = v.v[0], y = v.v[1], z = v.v[2];
+
+        dest.v[0] = m[0] * x + m[1] * y + m[2] * z;
+        dest.v[1] = m[3] * x + m[4] * y + m[5] * z;
+        dest.v[2] = m[6] * x + m[7] * y + m[8] * z;
+
+        return dest;
+    }
+
     @Override
     public MatF3 clone() {
         return new MatF3(this);
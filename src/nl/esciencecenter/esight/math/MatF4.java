@@ -11,18 +11,9 @@ public class MatF4 extends MatrixF {
      */
     public MatF4() {
         super(SIZE);
-        identity();
-    }
-
-    private void identity() {
-        Arrays.fill(m, 0f);
-        m[0] = m[5] = m[10] = m[15] = 1.0f;
+        setIdentity();
     }
 
-    /**
-     * Helper method to create an identity matrix.
-     */
-
     /**
      * Creates a new matrix with all slots filled with the parameter.
      * 
@@ -271,6 +262,414 @@ public class MatF4 extends MatrixF {
                 * v.v[2] + m[15] * v.v[3]);
     }
 
+    /**
+     * Resets this matrix to the identity matrix.
+     * 
+     * @return This matrix.
+     */
+    public MatF4 setIdentity() {
+        Arrays.fill(m, 0f);
+        m[0] = m[5] = m[10] = m[15] = 1.0f;
+        return this;
+    }
+
+    /**
+     * Copies the values of the given matrix into this matrix.
+     * 
+     * @param n
+     *            The matrix to copy.
+     * @return This matrix.
+     */
+    public MatF4 set(MatF4 n) {
+        System.arraycopy(n.m, 0, m, 0, SIZE);
+        return this;
+    }
+
+    /**
+     * Multiplies this matrix with the given matrix, storing the result in the
+     * destination matrix. The destination may be this matrix or the parameter.
+     * 
+     * @param n
+     *            The matrix to be multiplied with the current matrix.
+     * @param dest
+     *            The matrix to store the result in.
+     * @return The destination matrix.
+     */
+    public MatF4 mulInto(MatF4 n, MatF4 dest) {
+        final float[] a = m;
+        final float[] b = n.m;
+
+        float b00 = b[0], b01 = b[1], b02 = b[2], b03 = b[3];
+        float b10 = b[4], b11 = b[5], b12 = b[6], b13 = b[7];
+        float b20 = b[8], b21 = b[9], b22 = b[10], b23 = b[11];
+        float b30 = b[12], b31 = b[13], b32 = b[14], b33 = b[15];
+
+        final float[] d = dest.m;
+        for (int row = 0; row < 16; row += 4) {
+            float a0 = a[row], a1 = a[row + 1], a2 = a[row + 2], a3 = a[row + 3];
+
+            d[row] = a0 * b00 + a1 * b10 + a2 * b20 + a3 * b30;
+            d[row + 1] = a0 * b01 + a1 * b11 + a2 * b21 + a3 * b31;
+            d[row + 2] = a0 * b02 + a1 * b12 + a2 * b22 + a3 * b32;
+            d[row + 3] = a0 * b03 + a1 * b13 + a2 * b23 + a3 * b33;
+        }
+
+        return dest;
+    }
+
+    /**
+     * Adds the given matrix to this matrix, storing the result in the
+     * destination matrix.
+     * 
+     * @param n
+     *            The matrix to be added to the current matrix.
+     * @param dest
+     *            The matrix to store the result in.
+     * @return The destination matrix.
+     */
+    public MatF4 addInto(MatF4 n, MatF4 dest) {
+        for (int i = 0; i < SIZE; ++i) {
+            dest.m[i] = m[i] + n.m[i];
+        }
+        return dest;
+    }
+
+    /**
+     * Substracts the given matrix from this matrix, storing the result in the
+     * destination matrix.
+     * 
+     * @param n
+     *            The matrix to be substracted from the current matrix.
+     * @param dest
+     *            The matrix to store the result in.
+     * @return The destination matrix.
+     */
+    public MatF4 subInto(MatF4 n, MatF4 dest) {
+        for (int i = 0; i < SIZE; ++i) {
+            dest.m[i] = m[i] - n.m[i];
+        }
+        return dest;
+    }
+
+    /**
+     * Multiplies this matrix with the given scalar, storing the result in the
+     * destination matrix.
+     * 
+     * @param n
+     *            The scalar to be multiplied with the current matrix.
+     * @param dest
+     *            The matrix to store the result in.
+     * @return The destination matrix.
+     */
+    public MatF4 mulInto(float n, MatF4 dest) {
+        for (int i = 0; i < SIZE; ++i) {
+            dest.m[i] = m[i] * n;
+        }
+        return dest;
+    }
+
+    /**
+     * Multiplies this matrix with the given vector, storing the result in the
+     * destination vector. The destination may be the parameter.
+     * 
+     * @param v
+     *            The vector to be multiplied with the current matrix.
+     * @param dest
+     *            The vector to store the result in.
+     * @return The destination vector.
+     */
+    public VecF4 mulInto(VecF4 v, VecF4 dest) {
+        float x = v.v[0], y = v.v[1], z = v.v[2], w = v.v[3];
+
+        dest.v[0] = m[0] * x + m[1] * y + m[2] * z + m[3] * w;
+        dest.v[1] = m[4] * x + m[5] * y + m[6] * z + m[7] * w;
+        dest.v[2] = m[8] * x + m[9] * y + m[10] * z + m[11] * w;
+        dest.v[3] = m[12] * x + m[13] * y + m[14] * z + m[15] * w;
+
+        return dest;
+    }
+
+    /**
+     * Turns this matrix into a translation matrix.
+     * 
+     * @param x
+     *            The x translation
+     * @param y
+     *            The y translation
+     * @param z
+     *            The z translation
+     * @return This matrix.
+     */
+    public MatF4 setTranslate(float x, float y, float z) {
+        setIdentity();
+        m[3] = x;
+        m[7] = y;
+        m[11] = z;
+        return this;
+    }
+
+    /**
+     * Turns this matrix into a translation matrix.
+     * 
+     * @param vec
+     *            The vector with which we want to translate
+     * @return This matrix.
+     */
+    public MatF4 setTranslate(VecF3 vec) {
+        return setTranslate(vec.v[0], vec.v[1], vec.v[2]);
+    }
+
+    /**
+     * Turns this matrix into a scaling matrix.
+     * 
+     * @param x
+     *            The x scale
+     * @param y
+     *            The y scale
+     * @param z
+     *            The z scale
+     * @return This matrix.
+     */
+    public MatF4 setScale(float x, float y, float z) {
+        setIdentity();
+        m[0] = x;
+        m[5] = y;
+        m[10] = z;
+        return this;
+    }
+
+    /**
+     * Turns this matrix into a uniform scaling matrix.
+     * 
+     * @param scale
+     *            The uniform scale
+     * @return This matrix.
+     */
+    public MatF4 setScale(float scale) {
+        return setScale(scale, scale, scale);
+    }
+
+    /**
+     * Turns this matrix into a matrix describing a rotation around the x-axis.
+     * 
+     * @param angleDeg
+     *            The rotation angle, in degrees
+     * @return This matrix.
+     */
+    public MatF4 setRotationX(float angleDeg) {
+        double angleRad = MatrixFMath.degreesToRadians * angleDeg;
+        float ca = (float) Math.cos(angleRad);
+        float sa = (float) Math.sin(angleRad);
+
+        setIdentity();
+        m[5] = ca;
+        m[6] = -sa;
+        m[9] = sa;
+        m[10] = ca;
+        return this;
+    }
+
+    /**
+     * Turns this matrix into a matrix describing a rotation around the y-axis.
+     * 
+     * @param angleDeg
+     *            The rotation angle, in degrees
+     * @return This matrix.
+     */
+    public MatF4 setRotationY(float angleDeg) {
+        double angleRad = MatrixFMath.degreesToRadians * angleDeg;
+        float ca = (float) Math.cos(angleRad);
+        float sa = (float) Math.sin(angleRad);
+
+        setIdentity();
+        m[0] = ca;
+        m[2] = sa;
+        m[8] = -sa;
+        m[10] = ca;
+        return this;
+    }
+
+    /**
+     * Turns this matrix into a matrix describing a rotation around the z-axis.
+     * 
+     * @param angleDeg
+     *            The rotation angle, in degrees
+     * @return This matrix.
+     */
+    public MatF4 setRotationZ(float angleDeg) {
+        double angleRad = MatrixFMath.degreesToRadians * angleDeg;
+        float ca = (float) Math.cos(angleRad);
+        float sa = (float) Math.sin(angleRad);
+
+        setIdentity();
+        m[0] = ca;
+        m[1] = -sa;
+        m[4] = sa;
+        m[5] = ca;
+        return this;
+    }
+
+    /**
+     * Turns this matrix into a matrix describing a rotation around an
+     * arbitrary axis.
+     * 
+     * @param angleDeg
+     *            The rotation angle, in degrees
+     * @param x
+     *            The x component of the vector that describes the axis to
+     *            rotate around
+     * @param y
+     *            The y component of the vector that describes the axis to
+     *            rotate around
+     * @param z
+     *            The z component of the vector that describes the axis to
+     *            rotate around
+     * @return This matrix.
+     */
+    public MatF4 setRotate(float angleDeg, float x, float y, float z) {
+        double angleRad = MatrixFMath.degreesToRadians * angleDeg;
+        float c = (float) Math.cos(angleRad);
+        float s = (float) Math.sin(angleRad);
+        float t = 1 - c;
+
+        float length = (float) Math.sqrt(x * x + y * y + z * z);
+        if (length == 0f) {
+            x = y = z = 0f;
+        } else {
+            float invLength = 1f / length;
+            x *= invLength;
+            y *= invLength;
+            z *= invLength;
+        }
+
+        m[0] = t * x * x + c;
+        m[1] = t * x * y - s * z;
+        m[2] = t * x * z + s * y;
+        m[3] = 0f;
+
+        m[4] = t * x * y + s * z;
+        m[5] = t * y * y + c;
+        m[6] = t * y * z - s * x;
+        m[7] = 0f;
+
+        m[8] = t * x * z - s * y;
+        m[9] = t * y * z + s * x;
+        m[10] = t * z * z + c;
+        m[11] = 0f;
+
+        m[12] = 0f;
+        m[13] = 0f;
+        m[14] = 0f;
+        m[15] = 1f;
+        return this;
+    }
+
+    /**
+     * Turns this matrix into a matrix describing a rotation around an
+     * arbitrary axis.
+     * 
+     * @param angleDeg
+     *            The rotation angle, in degrees
+     * @param axis
+     *            The axis to rotate around
+     * @return This matrix.
+     */
+    public MatF4 setRotate(float angleDeg, VecF3 axis) {
+        return setRotate(angleDeg, axis.v[0], axis.v[1], axis.v[2]);
+    }
+
+    /**
+     * Turns this matrix into a viewing matrix that looks from the eye position
+     * at the indicated point. This is the in-place equivalent of
+     * {@link MatrixFMath#lookAt(VecF4, VecF4, VecF4)}.
+     * 
+     * @param eye
+     *            The coordinates of the eye (camera)
+     * @param at
+     *            The coordinates of the object we want to look at
+     * @param up
+     *            The vector indicating the up direction for the camera
+     * @return This matrix.
+     */
+    public MatF4 setLookAt(VecF4 eye, VecF4 at, VecF4 up) {
+        return setLookAt(eye.v[0], eye.v[1], eye.v[2], at.v[0], at.v[1],
+                at.v[2], up.v[0], up.v[1], up.v[2]);
+    }
+
+    /**
+     * Turns this matrix into a viewing matrix that looks from the eye position
+     * at the indicated point.
+     * 
+     * @param eyeX
+     *            The x coordinate of the eye (camera)
+     * @param eyeY
+     *            The y coordinate of the eye (camera)
+     * @param eyeZ
+     *            The z coordinate of the eye (camera)
+     * @param atX
+     *            The x coordinate of the object we want to look at
+     * @param atY
+     *            The y coordinate of the object we want to look at
+     * @param atZ
+     *            The z coordinate of the object we want to look at
+     * @param upX
+     *            The x component of the up direction for the camera
+     * @param upY
+     *            The y component of the up direction for the camera
+     * @param upZ
+     *            The z component of the up direction for the camera
+     * @return This matrix.
+     */
+    public MatF4 setLookAt(float eyeX, float eyeY, float eyeZ, float atX,
+            float atY, float atZ, float upX, float upY, float upZ) {
+        // n = normalize(eye - at)
+        float nx = eyeX - atX, ny = eyeY - atY, nz = eyeZ - atZ;
+        float len = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+        float inv = (len == 0f) ? 0f : 1f / len;
+        nx *= inv;
+        ny *= inv;
+        nz *= inv;
+
+        // u = normalize(up x n)
+        float ux = upY * nz - upZ * ny, uy = upZ * nx - upX * nz, uz = upX * ny
+                - upY * nx;
+        len = (float) Math.sqrt(ux * ux + uy * uy + uz * uz);
+        inv = (len == 0f) ? 0f : 1f / len;
+        ux *= inv;
+        uy *= inv;
+        uz *= inv;
+
+        // v = normalize(n x u)
+        float vx = ny * uz - nz * uy, vy = nz * ux - nx * uz, vz = nx * uy - ny
+                * ux;
+        len = (float) Math.sqrt(vx * vx + vy * vy + vz * vz);
+        inv = (len == 0f) ? 0f : 1f / len;
+        vx *= inv;
+        vy *= inv;
+        vz *= inv;
+
+        m[0] = ux;
+        m[1] = uy;
+        m[2] = uz;
+        m[3] = -(ux * eyeX + uy * eyeY + uz * eyeZ);
+
+        m[4] = vx;
+        m[5] = vy;
+        m[6] = vz;
+        m[7] = -(vx * eyeX + vy * eyeY + vz * eyeZ);
+
+        m[8] = nx;
+        m[9] = ny;
+        m[10] = nz;
+        m[11] = -(nx * eyeX + ny * eyeY + nz * eyeZ);
+
+        m[12] = 0f;
+        m[13] = 0f;
+        m[14] = 0f;
+        m[15] = 1f;
+        return this;
+    }
+
     @Override
     public MatF4 clone() {
         return new MatF4(this);
@@ -1,11 +1,21 @@
 package nl.esciencecenter.esight.math;
 
+import java.nio.FloatBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 import nl.esciencecenter.esight.exceptions.InverseNotAvailableException;
 
 public class MatrixFMath {
     public static double degreesToRadians = Math.PI / 180.0;
     public static float EPSILON = 0.0000001f;
 
+    /**
+     * The number of points below which the parallel transform methods do not
+     * split their work any further.
+     */
+    public static int PARALLEL_TRANSFORM_THRESHOLD = 16384;
+
     /**
      * Get the normal matrix from the modelview matrix.
      * 
@@ -14,18 +24,52 @@ public class MatrixFMath {
      * @return The Normal Matrix for this Modelview Matrix.
      */
     public static MatF3 getNormalMatrix(MatF4 mv) {
-        MatF3 upper3x3 = new MatF3(mv.get(0), mv.get(1), mv.get(2), mv.get(4),
-                mv.get(5), mv.get(6), mv.get(8), mv.get(9), mv.get(10));
+        return getNormalMatrix(mv, new MatF3());
+    }
+
+    /**
+     * Get the normal matrix from the modelview matrix, storing it in the given
+     * destination. The normal matrix (the transposed inverse of the upper 3x3
+     * part) is computed directly from the cofactors, without creating the
+     * inverse first. If the upper 3x3 part is not invertible, the destination
+     * is set to identity.
+     * 
+     * @param mv
+     *            The Modelview matrix to extract the Normal Matrix from.
+     * @param dest
+     *            The matrix to store the result in.
+     * @return The destination matrix.
+     */
+    public static MatF3 getNormalMatrix(MatF4 mv, MatF3 dest) {
+        final float[] a = mv.m;
+        float a00 = a[0], a01 = a[1], a02 = a[2];
+        float a10 = a[4], a11 = a[5], a12 = a[6];
+        float a20 = a[8], a21 = a[9], a22 = a[10];
 
-        MatF3 inverse;
-        try {
-            inverse = inverse(upper3x3);
-            MatF3 transpose = transpose(inverse);
+        float c00 = a11 * a22 - a12 * a21;
+        float c01 = a12 * a20 - a10 * a22;
+        float c02 = a10 * a21 - a11 * a20;
 
-            return transpose;
-        } catch (InverseNotAvailableException e) {
-            return new MatF3();
+        float det = a00 * c00 + a01 * c01 + a02 * c02;
+        if (det == 0f) {
+            return dest.setIdentity();
         }
+        float invDet = 1f / det;
+
+        // The transposed inverse is the cofactor matrix divided by the
+        // determinant.
+        final float[] d = dest.m;
+        d[0] = c00 * invDet;
+        d[1] = c01 * invDet;
+        d[2] = c02 * invDet;
+        d[3] = (a02 * a21 - a01 * a22) * invDet;
+        d[4] = (a00 * a22 - a02 * a20) * invDet;
+        d[5] = (a01 * a20 - a00 * a21) * invDet;
+        d[6] = (a01 * a12 - a02 * a11) * invDet;
+        d[7] = (a02 * a10 - a00 * a12) * invDet;
+        d[8] = (a00 * a11 - a01 * a10) * invDet;
+
+        return dest;
     }
 
     /**
@@ -156,15 +200,7 @@ public class MatrixFMath {
      *         perspective matrix
      */
     public static MatF4 lookAt(VecF4 eye, VecF4 at, VecF4 up) {
-        VecF4 eyeneg = eye.clone().neg();
-
-        VecF4 n = VectorFMath.normalize(eye.sub(at));
-        VecF4 u = VectorFMath.normalize(VectorFMath.cross(up, n));
-        VecF4 v = VectorFMath.normalize(VectorFMath.cross(n, u));
-        VecF4 t = new VecF4(0, 0, 0, 1);
-        MatF4 c = new MatF4(u, v, n, t);
-
-        return c.mul(translate(eyeneg));
+        return new MatF4().setLookAt(eye, at, up);
     }
 
     /**
@@ -179,8 +215,7 @@ public class MatrixFMath {
      * @return A translation matrix
      */
     public static MatF4 translate(float x, float y, float z) {
-        MatF4 m = new MatF4(1, 0, 0, x, 0, 1, 0, y, 0, 0, 1, z, 0, 0, 0, 1);
-        return m;
+        return new MatF4().setTranslate(x, y, z);
     }
 
     /**
@@ -217,8 +252,7 @@ public class MatrixFMath {
      * @return A scaling matrix
      */
     public static MatF4 scale(float x, float y, float z) {
-        MatF4 m = new MatF4(x, 0, 0, 0, 0, y, 0, 0, 0, 0, z, 0, 0, 0, 0, 1);
-        return m;
+        return new MatF4().setScale(x, y, z);
     }
 
     /**
@@ -263,12 +297,7 @@ public class MatrixFMath {
      * @return The rotation matrix
      */
     public static MatF4 rotationX(float angleDeg) {
-        double angleRad = degreesToRadians * angleDeg;
-        float ca = (float) Math.cos(angleRad);
-        float sa = (float) Math.sin(angleRad);
-
-        MatF4 m = new MatF4(1, 0, 0, 0, 0, ca, -sa, 0, 0, sa, ca, 0, 0, 0, 0, 1);
-        return m;
+        return new MatF4().setRotationX(angleDeg);
     }
 
     /**
@@ -280,13 +309,7 @@ public class MatrixFMath {
      * @return The rotation matrix
      */
     public static MatF4 rotationY(float angleDeg) {
-        double angleRad = degreesToRadians * angleDeg;
-        float ca = (float) Math.cos(angleRad);
-        float sa = (float) Math.sin(angleRad);
-
-        MatF4 m = new MatF4(ca, 0, sa, 0, 0, 1, 0, 0, -sa, 0, ca, 0, 0, 0, 0, 1);
-
-        return m;
+        return new MatF4().setRotationY(angleDeg);
     }
 
     /**
@@ -298,21 +321,7 @@ public class MatrixFMath {
      * @return The rotation matrix
      */
     public static MatF4 rotationZ(float angleDeg) {
-        double angleRad = degreesToRadians * angleDeg;
-        float ca = (float) Math.cos(angleRad);
-        float sa = (float) Math.sin(angleRad);
-
-        MatF4 m = new MatF4(ca, -sa, 0, 0, sa, ca, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1);
-
-        // System.err.println("------a------");
-        // System.err.println();
-        // System.err.println("------b------");
-        // System.err.println();
-        // System.err.println("------result------");
-        // System.err.println(m);
-        // System.err.println("-------------");
-
-        return m;
+        return new MatF4().setRotationZ(angleDeg);
     }
 
     /**
@@ -333,24 +342,7 @@ public class MatrixFMath {
      * @return The rotation matrix
      */
     public static MatF4 rotate(float angleDeg, float x, float y, float z) {
-        double angleRad = degreesToRadians * angleDeg;
-        float c = (float) Math.cos(angleRad);
-        float s = (float) Math.sin(angleRad);
-        float t = 1 - c;
-
-        VecF3 n = VectorFMath.normalize(new VecF3(x, y, z));
-        x = n.v[0];
-        y = n.v[1];
-        z = n.v[2];
-
-        MatF4 R = new MatF4(t * x * x + c, t * x * y - s * z,
-                t * x * z + s * y, 0f, t * x * y + s * z, t * y * y + c, t * y
-                        * z - s * x, 0f, t * x * z - s * y, t * y * z + s * x,
-                t * z * z + c, 0f, 0f, 0f, 0f, 1f
-
-        );
-
-        return R;
+        return new MatF4().setRotate(angleDeg, x, y, z);
     }
 
     /**
@@ -404,11 +396,11 @@ public class MatrixFMath {
      * @return the determinant
      */
     public static float determinant(MatF3 m) {
-        float minor00 = determinant(exclude(m, 0, 0));
-        float minor01 = determinant(exclude(m, 0, 1));
-        float minor02 = determinant(exclude(m, 0, 2));
+        final float[] a = m.m;
 
-        return m.m[0] * minor00 - m.m[3] * minor01 + m.m[6] * minor02;
+        return a[0] * (a[4] * a[8] - a[5] * a[7]) - a[1]
+                * (a[3] * a[8] - a[5] * a[6]) + a[2]
+                * (a[3] * a[7] - a[4] * a[6]);
     }
 
     /**
@@ -419,13 +411,24 @@ public class MatrixFMath {
      * @return the determinant
      */
     public static float determinant(MatF4 m) {
-        float minor00 = determinant(exclude(m, 0, 0));
-        float minor01 = determinant(exclude(m, 0, 1));
-        float minor02 = determinant(exclude(m, 0, 2));
-        float minor03 = determinant(exclude(m, 0, 3));
-
-        return m.m[0] * minor00 - m.m[4] * minor01 + m.m[8] * minor02 + m.m[12]
-                * minor03;
+        final float[] a = m.m;
+
+        // 2x2 sub-determinants of the upper two and lower two rows
+        float s0 = a[0] * a[5] - a[4] * a[1];
+        float s1 = a[0] * a[6] - a[4] * a[2];
+        float s2 = a[0] * a[7] - a[4] * a[3];
+        float s3 = a[1] * a[6] - a[5] * a[2];
+        float s4 = a[1] * a[7] - a[5] * a[3];
+        float s5 = a[2] * a[7] - a[6] * a[3];
+
+        float c5 = a[10] * a[15] - a[14] * a[11];
+        float c4 = a[9] * a[15] - a[13] * a[11];
+        float c3 = a[9] * a[14] - a[13] * a[10];
+        float c2 = a[8] * a[15] - a[12] * a[11];
+        float c1 = a[8] * a[14] - a[12] * a[10];
+        float c0 = a[8] * a[13] - a[12] * a[9];
+
+        return s0 * c5 - s1 * c4 + s2 * c3 + s3 * c2 - s4 * c1 + s5 * c0;
     }
 
     /**
@@ -700,16 +703,48 @@ public class MatrixFMath {
      * @return the inverse matrix
      */
     public static MatF3 inverse(MatF3 m) throws InverseNotAvailableException {
-        float det = determinant(m);
+        return inverse(m, new MatF3());
+    }
+
+    /**
+     * Get the inverse matrix of the given matrix, storing it in the given
+     * destination. The destination may be the input matrix.
+     * 
+     * @param m
+     *            the input matrix
+     * @param dest
+     *            the matrix to store the result in
+     * @return the destination matrix
+     */
+    public static MatF3 inverse(MatF3 m, MatF3 dest)
+            throws InverseNotAvailableException {
+        final float[] a = m.m;
+        float a00 = a[0], a01 = a[1], a02 = a[2];
+        float a10 = a[3], a11 = a[4], a12 = a[5];
+        float a20 = a[6], a21 = a[7], a22 = a[8];
+
+        float c00 = a11 * a22 - a12 * a21;
+        float c10 = a12 * a20 - a10 * a22;
+        float c20 = a10 * a21 - a11 * a20;
+
+        float det = a00 * c00 + a01 * c10 + a02 * c20;
         if (det == 0f) {
             throw new InverseNotAvailableException("Determinant 0");
         }
-
-        MatF3 adj = adjoint(m);
-
-        MatF3 inverse = adj.mul(1f / det);
-
-        return inverse;
+        float invDet = 1f / det;
+
+        final float[] d = dest.m;
+        d[0] = c00 * invDet;
+        d[1] = (a02 * a21 - a01 * a22) * invDet;
+        d[2] = (a01 * a12 - a02 * a11) * invDet;
+        d[3] = c10 * invDet;
+        d[4] = (a00 * a22 - a02 * a20) * invDet;
+        d[5] = (a02 * a10 - a00 * a12) * invDet;
+        d[6] = c20 * invDet;
+        d[7] = (a01 * a20 - a00 * a21) * invDet;
+        d[8] = (a00 * a11 - a01 * a10) * invDet;
+
+        return dest;
     }
 
     /**
@@ -720,15 +755,403 @@ public class MatrixFMath {
      * @return the inverse matrix
      */
     public static MatF4 inverse(MatF4 m) throws InverseNotAvailableException {
-        float det = determinant(m);
+        return inverse(m, new MatF4());
+    }
+
+    /**
+     * Get the inverse matrix of the given matrix, storing it in the given
+     * destination. The destination may be the input matrix. Affine matrices
+     * (with a bottom row of 0,0,0,1) take the faster path of
+     * {@link #affineInverse(MatF4, MatF4)}.
+     * 
+     * @param m
+     *            the input matrix
+     * @param dest
+     *            the matrix to store the result in
+     * @return the destination matrix
+     */
+    public static MatF4 inverse(MatF4 m, MatF4 dest)
+            throws InverseNotAvailableException {
+        if (isAffine(m)) {
+            return affineInverse(m, dest);
+        }
+
+        final float[] a = m.m;
+        float a00 = a[0], a01 = a[1], a02 = a[2], a03 = a[3];
+        float a10 = a[4], a11 = a[5], a12 = a[6], a13 = a[7];
+        float a20 = a[8], a21 = a[9], a22 = a[10], a23 = a[11];
+        float a30 = a[12], a31 = a[13], a32 = a[14], a33 = a[15];
+
+        // 2x2 sub-determinants of the upper two and lower two rows
+        float s0 = a00 * a11 - a10 * a01;
+        float s1 = a00 * a12 - a10 * a02;
+        float s2 = a00 * a13 - a10 * a03;
+        float s3 = a01 * a12 - a11 * a02;
+        float s4 = a01 * a13 - a11 * a03;
+        float s5 = a02 * a13 - a12 * a03;
+
+        float c5 = a22 * a33 - a32 * a23;
+        float c4 = a21 * a33 - a31 * a23;
+        float c3 = a21 * a32 - a31 * a22;
+        float c2 = a20 * a33 - a30 * a23;
+        float c1 = a20 * a32 - a30 * a22;
+        float c0 = a20 * a31 - a30 * a21;
+
+        float det = s0 * c5 - s1 * c4 + s2 * c3 + s3 * c2 - s4 * c1 + s5 * c0;
+        if (det == 0f) {
+            throw new InverseNotAvailableException("Determinant 0");
+        }
+        float invDet = 1f / det;
+
+        final float[] d = dest.m;
+        d[0] = (a11 * c5 - a12 * c4 + a13 * c3) * invDet;
+        d[1] = (-a01 * c5 + a02 * c4 - a03 * c3) * invDet;
+        d[2] = (a31 * s5 - a32 * s4 + a33 * s3) * invDet;
+        d[3] = (-a21 * s5 + a22 * s4 - a23 * s3) * invDet;
+
+        d[4] = (-a10 * c5 + a12 * c2 - a13 * c1) * invDet;
+        d[5] = (a00 * c5 - a02 * c2 + a03 * c1) * invDet;
+        d[6] = (-a30 * s5 + a32 * s2 - a33 * s1) * invDet;
+        d[7] = (a20 * s5 - a22 * s2 + a23 * s1) * invDet;
+
+        d[8] = (a10 * c4 - a11 * c2 + a13 * c0) * invDet;
+        d[9] = (-a00 * c4 + a01 * c2 - a03 * c0) * invDet;
+        d[10] = (a30 * s4 - a31 * s2 + a33 * s0) * invDet;
+        d[11] = (-a20 * s4 + a21 * s2 - a23 * s0) * invDet;
+
+        d[12] = (-a10 * c3 + a11 * c1 - a12 * c0) * invDet;
+        d[13] = (a00 * c3 - a01 * c1 + a02 * c0) * invDet;
+        d[14] = (-a30 * s3 + a31 * s1 - a32 * s0) * invDet;
+        d[15] = (a20 * s3 - a21 * s1 + a22 * s0) * invDet;
+
+        return dest;
+    }
+
+    /**
+     * Checks whether the given matrix is affine, i.e. its bottom row is
+     * 0,0,0,1. Rotation, scale and translation matrices (and their products)
+     * are affine, perspective matrices are not.
+     * 
+     * @param m
+     *            the input matrix
+     * @return true if the matrix is affine.
+     */
+    public static boolean isAffine(MatF4 m) {
+        return m.m[12] == 0f && m.m[13] == 0f && m.m[14] == 0f
+                && m.m[15] == 1f;
+    }
+
+    /**
+     * Get the inverse matrix of the given affine matrix (see
+     * {@link #isAffine(MatF4)}), storing it in the given destination. Only the
+     * upper 3x3 part is inverted, the translation is derived from it. The
+     * destination may be the input matrix. The result is undefined for
+     * matrices that are not affine.
+     * 
+     * @param m
+     *            the input matrix
+     * @param dest
+     *            the matrix to store the result in
+     * @return the destination matrix
+     */
+    public static MatF4 affineInverse(MatF4 m, MatF4 dest)
+            throws InverseNotAvailableException {
+        final float[] a = m.m;
+        float a00 = a[0], a01 = a[1], a02 = a[2], tx = a[3];
+        float a10 = a[4], a11 = a[5], a12 = a[6], ty = a[7];
+        float a20 = a[8], a21 = a[9], a22 = a[10], tz = a[11];
+
+        float c00 = a11 * a22 - a12 * a21;
+        float c10 = a12 * a20 - a10 * a22;
+        float c20 = a10 * a21 - a11 * a20;
+
+        float det = a00 * c00 + a01 * c10 + a02 * c20;
         if (det == 0f) {
             throw new InverseNotAvailableException("Determinant 0");
         }
+        float invDet = 1f / det;
+
+        float i00 = c00 * invDet;
+        float i01 = (a02 * a21 - a01 * a22) * invDet;
+        float i02 = (a01 * a12 - a02 * a11) * invDet;
+        float i10 = c10 * invDet;
+        float i11 = (a00 * a22 - a02 * a20) * invDet;
+        float i12 = (a02 * a10 - a00 * a12) * invDet;
+        float i20 = c20 * invDet;
+        float i21 = (a01 * a20 - a00 * a21) * invDet;
+        float i22 = (a00 * a11 - a01 * a10) * invDet;
+
+        final float[] d = dest.m;
+        d[0] = i00;
+        d[1] = i01;
+        d[2] = i02;
+        d[3] = -(i00 * tx + i01 * ty + i02 * tz);
+
+        d[4] = i10;
+        d[5] = i11;
+        d[6] = i12;
+        d[7] = -(i10 * tx + i11 * ty + i12 * tz);
+
+        d[8] = i20;
+        d[9] = i21;
+        d[10] = i22;
+        d[11] = -(i20 * tx + i21 * ty + i22 * tz);
+
+        d[12] = 0f;
+        d[13] = 0f;
+        d[14] = 0f;
+        d[15] = 1f;
+
+        return dest;
+    }
 
-        MatF4 adj = adjoint(m);
+    /**
+     * Transforms a batch of points, stored as consecutive x,y,z,w values, with
+     * the given matrix. No objects are created per point. The source and
+     * destination may be the same array, with the same offset.
+     * 
+     * @param m
+     *            The matrix to transform the points with.
+     * @param src
+     *            The source array of x,y,z,w values.
+     * @param srcOffset
+     *            The index of the first value to read from the source.
+     * @param dest
+     *            The destination array for the transformed x,y,z,w values.
+     * @param destOffset
+     *            The index of the first value to write in the destination.
+     * @param count
+     *            The number of points to transform.
+     */
+    public static void transformPoints(MatF4 m, float[] src, int srcOffset,
+            float[] dest, int destOffset, int count) {
+        final float[] a = m.m;
+        final float m00 = a[0], m01 = a[1], m02 = a[2], m03 = a[3];
+        final float m10 = a[4], m11 = a[5], m12 = a[6], m13 = a[7];
+        final float m20 = a[8], m21 = a[9], m22 = a[10], m23 = a[11];
+        final float m30 = a[12], m31 = a[13], m32 = a[14], m33 = a[15];
+
+        int s = srcOffset;
+        int d = destOffset;
+        for (int i = 0; i < count; i++, s += 4, d += 4) {
+            float x = src[s], y = src[s + 1], z = src[s + 2], w = src[s + 3];
+
+            dest[d] = m00 * x + m01 * y + m02 * z + m03 * w;
+            dest[d + 1] = m10 * x + m11 * y + m12 * z + m13 * w;
+            dest[d + 2] = m20 * x + m21 * y + m22 * z + m23 * w;
+            dest[d + 3] = m30 * x + m31 * y + m32 * z + m33 * w;
+        }
+    }
 
-        MatF4 inverse = adj.mul(1f / det);
+    /**
+     * Transforms a batch of points, stored as consecutive x,y,z,w values, with
+     * the given matrix. The positions of the buffers are not changed; values
+     * are read and written from index 0. The source and destination may be
+     * the same buffer.
+     * 
+     * @param m
+     *            The matrix to transform the points with.
+     * @param src
+     *            The source buffer of x,y,z,w values.
+     * @param dest
+     *            The destination buffer for the transformed x,y,z,w values.
+     * @param count
+     *            The number of points to transform.
+     */
+    public static void transformPoints(MatF4 m, FloatBuffer src,
+            FloatBuffer dest, int count) {
+        if (src.hasArray() && dest.hasArray()) {
+            transformPoints(m, src.array(), src.arrayOffset(), dest.array(),
+                    dest.arrayOffset(), count);
+            return;
+        }
 
-        return inverse;
+        final float[] a = m.m;
+        final float m00 = a[0], m01 = a[1], m02 = a[2], m03 = a[3];
+        final float m10 = a[4], m11 = a[5], m12 = a[6], m13 = a[7];
+        final float m20 = a[8], m21 = a[9], m22 = a[10], m23 = a[11];
+        final float m30 = a[12], m31 = a[13], m32 = a[14], m33 = a[15];
+
+        for (int i = 0, s = 0; i < count; i++, s += 4) {
+            float x = src.get(s), y = src.get(s + 1), z = src.get(s + 2), w = src
+                    .get(s + 3);
+
+            dest.put(s, m00 * x + m01 * y + m02 * z + m03 * w);
+            dest.put(s + 1, m10 * x + m11 * y + m12 * z + m13 * w);
+            dest.put(s + 2, m20 * x + m21 * y + m22 * z + m23 * w);
+            dest.put(s + 3, m30 * x + m31 * y + m32 * z + m33 * w);
+        }
+    }
+
+    /**
+     * Transforms a batch of points stored as a structure of arrays (one array
+     * per coordinate, w is assumed to be 1). The loops in this method have no
+     * dependencies between iterations, which allows the JIT compiler to use
+     * SIMD instructions for them. The destination arrays may be the source
+     * arrays.
+     * 
+     * @param m
+     *            The matrix to transform the points with.
+     * @param xs
+     *            The x coordinates of the points.
+     * @param ys
+     *            The y coordinates of the points.
+     * @param zs
+     *            The z coordinates of the points.
+     * @param destXs
+     *            The destination for the transformed x coordinates.
+     * @param destYs
+     *            The destination for the transformed y coordinates.
+     * @param destZs
+     *            The destination for the transformed z coordinates.
+     * @param offset
+     *            The index of the first point to transform.
+     * @param count
+     *            The number of points to transform.
+     */
+    public static void transformPoints(MatF4 m, float[] xs, float[] ys,
+            float[] zs, float[] destXs, float[] destYs, float[] destZs,
+            int offset, int count) {
+        final float[] a = m.m;
+        final float m00 = a[0], m01 = a[1], m02 = a[2], m03 = a[3];
+        final float m10 = a[4], m11 = a[5], m12 = a[6], m13 = a[7];
+        final float m20 = a[8], m21 = a[9], m22 = a[10], m23 = a[11];
+
+        final int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            float x = xs[i], y = ys[i], z = zs[i];
+
+            destXs[i] = m00 * x + m01 * y + m02 * z + m03;
+            destYs[i] = m10 * x + m11 * y + m12 * z + m13;
+            destZs[i] = m20 * x + m21 * y + m22 * z + m23;
+        }
+    }
+
+    /**
+     * Transforms a batch of normals, stored as consecutive x,y,z values, with
+     * the given normal matrix (see {@link #getNormalMatrix(MatF4)}). The
+     * results are not re-normalized. The source and destination may be the
+     * same array, with the same offset.
+     * 
+     * @param normalMatrix
+     *            The normal matrix to transform the normals with.
+     * @param src
+     *            The source array of x,y,z values.
+     * @param srcOffset
+     *            The index of the first value to read from the source.
+     * @param dest
+     *            The destination array for the transformed x,y,z values.
+     * @param destOffset
+     *            The index of the first value to write in the destination.
+     * @param count
+     *            The number of normals to transform.
+     */
+    public static void transformNormals(MatF3 normalMatrix, float[] src,
+            int srcOffset, float[] dest, int destOffset, int count) {
+        final float[] a = normalMatrix.m;
+        final float m00 = a[0], m01 = a[1], m02 = a[2];
+        final float m10 = a[3], m11 = a[4], m12 = a[5];
+        final float m20 = a[6], m21 = a[7], m22 = a[8];
+
+        int s = srcOffset;
+        int d = destOffset;
+        for (int i = 0; i < count; i++, s += 3, d += 3) {
+            float x = src[s], y = src[s + 1], z = src[s + 2];
+
+            dest[d] = m00 * x + m01 * y + m02 * z;
+            dest[d + 1] = m10 * x + m11 * y + m12 * z;
+            dest[d + 2] = m20 * x + m21 * y + m22 * z;
+        }
+    }
+
+    /**
+     * Transforms a batch of normals, stored as consecutive x,y,z values, with
+     * the normal matrix of the given modelview matrix.
+     * 
+     * @param mv
+     *            The modelview matrix to derive the normal matrix from.
+     * @param src
+     *            The source buffer of x,y,z values.
+     * @param dest
+     *            The destination buffer for the transformed x,y,z values.
+     * @param count
+     *            The number of normals to transform.
+     */
+    public static void transformNormals(MatF4 mv, FloatBuffer src,
+            FloatBuffer dest, int count) {
+        MatF3 normalMatrix = getNormalMatrix(mv);
+
+        if (src.hasArray() && dest.hasArray()) {
+            transformNormals(normalMatrix, src.array(), src.arrayOffset(),
+                    dest.array(), dest.arrayOffset(), count);
+            return;
+        }
+
+        final float[] a = normalMatrix.m;
+        for (int i = 0, s = 0; i < count; i++, s += 3) {
+            float x = src.get(s), y = src.get(s + 1), z = src.get(s + 2);
+
+            dest.put(s, a[0] * x + a[1] * y + a[2] * z);
+            dest.put(s + 1, a[3] * x + a[4] * y + a[5] * z);
+            dest.put(s + 2, a[6] * x + a[7] * y + a[8] * z);
+        }
+    }
+
+    /**
+     * Parallel version of
+     * {@link #transformPoints(MatF4, float[], int, float[], int, int)}. The
+     * batch is split recursively over the threads of the given pool until
+     * parts are smaller than {@link #PARALLEL_TRANSFORM_THRESHOLD}.
+     * 
+     * @param pool
+     *            The fork/join pool to execute the transformation on.
+     * @param m
+     *            The matrix to transform the points with.
+     * @param src
+     *            The source array of x,y,z,w values, starting at index 0.
+     * @param dest
+     *            The destination array for the transformed x,y,z,w values,
+     *            starting at index 0.
+     * @param count
+     *            The number of points to transform.
+     */
+    public static void transformPoints(ForkJoinPool pool, MatF4 m,
+            float[] src, float[] dest, int count) {
+        if (count <= PARALLEL_TRANSFORM_THRESHOLD) {
+            transformPoints(m, src, 0, dest, 0, count);
+        } else {
+            pool.invoke(new TransformTask(m, src, dest, 0, count));
+        }
+    }
+
+    /**
+     * Fork/join task that transforms a part of a batch of x,y,z,w points.
+     */
+    private static class TransformTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final MatF4 m;
+        private final float[] src, dest;
+        private final int first, count;
+
+        TransformTask(MatF4 m, float[] src, float[] dest, int first, int count) {
+            this.m = m;
+            this.src = src;
+            this.dest = dest;
+            this.first = first;
+            this.count = count;
+        }
+
+        @Override
+        protected void compute() {
+            if (count <= PARALLEL_TRANSFORM_THRESHOLD) {
+                transformPoints(m, src, first * 4, dest, first * 4, count);
+            } else {
+                int half = count / 2;
+                invokeAll(new TransformTask(m, src, dest, first, half),
+                        new TransformTask(m, src, dest, first + half, count
+                                - half));
+            }
+        }
     }
 }
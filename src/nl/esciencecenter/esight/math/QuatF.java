@@ -0,0 +1,490 @@
+package nl.esciencecenter.esight.math;
+
+/* Copyright [2013] [Netherlands eScience Center]
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Float quaternion implementation, used to represent rotations. Composing
+ * quaternions (see {@link #mul(QuatF)}) corresponds to multiplying the
+ * equivalent rotation matrices in the same order, so
+ * <code>a.mul(b).toMatF4()</code> equals
+ * <code>a.toMatF4().mul(b.toMatF4())</code>.
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ * 
+ */
+public class QuatF {
+    /** The vector part of this quaternion */
+    protected float x, y, z;
+    /** The scalar part of this quaternion */
+    protected float w;
+
+    /**
+     * Above this cosine of the angle between two quaternions, slerp falls back
+     * to normalized linear interpolation.
+     */
+    private static final float SLERP_LINEAR_THRESHOLD = 0.9995f;
+
+    /**
+     * Creates a new identity quaternion (no rotation).
+     */
+    public QuatF() {
+        setIdentity();
+    }
+
+    /**
+     * Creates a new quaternion with the given values.
+     * 
+     * @param x
+     *            The x component of the vector part.
+     * @param y
+     *            The y component of the vector part.
+     * @param z
+     *            The z component of the vector part.
+     * @param w
+     *            The scalar part.
+     */
+    public QuatF(float x, float y, float z, float w) {
+        set(x, y, z, w);
+    }
+
+    /**
+     * Creates a new quaternion by copying the given quaternion.
+     * 
+     * @param q
+     *            The quaternion to be copied.
+     */
+    public QuatF(QuatF q) {
+        set(q);
+    }
+
+    /**
+     * Sets this quaternion to identity (no rotation).
+     * 
+     * @return this quaternion.
+     */
+    public QuatF setIdentity() {
+        return set(0f, 0f, 0f, 1f);
+    }
+
+    /**
+     * Sets this quaternion to the given values.
+     * 
+     * @param x
+     *            The x component of the vector part.
+     * @param y
+     *            The y component of the vector part.
+     * @param z
+     *            The z component of the vector part.
+     * @param w
+     *            The scalar part.
+     * @return this quaternion.
+     */
+    public QuatF set(float x, float y, float z, float w) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.w = w;
+        return this;
+    }
+
+    /**
+     * Sets this quaternion to the values of the given quaternion.
+     * 
+     * @param q
+     *            The quaternion to copy.
+     * @return this quaternion.
+     */
+    public QuatF set(QuatF q) {
+        return set(q.x, q.y, q.z, q.w);
+    }
+
+    /**
+     * Sets this quaternion to a rotation around an arbitrary axis. See
+     * {@link MatF4#setRotate(float, float, float, float)}.
+     * 
+     * @param angleDeg
+     *            The rotation angle, in degrees.
+     * @param x
+     *            The x component of the axis.
+     * @param y
+     *            The y component of the axis.
+     * @param z
+     *            The z component of the axis.
+     * @return this quaternion.
+     */
+    public QuatF setRotate(float angleDeg, float x, float y, float z) {
+        float length = (float) Math.sqrt(x * x + y * y + z * z);
+        if (length == 0f) {
+            return setIdentity();
+        }
+
+        double halfAngleRad = 0.5 * MatrixFMath.degreesToRadians * angleDeg;
+        float s = (float) Math.sin(halfAngleRad) / length;
+
+        return set(x * s, y * s, z * s, (float) Math.cos(halfAngleRad));
+    }
+
+    /**
+     * Sets this quaternion to a rotation around an arbitrary axis. See
+     * {@link MatF4#setRotate(float, VecF3)}.
+     * 
+     * @param angleDeg
+     *            The rotation angle, in degrees.
+     * @param axis
+     *            The axis to rotate around.
+     * @return this quaternion.
+     */
+    public QuatF setRotate(float angleDeg, VecF3 axis) {
+        return setRotate(angleDeg, axis.v[0], axis.v[1], axis.v[2]);
+    }
+
+    /**
+     * Sets this quaternion to a rotation around the X axis.
+     * 
+     * @param angleDeg
+     *            The rotation angle, in degrees.
+     * @return this quaternion.
+     */
+    public QuatF setRotationX(float angleDeg) {
+        double halfAngleRad = 0.5 * MatrixFMath.degreesToRadians * angleDeg;
+        return set((float) Math.sin(halfAngleRad), 0f, 0f,
+                (float) Math.cos(halfAngleRad));
+    }
+
+    /**
+     * Sets this quaternion to a rotation around the Y axis.
+     * 
+     * @param angleDeg
+     *            The rotation angle, in degrees.
+     * @return this quaternion.
+     */
+    public QuatF setRotationY(float angleDeg) {
+        double halfAngleRad = 0.5 * MatrixFMath.degreesToRadians * angleDeg;
+        return set(0f, (float) Math.sin(halfAngleRad), 0f,
+                (float) Math.cos(halfAngleRad));
+    }
+
+    /**
+     * Sets this quaternion to a rotation around the Z axis.
+     * 
+     * @param angleDeg
+     *            The rotation angle, in degrees.
+     * @return this quaternion.
+     */
+    public QuatF setRotationZ(float angleDeg) {
+        double halfAngleRad = 0.5 * MatrixFMath.degreesToRadians * angleDeg;
+        return set(0f, 0f, (float) Math.sin(halfAngleRad),
+                (float) Math.cos(halfAngleRad));
+    }
+
+    /**
+     * Sets this quaternion to the rotation around the X axis, followed by the
+     * Y axis and then the Z axis, i.e. the equivalent of
+     * <code>rotationX(ax).mul(rotationY(ay)).mul(rotationZ(az))</code>.
+     * 
+     * @param angleXDeg
+     *            The rotation angle around the X axis, in degrees.
+     * @param angleYDeg
+     *            The rotation angle around the Y axis, in degrees.
+     * @param angleZDeg
+     *            The rotation angle around the Z axis, in degrees.
+     * @return this quaternion.
+     */
+    public QuatF setRotationXYZ(float angleXDeg, float angleYDeg,
+            float angleZDeg) {
+        double halfRad = 0.5 * MatrixFMath.degreesToRadians;
+        float sx = (float) Math.sin(halfRad * angleXDeg);
+        float cx = (float) Math.cos(halfRad * angleXDeg);
+        float sy = (float) Math.sin(halfRad * angleYDeg);
+        float cy = (float) Math.cos(halfRad * angleYDeg);
+        float sz = (float) Math.sin(halfRad * angleZDeg);
+        float cz = (float) Math.cos(halfRad * angleZDeg);
+
+        return set(sx * cy * cz + cx * sy * sz, cx * sy * cz - sx * cy * sz,
+                cx * cy * sz + sx * sy * cz, cx * cy * cz - sx * sy * sz);
+    }
+
+    /**
+     * Getter for the x component of the vector part.
+     * 
+     * @return the x component.
+     */
+    public float getX() {
+        return x;
+    }
+
+    /**
+     * Getter for the y component of the vector part.
+     * 
+     * @return the y component.
+     */
+    public float getY() {
+        return y;
+    }
+
+    /**
+     * Getter for the z component of the vector part.
+     * 
+     * @return the z component.
+     */
+    public float getZ() {
+        return z;
+    }
+
+    /**
+     * Getter for the scalar part.
+     * 
+     * @return the scalar part.
+     */
+    public float getW() {
+        return w;
+    }
+
+    /**
+     * Composes this quaternion with the given quaternion. The resulting
+     * rotation first applies q, then this.
+     * 
+     * @param q
+     *            The quaternion to compose with.
+     * @return the new quaternion.
+     */
+    public QuatF mul(QuatF q) {
+        return mulInto(q, new QuatF());
+    }
+
+    /**
+     * Composes this quaternion with the given quaternion, storing the result in
+     * the given destination. The destination may be this quaternion or q.
+     * 
+     * @param q
+     *            The quaternion to compose with.
+     * @param dest
+     *            The quaternion to store the result in.
+     * @return the destination quaternion.
+     */
+    public QuatF mulInto(QuatF q, QuatF dest) {
+        float qx = q.x, qy = q.y, qz = q.z, qw = q.w;
+
+        return dest.set(w * qx + x * qw + y * qz - z * qy, w * qy - x * qz + y
+                * qw + z * qx, w * qz + x * qy - y * qx + z * qw, w * qw - x
+                * qx - y * qy - z * qz);
+    }
+
+    /**
+     * Computes the dot product of this quaternion and the given quaternion.
+     * 
+     * @param q
+     *            The other quaternion.
+     * @return the dot product.
+     */
+    public float dot(QuatF q) {
+        return x * q.x + y * q.y + z * q.z + w * q.w;
+    }
+
+    /**
+     * Computes the length of this quaternion.
+     * 
+     * @return the length.
+     */
+    public float length() {
+        return (float) Math.sqrt(dot(this));
+    }
+
+    /**
+     * Normalizes this quaternion to unit length. Repeatedly composed rotations
+     * should be normalized now and then to counter rounding drift.
+     * 
+     * @return this quaternion.
+     */
+    public QuatF normalize() {
+        float length = length();
+        if (length == 0f) {
+            return setIdentity();
+        }
+        float invLength = 1f / length;
+
+        return set(x * invLength, y * invLength, z * invLength, w * invLength);
+    }
+
+    /**
+     * Sets this quaternion to its conjugate. For unit quaternions this is the
+     * inverse rotation.
+     * 
+     * @return this quaternion.
+     */
+    public QuatF conjugate() {
+        return set(-x, -y, -z, w);
+    }
+
+    /**
+     * Spherical linear interpolation between this quaternion and the given
+     * quaternion. Both are assumed to be of unit length.
+     * 
+     * @param to
+     *            The quaternion to interpolate towards.
+     * @param t
+     *            The interpolation factor, 0 results in this quaternion and 1
+     *            in the to quaternion.
+     * @return the new quaternion.
+     */
+    public QuatF slerp(QuatF to, float t) {
+        return slerpInto(to, t, new QuatF());
+    }
+
+    /**
+     * Spherical linear interpolation between this quaternion and the given
+     * quaternion, storing the result in the given destination. Both are
+     * assumed to be of unit length. The destination may be this quaternion or
+     * to.
+     * 
+     * @param to
+     *            The quaternion to interpolate towards.
+     * @param t
+     *            The interpolation factor, 0 results in this quaternion and 1
+     *            in the to quaternion.
+     * @param dest
+     *            The quaternion to store the result in.
+     * @return the destination quaternion.
+     */
+    public QuatF slerpInto(QuatF to, float t, QuatF dest) {
+        float tx = to.x, ty = to.y, tz = to.z, tw = to.w;
+
+        // Take the shortest path around the hypersphere
+        float cosOmega = dot(to);
+        if (cosOmega < 0f) {
+            cosOmega = -cosOmega;
+            tx = -tx;
+            ty = -ty;
+            tz = -tz;
+            tw = -tw;
+        }
+
+        if (cosOmega > SLERP_LINEAR_THRESHOLD) {
+            // Nearly identical, linear interpolation avoids dividing by ~0
+            float s0 = 1f - t;
+            return dest.set(s0 * x + t * tx, s0 * y + t * ty, s0 * z + t * tz,
+                    s0 * w + t * tw).normalize();
+        }
+
+        double omega = Math.acos(cosOmega);
+        double invSinOmega = 1.0 / Math.sin(omega);
+        float s0 = (float) (Math.sin((1.0 - t) * omega) * invSinOmega);
+        float s1 = (float) (Math.sin(t * omega) * invSinOmega);
+
+        return dest.set(s0 * x + s1 * tx, s0 * y + s1 * ty, s0 * z + s1 * tz,
+                s0 * w + s1 * tw);
+    }
+
+    /**
+     * Rotates the given vector by this (unit) quaternion, storing the result
+     * in the given destination. The destination may be v.
+     * 
+     * @param v
+     *            The vector to rotate.
+     * @param dest
+     *            The vector to store the result in.
+     * @return the destination vector.
+     */
+    public VecF3 rotateInto(VecF3 v, VecF3 dest) {
+        float vx = v.v[0], vy = v.v[1], vz = v.v[2];
+
+        // t = 2 * cross(q.xyz, v)
+        float tx = 2f * (y * vz - z * vy);
+        float ty = 2f * (z * vx - x * vz);
+        float tz = 2f * (x * vy - y * vx);
+
+        // v' = v + w * t + cross(q.xyz, t)
+        return dest.set(vx + w * tx + (y * tz - z * ty), vy + w * ty
+                + (z * tx - x * tz), vz + w * tz + (x * ty - y * tx));
+    }
+
+    /**
+     * Converts this (unit) quaternion to a rotation matrix.
+     * 
+     * @return the new rotation matrix.
+     */
+    public MatF4 toMatF4() {
+        return toMatF4(new MatF4());
+    }
+
+    /**
+     * Converts this (unit) quaternion to a rotation matrix, storing it in the
+     * given destination. All elements of the destination are overwritten.
+     * 
+     * @param dest
+     *            The matrix to store the result in.
+     * @return the destination matrix.
+     */
+    public MatF4 toMatF4(MatF4 dest) {
+        float xx = x * x, yy = y * y, zz = z * z;
+        float xy = x * y, xz = x * z, yz = y * z;
+        float wx = w * x, wy = w * y, wz = w * z;
+
+        final float[] m = dest.m;
+        m[0] = 1f - 2f * (yy + zz);
+        m[1] = 2f * (xy - wz);
+        m[2] = 2f * (xz + wy);
+        m[3] = 0f;
+
+        m[4] = 2f * (xy + wz);
+        m[5] = 1f - 2f * (xx + zz);
+        m[6] = 2f * (yz - wx);
+        m[7] = 0f;
+
+        m[8] = 2f * (xz - wy);
+        m[9] = 2f * (yz + wx);
+        m[10] = 1f - 2f * (xx + yy);
+        m[11] = 0f;
+
+        m[12] = 0f;
+        m[13] = 0f;
+        m[14] = 0f;
+        m[15] = 1f;
+
+        return dest;
+    }
+
+    @Override
+    public String toString() {
+        return x + " " + y + " " + z + " " + w;
+    }
+
+    @Override
+    public int hashCode() {
+        int hashCode = 1;
+        hashCode = 31 * hashCode + Float.floatToIntBits(x);
+        hashCode = 31 * hashCode + Float.floatToIntBits(y);
+        hashCode = 31 * hashCode + Float.floatToIntBits(z);
+        hashCode = 31 * hashCode + Float.floatToIntBits(w);
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object thatObject) {
+        if (this == thatObject)
+            return true;
+        if (!(thatObject instanceof QuatF))
+            return false;
+
+        // cast to native object is now safe
+        QuatF that = (QuatF) thatObject;
+
+        return Math.abs(x - that.x) <= MatrixFMath.EPSILON
+                && Math.abs(y - that.y) <= MatrixFMath.EPSILON
+                && Math.abs(z - that.z) <= MatrixFMath.EPSILON
+                && Math.abs(w - that.w) <= MatrixFMath.EPSILON;
+    }
+}
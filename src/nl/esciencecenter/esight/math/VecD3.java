@@ -0,0 +1,215 @@
+package nl.esciencecenter.esight.math;
+
+/* Copyright [2013] [Netherlands eScience Center]
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Double precision counterpart of {@link VecF3}, used for world-space
+ * positions that do not fit the precision of a float (e.g. at planetary
+ * scale).
+ * 
+ * @author Maarten van Meersbergen <m.van.meersbergen@esciencecenter.nl>
+ * 
+ */
+public class VecD3 extends VectorD {
+    /**
+     * Creates a new vector, initialized to 0.
+     */
+    public VecD3() {
+        super(3);
+        this.v[0] = 0.0;
+        this.v[1] = 0.0;
+        this.v[2] = 0.0;
+    }
+
+    /**
+     * Creates a new vector by copying the given vector.
+     * 
+     * @param v
+     *            The vector to be copied.
+     */
+    public VecD3(VecD3 v) {
+        super(3);
+        this.v[0] = v.v[0];
+        this.v[1] = v.v[1];
+        this.v[2] = v.v[2];
+    }
+
+    /**
+     * Creates a new vector by widening the given float vector.
+     * 
+     * @param v
+     *            The vector to be copied.
+     */
+    public VecD3(VecF3 v) {
+        super(3);
+        this.v[0] = v.v[0];
+        this.v[1] = v.v[1];
+        this.v[2] = v.v[2];
+    }
+
+    /**
+     * Creates a new vector with the given values.
+     * 
+     * @param x
+     *            The value to be put in the first position.
+     * @param y
+     *            The value to be put in the second position.
+     * @param z
+     *            The value to be put in the third position.
+     */
+    public VecD3(double x, double y, double z) {
+        super(3);
+        this.v[0] = x;
+        this.v[1] = y;
+        this.v[2] = z;
+    }
+
+    /**
+     * Sets this vector to the given values.
+     * 
+     * @param x
+     *            The value to be put in the first position.
+     * @param y
+     *            The value to be put in the second position.
+     * @param z
+     *            The value to be put in the third position.
+     * @return this vector.
+     */
+    public VecD3 set(double x, double y, double z) {
+        this.v[0] = x;
+        this.v[1] = y;
+        this.v[2] = z;
+        return this;
+    }
+
+    /**
+     * Sets this vector to the values of the given vector.
+     * 
+     * @param u
+     *            The vector to copy.
+     * @return this vector.
+     */
+    public VecD3 set(VecD3 u) {
+        return set(u.v[0], u.v[1], u.v[2]);
+    }
+
+    /**
+     * Sets this vector to the (widened) values of the given float vector.
+     * 
+     * @param u
+     *            The vector to copy.
+     * @return this vector.
+     */
+    public VecD3 set(VecF3 u) {
+        return set(u.v[0], u.v[1], u.v[2]);
+    }
+
+    /**
+     * Adds the given vector to the current vector, and returns the result.
+     * 
+     * @param u
+     *            The vector to be added to this vector.
+     * @return The new vector.
+     */
+    public VecD3 add(VecD3 u) {
+        return addInto(u, new VecD3());
+    }
+
+    /**
+     * Adds the given vector to the current vector, storing the result in the
+     * given destination. The destination may be this vector or u.
+     * 
+     * @param u
+     *            The vector to be added to this vector.
+     * @param dest
+     *            The vector to store the result in.
+     * @return The destination vector.
+     */
+    public VecD3 addInto(VecD3 u, VecD3 dest) {
+        return dest.set(v[0] + u.v[0], v[1] + u.v[1], v[2] + u.v[2]);
+    }
+
+    /**
+     * Substracts the given vector from this vector.
+     * 
+     * @param u
+     *            The vector to be substracted from this one.
+     * @return The new Vector, which is a result of the substraction.
+     */
+    public VecD3 sub(VecD3 u) {
+        return subInto(u, new VecD3());
+    }
+
+    /**
+     * Substracts the given vector from this vector, storing the result in the
+     * given destination. The destination may be this vector or u.
+     * 
+     * @param u
+     *            The vector to be substracted from this one.
+     * @param dest
+     *            The vector to store the result in.
+     * @return The destination vector.
+     */
+    public VecD3 subInto(VecD3 u, VecD3 dest) {
+        return dest.set(v[0] - u.v[0], v[1] - u.v[1], v[2] - u.v[2]);
+    }
+
+    /**
+     * Multiplies the given scalar with this vector.
+     * 
+     * @param n
+     *            The scalar to be multiplied with this vector.
+     * @return The new Vector, which is a result of the multiplication.
+     */
+    public VecD3 mul(double n) {
+        return mulInto(n, new VecD3());
+    }
+
+    /**
+     * Multiplies the given scalar with this vector, storing the result in the
+     * given destination. The destination may be this vector.
+     * 
+     * @param n
+     *            The scalar to be multiplied with this vector.
+     * @param dest
+     *            The vector to store the result in.
+     * @return The destination vector.
+     */
+    public VecD3 mulInto(double n, VecD3 dest) {
+        return dest.set(v[0] * n, v[1] * n, v[2] * n);
+    }
+
+    /**
+     * Computes the length of this vector.
+     * 
+     * @return the length.
+     */
+    public double length() {
+        return Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
+    }
+
+    /**
+     * Narrows this vector to float precision, storing the result in the given
+     * destination.
+     * 
+     * @param dest
+     *            The vector to store the result in.
+     * @return The destination vector.
+     */
+    public VecF3 toVecF3(VecF3 dest) {
+        return dest.set((float) v[0], (float) v[1], (float) v[2]);
+    }
+}
@@ -140,6 +140,88 @@ public class VecF3 extends VectorF {
     	result.v[2] = v[2] *fn;
     	return result;
 	}
+	/**
+	 * Sets the values of this vector.
+	 * @param x
+	 * 		The value to be put in the first position.
+	 * @param y
+	 * 		The value to be put in the second position.
+	 * @param z
+	 * 		The value to be put in the third position.
+	 * @return
+	 * 		This vector.
+	 */
+	public VecF3 set(float x, float y, float z) {
+		v[0] = x;
+		v[1] = y;
+		v[2] = z;
+		return this;
+	}
+
+	/**
+	 * Copies the values of the given vector into this vector.
+	 * @param u
+	 * 		The vector to be copied.
+	 * @return
+	 * 		This vector.
+	 */
+	public VecF3 set(VecF3 u) {
+		v[0] = u.v[0];
+		v[1] = u.v[1];
+		v[2] = u.v[2];
+		return this;
+	}
+
+	/**
+	 * Adds the given vector to this vector, storing the result in the 
+	 * destination vector.
+	 * @param u
+	 * 		The vector to be added to this vector.
+	 * @param dest
+	 * 		The vector to store the result in.
+	 * @return
+	 * 		The destination vector.
+	 */
+	public VecF3 addInto(VecF3 u, VecF3 dest) {
+		dest.v[0] = v[0] + u.v[0];
+		dest.v[1] = v[1] + u.v[1];
+		dest.v[2] = v[2] + u.v[2];
+		return dest;
+	}
+
+	/**
+	 * Substracts the given vector from this vector, storing the result in the 
+	 * destination vector.
+	 * @param u
+	 * 		The vector to be substracted from this one.
+	 * @param dest
+	 * 		The vector to store the result in.
+	 * @return
+	 * 		The destination vector.
+	 */
+	public VecF3 subInto(VecF3 u, VecF3 dest) {
+		dest.v[0] = v[0] - u.v[0];
+		dest.v[1] = v[1] - u.v[1];
+		dest.v[2] = v[2] - u.v[2];
+		return dest;
+	}
+
+	/**
+	 * Multiplies this vector with the given scalar, storing the result in the 
+	 * destination vector.
+	 * @param n
+	 * 		The scalar to be multiplied with this one.
+	 * @param dest
+	 * 		The vector to store the result in.
+	 * @return
+	 * 		The destination vector.
+	 */
+	public VecF3 mulInto(float n, VecF3 dest) {
+		dest.v[0] = v[0] * n;
+		dest.v[1] = v[1] * n;
+		dest.v[2] = v[2] * n;
+		return dest;
+	}
     
     public VecF3 clone() {
     	return new VecF3(this);
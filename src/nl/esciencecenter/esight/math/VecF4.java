@@ -200,6 +200,96 @@ public class VecF4 extends VectorF {
         return result;
     }
 
+    /**
+     * Sets the values of this vector.
+     * 
+     * @param x
+     *            The value to be put in the first position.
+     * @param y
+     *            The value to be put in the second position.
+     * @param z
+     *            The value to be put in the third position.
+     * @param w
+     *            The value to be put in the fourth position.
+     * @return This vector.
+     */
+    public VecF4 set(float x, float y, float z, float w) {
+        v[0] = x;
+        v[1] = y;
+        v[2] = z;
+        v[3] = w;
+        return this;
+    }
+
+    /**
+     * Copies the values of the given vector into this vector.
+     * 
+     * @param u
+     *            The vector to be copied.
+     * @return This vector.
+     */
+    public VecF4 set(VecF4 u) {
+        v[0] = u.v[0];
+        v[1] = u.v[1];
+        v[2] = u.v[2];
+        v[3] = u.v[3];
+        return this;
+    }
+
+    /**
+     * Adds the given vector to this vector, storing the result in the
+     * destination vector.
+     * 
+     * @param u
+     *            The vector to be added to this vector.
+     * @param dest
+     *            The vector to store the result in.
+     * @return The destination vector.
+     */
+    public VecF4 addInto(VecF4 u, VecF4 dest) {
+        dest.v[0] = v[0] + u.v[0];
+        dest.v[1] = v[1] + u.v[1];
+        dest.v[2] = v[2] + u.v[2];
+        dest.v[3] = v[3] + u.v[3];
+        return dest;
+    }
+
+    /**
+     * Substracts the given vector from this vector, storing the result in the
+     * destination vector.
+     * 
+     * @param u
+     *            The vector to be substracted from this one.
+     * @param dest
+     *            The vector to store the result in.
+     * @return The destination vector.
+     */
+    public VecF4 subInto(VecF4 u, VecF4 dest) {
+        dest.v[0] = v[0] - u.v[0];
+        dest.v[1] = v[1] - u.v[1];
+        dest.v[2] = v[2] - u.v[2];
+        dest.v[3] = v[3] - u.v[3];
+        return dest;
+    }
+
+    /**
+     * Multiplies this vector with the given scalar, storing the result in the
+     * destination vector.
+     * 
+     * @param n
+     *            The scalar to be multiplied with this one.
+     * @param dest
+     *            The vector to store the result in.
+     * @return The destination vector.
+     */
+    public VecF4 mulInto(float n, VecF4 dest) {
+        dest.v[0] = v[0] * n;
+        dest.v[1] = v[1] * n;
+        dest.v[2] = v[2] * n;
+        dest.v[3] = v[3] * n;
+        return dest;
+    }
+
     public VecF3 stripAlpha() {
         return new VecF3(v[0], v[1], v[2]);
     }
@@ -2,10 +2,11 @@ package nl.esciencecenter.esight.math;
 
 public class Vector {
     public static enum Type {
-        LONG, FLOAT, INT, SHORT, BYTE
+        LONG, DOUBLE, FLOAT, INT, SHORT, BYTE
     }
 
     public static int SIZE_LONG = 8;
+    public static int SIZE_DOUBLE = 8;
     public static int SIZE_FLOAT = 4;
     public static int SIZE_INT = 4;
     public static int SIZE_SHORT = 2;
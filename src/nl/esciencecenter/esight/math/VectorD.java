@@ -0,0 +1,102 @@
+package nl.esciencecenter.esight.math;
+
+import java.nio.DoubleBuffer;
+
+public abstract class VectorD extends Vector {
+    protected double v[];
+    private final DoubleBuffer buf;
+
+    protected VectorD(int size) {
+        super(size, Type.DOUBLE);
+        v = new double[size];
+        buf = DoubleBuffer.wrap(v);
+        buf.rewind();
+    }
+
+    /**
+     * Retrieves the value of the vector at the given index.
+     * 
+     * @param i
+     *            The index.
+     * @return The value of the vector at index i.
+     */
+    public double get(int i) {
+        return v[i];
+    }
+
+    /**
+     * Sets the value of the vector at the given index.
+     * 
+     * @param i
+     *            The index.
+     * @param u
+     *            The new value.
+     */
+    public void set(int i, double u) {
+        v[i] = u;
+    }
+
+    /**
+     * Returns the flattened Array associated with this vector.
+     * 
+     * @return This matrix as a flat Array.
+     */
+    public double[] asArray() {
+        return v;
+    }
+
+    /**
+     * Returns the DoubleBuffer associated with this vector.
+     * 
+     * @return This vector as a DoubleBuffer.
+     */
+    public DoubleBuffer asBuffer() {
+        buf.rewind();
+        return buf;
+    }
+
+    @Override
+    public String toString() {
+        String result = "";
+        for (int i = 0; i < v.length; i++) {
+            result += (v[i] + " ");
+        }
+
+        return result;
+    }
+
+    @Override
+    public int hashCode() {
+        int cols = size;
+
+        int hashCode = 1;
+        for (int i = 0; i < cols; ++i) {
+            long val = Double.doubleToLongBits(v[i]);
+            int valHash = (int) (val ^ (val >>> 32));
+            hashCode = 31 * hashCode + valHash;
+
+        }
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object thatObject) {
+        if (this == thatObject)
+            return true;
+        if (!(thatObject instanceof VectorD))
+            return false;
+
+        // cast to native object is now safe
+        VectorD that = (VectorD) thatObject;
+
+        // now a proper field-by-field evaluation can be made
+        boolean same = true;
+        for (int i = 0; i < size; i++) {
+            if (v[i] < that.v[i] - MatrixFMath.EPSILON
+                    || v[i] > that.v[i] + MatrixFMath.EPSILON) {
+                same = false;
+            }
+        }
+        return same;
+    }
+}
@@ -1,6 +1,8 @@
 package nl.esciencecenter.esight.models;
 
 import nl.esciencecenter.esight.exceptions.UninitializedException;
+import nl.esciencecenter.esight.math.Frustum;
+import nl.esciencecenter.esight.math.MatF4;
 import nl.esciencecenter.esight.math.VecF3;
 
 /* Copyright [2013] [Netherlands eScience Center]
@@ -52,27 +54,90 @@ public class BoundingBox {
      *            A new vertex in the model to which this bounding box applies.
      */
     public void resize(VecF3 newEntry) {
+        resize(newEntry.get(0), newEntry.get(1), newEntry.get(2));
+    }
+
+    /**
+     * Resize method for this bounding box, see {@link #resize(VecF3)}.
+     * 
+     * @param x
+     *            The x coordinate of the new point.
+     * @param y
+     *            The y coordinate of the new point.
+     * @param z
+     *            The z coordinate of the new point.
+     */
+    public void resize(float x, float y, float z) {
         if (initialized) {
-            minX = Math.min(minX, newEntry.get(0));
-            minY = Math.min(minY, newEntry.get(1));
-            minZ = Math.min(minZ, newEntry.get(2));
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            minZ = Math.min(minZ, z);
 
-            maxX = Math.max(maxX, newEntry.get(0));
-            maxY = Math.max(maxY, newEntry.get(1));
-            maxZ = Math.max(maxZ, newEntry.get(2));
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+            maxZ = Math.max(maxZ, z);
         } else {
-            minX = newEntry.get(0);
-            minY = newEntry.get(1);
-            minZ = newEntry.get(2);
+            minX = x;
+            minY = y;
+            minZ = z;
 
-            maxX = newEntry.get(0);
-            maxY = newEntry.get(1);
-            maxZ = newEntry.get(2);
+            maxX = x;
+            maxY = y;
+            maxZ = z;
         }
 
         initialized = true;
     }
 
+    /**
+     * Resizes this box to also enclose the given box. Uninitialized boxes are
+     * ignored.
+     * 
+     * @param other
+     *            The box to enclose.
+     */
+    public void resize(BoundingBox other) {
+        if (other.initialized) {
+            resize(other.minX, other.minY, other.minZ);
+            resize(other.maxX, other.maxY, other.maxZ);
+        }
+    }
+
+    /**
+     * Resizes this box to also enclose the given box after it has been
+     * transformed by the given (affine) matrix. The transformed box is
+     * enclosed by its own axis aligned box, so rotations make it grow.
+     * Uninitialized boxes are ignored.
+     * 
+     * @param other
+     *            The box to enclose.
+     * @param m
+     *            The matrix to transform the box with.
+     */
+    public void resize(BoundingBox other, MatF4 m) {
+        if (!other.initialized)
+            return;
+
+        // Per axis, the translation plus the extremes of every column's
+        // contribution (J. Arvo, Graphics Gems, 1990).
+        float[] newMin = { m.get(3), m.get(7), m.get(11) };
+        float[] newMax = { m.get(3), m.get(7), m.get(11) };
+        float[] min = { other.minX, other.minY, other.minZ };
+        float[] max = { other.maxX, other.maxY, other.maxZ };
+
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < 3; col++) {
+                float a = m.get(row * 4 + col) * min[col];
+                float b = m.get(row * 4 + col) * max[col];
+                newMin[row] += Math.min(a, b);
+                newMax[row] += Math.max(a, b);
+            }
+        }
+
+        resize(newMin[0], newMin[1], newMin[2]);
+        resize(newMax[0], newMax[1], newMax[2]);
+    }
+
     /**
      * Getter for the minimum (x,y,z) point of the box.
      * 
@@ -140,4 +205,105 @@ public class BoundingBox {
 
         return new VecF3(x, y, z);
     }
+
+    /**
+     * Getter for the initialization state. A box is initialized once a point
+     * was added with {@link #resize(VecF3)}.
+     * 
+     * @return true if this box is initialized.
+     */
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+    /**
+     * Tests whether the given point lies within this box (bounds included).
+     * An uninitialized box contains nothing.
+     * 
+     * @param point
+     *            The point to test.
+     * @return true if the point lies within this box.
+     */
+    public boolean contains(VecF3 point) {
+        if (!initialized)
+            return false;
+
+        float x = point.get(0), y = point.get(1), z = point.get(2);
+        return x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ
+                && z <= maxZ;
+    }
+
+    /**
+     * Tests whether this box overlaps the given box (touching counts as
+     * overlapping). Uninitialized boxes overlap nothing.
+     * 
+     * @param other
+     *            The box to test against.
+     * @return true if the boxes overlap.
+     */
+    public boolean intersects(BoundingBox other) {
+        if (!initialized || !other.initialized)
+            return false;
+
+        return minX <= other.maxX && maxX >= other.minX && minY <= other.maxY
+                && maxY >= other.minY && minZ <= other.maxZ
+                && maxZ >= other.minZ;
+    }
+
+    /**
+     * Tests whether this box overlaps the given sphere. Uninitialized boxes
+     * overlap nothing.
+     * 
+     * @param center
+     *            The center of the sphere.
+     * @param radius
+     *            The radius of the sphere.
+     * @return true if the box and the sphere overlap.
+     */
+    public boolean intersectsSphere(VecF3 center, float radius) {
+        if (!initialized)
+            return false;
+
+        // Squared distance from the center to the closest point of the box
+        float dx = Math.max(Math.max(minX - center.get(0), 0f), center.get(0)
+                - maxX);
+        float dy = Math.max(Math.max(minY - center.get(1), 0f), center.get(1)
+                - maxY);
+        float dz = Math.max(Math.max(minZ - center.get(2), 0f), center.get(2)
+                - maxZ);
+
+        return dx * dx + dy * dy + dz * dz <= radius * radius;
+    }
+
+    /**
+     * Tests whether this box is (partially) inside the given view frustum.
+     * Uninitialized boxes are never visible.
+     * 
+     * @param frustum
+     *            The frustum to test against, in the same space as this box.
+     * @return true if the box is not completely outside the frustum.
+     */
+    public boolean intersects(Frustum frustum) {
+        if (!initialized)
+            return false;
+
+        return frustum.classifyBox(minX, minY, minZ, maxX, maxY, maxZ)
+                != Frustum.OUTSIDE;
+    }
+
+    /**
+     * Classifies this box against the given view frustum. Uninitialized boxes
+     * are always outside.
+     * 
+     * @param frustum
+     *            The frustum to test against, in the same space as this box.
+     * @return {@link Frustum#OUTSIDE}, {@link Frustum#INTERSECTING} or
+     *         {@link Frustum#INSIDE}.
+     */
+    public int classify(Frustum frustum) {
+        if (!initialized)
+            return Frustum.OUTSIDE;
+
+        return frustum.classifyBox(minX, minY, minZ, maxX, maxY, maxZ);
+    }
 }
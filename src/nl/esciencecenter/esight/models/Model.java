@@ -5,6 +5,7 @@ import java.nio.FloatBuffer;
 import javax.media.opengl.GL3;
 
 import nl.esciencecenter.esight.ESightGLEventListener;
+import nl.esciencecenter.esight.datastructures.BufferArena;
 import nl.esciencecenter.esight.datastructures.GLSLAttrib;
 import nl.esciencecenter.esight.datastructures.VBO;
 import nl.esciencecenter.esight.exceptions.UninitializedException;
@@ -51,9 +52,27 @@ public abstract class Model {
     /** The resulting {@link VBO}. */
     protected VBO vbo;
 
+    /**
+     * The range this model occupies in a shared {@link BufferArena}, or null
+     * if it has a {@link VBO} of its own.
+     */
+    protected BufferArena.Range range;
+
+    /** The arena the range was allocated in. */
+    protected BufferArena arena;
+
+    /** The index of the first vertex of this model in its {@link VBO}. */
+    protected int firstVertex;
+
     /** The number of vertices stored in this model. */
     protected int numVertices;
 
+    /**
+     * The model space bounds of the vertices, computed on first use (see
+     * {@link #getBoundingBox()}).
+     */
+    protected BoundingBox bounds;
+
     /** The state of this model. */
     private boolean initialized = false;
 
@@ -89,10 +108,58 @@ public abstract class Model {
                     GLSLAttrib.SIZE_FLOAT, 3);
 
             vbo = new VBO(gl, vAttrib, nAttrib, tAttrib);
+
+            // The vertices are still available, compute the bounds now.
+            getBoundingBox();
         }
         initialized = true;
     }
 
+    /**
+     * Initializes the model by storing the vertices, normals and texCoords
+     * buffers in a range of a shared {@link BufferArena}, instead of in a
+     * {@link VBO} of its own. The arena should be made with
+     * {@link #newArena(int)}. Models sharing an arena should not be drawn
+     * instanced, the per-instance data would apply to all of them.
+     * 
+     * @param gl
+     *            The global openGL instance.
+     * @param arena
+     *            The arena to store this model in.
+     */
+    public void init(GL3 gl, BufferArena arena) {
+        if (!initialized) {
+            GLSLAttrib vAttrib = new GLSLAttrib(vertices, "MCvertex",
+                    GLSLAttrib.SIZE_FLOAT, 4);
+            GLSLAttrib nAttrib = new GLSLAttrib(normals, "MCnormal",
+                    GLSLAttrib.SIZE_FLOAT, 3);
+            GLSLAttrib tAttrib = new GLSLAttrib(texCoords, "MCtexCoord",
+                    GLSLAttrib.SIZE_FLOAT, 3);
+
+            this.arena = arena;
+            range = arena.allocate(gl, numVertices, vAttrib, nAttrib, tAttrib);
+            vbo = range.getVBO();
+            firstVertex = range.getFirst();
+
+            // The vertices are still available, compute the bounds now.
+            getBoundingBox();
+        }
+        initialized = true;
+    }
+
+    /**
+     * Creates an arena for the vertices, normals and texCoords of models,
+     * see {@link #init(GL3, BufferArena)}.
+     * 
+     * @param pageVertices
+     *            The number of vertices per page of the arena.
+     * @return a new, empty, arena.
+     */
+    public static BufferArena newArena(int pageVertices) {
+        return new BufferArena(pageVertices, new String[] { "MCvertex",
+                "MCnormal", "MCtexCoord" }, new int[] { 4, 3, 3 });
+    }
+
     /**
      * Deletes this model and its {@link VBO} nicely from memory.
      * 
@@ -105,7 +172,13 @@ public abstract class Model {
         texCoords = null;
 
         if (initialized) {
-            vbo.delete(gl);
+            if (range != null) {
+                // The VBO is shared, only return the range to the arena
+                arena.free(range);
+                range = null;
+            } else {
+                vbo.delete(gl);
+            }
         }
     }
 
@@ -122,6 +195,27 @@ public abstract class Model {
         }
     }
 
+    /**
+     * Getter method for the model space bounds of this model, used for
+     * culling. The bounds are computed from the vertices the first time they
+     * are needed, the box stays uninitialized (and is never culled) if there
+     * were no vertices to compute it from.
+     * 
+     * @return The bounds of this model.
+     */
+    public BoundingBox getBoundingBox() {
+        if (bounds == null) {
+            bounds = new BoundingBox();
+            if (vertices != null) {
+                for (int i = 0; i < numVertices; i++) {
+                    bounds.resize(vertices.get(i * 4), vertices.get(i * 4 + 1),
+                            vertices.get(i * 4 + 2));
+                }
+            }
+        }
+        return bounds;
+    }
+
     /**
      * Getter method for the number of vertices represented by this Model and
      * stored in its {@link ESightGLEventListener}
@@ -142,16 +236,85 @@ public abstract class Model {
      *            The shader program to be used for this drawing instance.
      */
     public void draw(GL3 gl, ShaderProgram program) {
-        vbo.bind(gl);
+        bind(gl, program);
+        drawArrays(gl);
+    }
+
+    /**
+     * Binds the VBO of this model and links its attributes to the given
+     * program. Consecutive draws of this model with the same program (see
+     * {@link #drawArrays(GL3)}) do not need to bind again.
+     * 
+     * @param gl
+     *            The global openGL instance.
+     * @param program
+     *            The shader program to be used for the following draws.
+     */
+    public void bind(GL3 gl, ShaderProgram program) {
+        if (vbo.getInstanceAttribs() != null) {
+            // Also resets the divisors left behind by instanced draws
+            program.linkInstancedAttribs(gl, vbo);
+        } else {
+            vbo.bind(gl);
+
+            program.linkAttribs(gl, vbo);
+        }
+    }
+
+    /**
+     * Sets the per-instance data of this model, for drawing many copies of it
+     * in one call with {@link #drawInstanced(GL3, ShaderProgram, int)}. Each
+     * attribute holds one vector per instance.
+     * 
+     * @param gl
+     *            The global openGL instance.
+     * @param attribs
+     *            One or more per-instance attributes, @see GLSLAttrib
+     * @throws UninitializedException
+     *             if this model was not initialized.
+     */
+    public void setInstanceData(GL3 gl, GLSLAttrib... attribs)
+            throws UninitializedException {
+        getVBO().setInstanceAttribs(gl, attribs);
+    }
+
+    /**
+     * Draw method for instanced drawing. Links both the per-vertex and the
+     * per-instance attributes of this model and draws the given number of
+     * instances with a single OpenGL DrawArraysInstanced call.
+     * 
+     * @param gl
+     *            The global openGL instance.
+     * @param program
+     *            The shader program to be used for this drawing instance.
+     * @param instanceCount
+     *            The number of instances to draw, at most the number of
+     *            vectors in the per-instance attributes.
+     */
+    public void drawInstanced(GL3 gl, ShaderProgram program, int instanceCount) {
+        program.linkInstancedAttribs(gl, vbo);
+
+        gl.glDrawArraysInstanced(getPrimitive(), firstVertex, numVertices,
+                instanceCount);
+    }
 
-        program.linkAttribs(gl, vbo.getAttribs());
+    /**
+     * Calls OpenGL DrawArrays for this model. Assumes the model was bound with
+     * {@link #bind(GL3, ShaderProgram)}.
+     * 
+     * @param gl
+     *            The global openGL instance.
+     */
+    public void drawArrays(GL3 gl) {
+        gl.glDrawArrays(getPrimitive(), firstVertex, numVertices);
+    }
 
-        if (format == vertex_format.TRIANGLES) {
-            gl.glDrawArrays(GL3.GL_TRIANGLES, 0, numVertices);
-        } else if (format == vertex_format.POINTS) {
-            gl.glDrawArrays(GL3.GL_POINTS, 0, numVertices);
+    private int getPrimitive() {
+        if (format == vertex_format.POINTS) {
+            return GL3.GL_POINTS;
         } else if (format == vertex_format.LINES) {
-            gl.glDrawArrays(GL3.GL_LINES, 0, numVertices);
+            return GL3.GL_LINES;
         }
+        return GL3.GL_TRIANGLES;
     }
 }
@@ -0,0 +1,522 @@
+package nl.esciencecenter.esight.scenegraph;
+
+import java.util.Arrays;
+
+import nl.esciencecenter.esight.math.VecF3;
+import nl.esciencecenter.esight.models.Model;
+import nl.esciencecenter.esight.util.Settings;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* Copyright [2013] [Netherlands eScience Center]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Pointer-free counterpart of {@link OctreeNode}, meant for (very) large
+ * numbers of elements. Instead of inserting elements one by one into a tree of
+ * objects, all element positions are given at once as a float array. Every
+ * position is quantized to a Morton (Z-order) code, the codes are radix sorted,
+ * and the nodes are then cut out of the sorted order. Elements of a node are a
+ * contiguous range of the sorted indices, and the 8 children of a node are
+ * stored next to each other in the node arrays.
+ *
+ * Nodes subdivide under the same rules as {@link OctreeNode}, so
+ * {@link #toOctreeNode(Model)} yields a tree that draws like one that was built
+ * with {@link OctreeNode#addElement(OctreeElement)} and
+ * {@link OctreeNode#finalizeAdding()}.
+ *
+ * Octants are numbered (x << 2) | (y << 1) | z, where a 1 bit means the
+ * positive half of that axis. Octant 7 is {@link OctreeNode#ppp}, octant 0 is
+ * {@link OctreeNode#nnn}.
+ *
+ * Use an {@link OctreeQuery} for box, radius, nearest neighbour and ray queries.
+ *
+ * @author Maarten van Meersbergen <m.vanmeersbergen@esciencecenter.nl>
+ */
+public class LinearOctree {
+    private final static Logger logger = LoggerFactory.getLogger(LinearOctree.class);
+
+    /** The number of bits per axis in a Morton code. */
+    public static final int BITS_PER_AXIS = 21;
+    /** The maximum depth of a linear octree, limited by the Morton codes. */
+    public static final int MAX_DEPTH = BITS_PER_AXIS;
+    /** The number of cells per axis at the deepest level. */
+    private static final int CELLS_PER_AXIS = 1 << BITS_PER_AXIS;
+
+    /** The number of bits sorted per radix sort pass. */
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX = 1 << RADIX_BITS;
+
+    /**
+     * The maximum number of elements a node may contain before subdivision
+     * occurs.
+     */
+    protected final int maxElements;
+    /** The maximum depth of the tree (root = 0). */
+    protected final int maxDepth;
+    /** The corner location for the lower X, Y, Z values of the root. */
+    protected final float cornerX, cornerY, cornerZ;
+    /** The size of the ribs of the root cube. */
+    protected final float ribSize;
+
+    /** The element positions, as x, y, z triplets. */
+    protected float[] positions;
+    /** The number of elements that fell inside the root. */
+    protected int elementCount;
+    /** The Morton codes of the elements, sorted. */
+    protected long[] codes;
+    /** The indices (into the positions) of the elements, in Morton order. */
+    protected int[] indices;
+
+    /** The number of nodes, the root is node 0. */
+    protected int nodeCount;
+    /** Per node: the depth in the tree. */
+    protected int[] nodeDepth;
+    /** Per node: the Morton code prefix, that is the path from the root. */
+    protected long[] nodePrefix;
+    /** Per node: the first of its elements in {@link #indices}. */
+    protected int[] nodeStart;
+    /** Per node: the number of its elements. */
+    protected int[] nodeSize;
+    /** Per node: the index of its first child, or -1 for leaves. */
+    protected int[] nodeFirstChild;
+
+    /**
+     * Basic constructor for LinearOctree, using the maximum depth from the
+     * {@link Settings}.
+     *
+     * @param maxElements
+     *            The maximum amount of elements for a node.
+     * @param corner
+     *            The corner location for the lower X, Y, Z values of the cube
+     *            represented by the root.
+     * @param ribSize
+     *            The rib sizes for the cube represented by the root.
+     */
+    public LinearOctree(int maxElements, VecF3 corner, float ribSize) {
+        this(maxElements, Settings.getInstance().getMaxOctreeDepth(), corner, ribSize);
+    }
+
+    /**
+     * Constructor for LinearOctree.
+     *
+     * @param maxElements
+     *            The maximum amount of elements for a node.
+     * @param maxDepth
+     *            The maximum depth of the tree (root = 0), at most
+     *            {@link #MAX_DEPTH}.
+     * @param corner
+     *            The corner location for the lower X, Y, Z values of the cube
+     *            represented by the root.
+     * @param ribSize
+     *            The rib sizes for the cube represented by the root.
+     */
+    public LinearOctree(int maxElements, int maxDepth, VecF3 corner, float ribSize) {
+        this.maxElements = maxElements;
+        this.maxDepth = Math.min(maxDepth, MAX_DEPTH);
+        this.cornerX = corner.get(0);
+        this.cornerY = corner.get(1);
+        this.cornerZ = corner.get(2);
+        this.ribSize = ribSize;
+
+        this.positions = new float[0];
+        this.codes = new long[0];
+        this.indices = new int[0];
+        this.nodeDepth = new int[1];
+        this.nodePrefix = new long[1];
+        this.nodeStart = new int[1];
+        this.nodeSize = new int[1];
+        this.nodeFirstChild = new int[] { -1 };
+        this.nodeCount = 1;
+    }
+
+    /**
+     * Builds this octree out of the given element positions, replacing any
+     * previous contents. Positions outside the root cube are skipped.
+     *
+     * @param positions
+     *            The element positions, as x, y, z triplets. The array is
+     *            referenced, not copied, and should not change afterwards.
+     * @param count
+     *            The number of elements in the array.
+     */
+    public void build(float[] positions, int count) {
+        this.positions = positions;
+
+        computeCodes(count);
+        radixSort();
+        buildNodes();
+    }
+
+    /**
+     * Quantizes the positions that fall inside the root cube to Morton codes.
+     */
+    private void computeCodes(int count) {
+        codes = new long[count];
+        indices = new int[count];
+
+        final double scale = CELLS_PER_AXIS / (double) ribSize;
+        final float maxX = cornerX + ribSize, maxY = cornerY + ribSize, maxZ = cornerZ + ribSize;
+
+        int inside = 0;
+        for (int i = 0; i < count; i++) {
+            float x = positions[3 * i], y = positions[3 * i + 1], z = positions[3 * i + 2];
+
+            if (x > cornerX && y > cornerY && z > cornerZ && x < maxX && y < maxY && z < maxZ) {
+                codes[inside] = encode(quantize(x - cornerX, scale), quantize(y - cornerY, scale),
+                        quantize(z - cornerZ, scale));
+                indices[inside] = i;
+                inside++;
+            }
+        }
+
+        if (inside < count) {
+            logger.warn((count - inside) + " positions added that are not within governed domain of this LinearOctree.");
+        }
+        elementCount = inside;
+    }
+
+    private static int quantize(float offset, double scale) {
+        int cell = (int) (offset * scale);
+        return Math.min(Math.max(cell, 0), CELLS_PER_AXIS - 1);
+    }
+
+    /**
+     * Interleaves the lower {@link #BITS_PER_AXIS} bits of the given cell
+     * coordinates into a Morton code, x being the most significant.
+     *
+     * @param x
+     *            The cell coordinate on the x axis.
+     * @param y
+     *            The cell coordinate on the y axis.
+     * @param z
+     *            The cell coordinate on the z axis.
+     * @return The Morton code.
+     */
+    public static long encode(int x, int y, int z) {
+        return (spread(x) << 2) | (spread(y) << 1) | spread(z);
+    }
+
+    /** Spreads 21 bits out so there are two zero bits between each of them. */
+    private static long spread(int value) {
+        long v = value & 0x1fffffL;
+        v = (v | v << 32) & 0x1f00000000ffffL;
+        v = (v | v << 16) & 0x1f0000ff0000ffL;
+        v = (v | v << 8) & 0x100f00f00f00f00fL;
+        v = (v | v << 4) & 0x10c30c30c30c30c3L;
+        v = (v | v << 2) & 0x1249249249249249L;
+        return v;
+    }
+
+    /**
+     * Sorts the codes and indices by code, least significant byte first. Passes
+     * in which all codes have the same byte are skipped.
+     */
+    private void radixSort() {
+        final int n = elementCount;
+        long[] srcCodes = codes, dstCodes = new long[n];
+        int[] srcIndices = indices, dstIndices = new int[n];
+        final int[] offsets = new int[RADIX];
+
+        for (int shift = 0; shift < 3 * BITS_PER_AXIS; shift += RADIX_BITS) {
+            Arrays.fill(offsets, 0);
+            for (int i = 0; i < n; i++) {
+                offsets[(int) (srcCodes[i] >>> shift) & (RADIX - 1)]++;
+            }
+            if (n == 0 || offsets[(int) (srcCodes[0] >>> shift) & (RADIX - 1)] == n) {
+                continue;
+            }
+
+            int sum = 0;
+            for (int d = 0; d < RADIX; d++) {
+                int digitCount = offsets[d];
+                offsets[d] = sum;
+                sum += digitCount;
+            }
+
+            for (int i = 0; i < n; i++) {
+                int target = offsets[(int) (srcCodes[i] >>> shift) & (RADIX - 1)]++;
+                dstCodes[target] = srcCodes[i];
+                dstIndices[target] = srcIndices[i];
+            }
+
+            long[] tmpCodes = srcCodes;
+            srcCodes = dstCodes;
+            dstCodes = tmpCodes;
+            int[] tmpIndices = srcIndices;
+            srcIndices = dstIndices;
+            dstIndices = tmpIndices;
+        }
+
+        codes = srcCodes;
+        indices = srcIndices;
+    }
+
+    /**
+     * Cuts the nodes out of the sorted codes, breadth first. A node subdivides
+     * when it holds more than maxElements + 1 elements, which is when an
+     * {@link OctreeNode} would have subdivided while its elements were added.
+     */
+    private void buildNodes() {
+        int capacity = Math.max(64, 8 * (elementCount / Math.max(1, maxElements)) + 1);
+        nodeDepth = new int[capacity];
+        nodePrefix = new long[capacity];
+        nodeStart = new int[capacity];
+        nodeSize = new int[capacity];
+        nodeFirstChild = new int[capacity];
+
+        nodeDepth[0] = 0;
+        nodePrefix[0] = 0L;
+        nodeStart[0] = 0;
+        nodeSize[0] = elementCount;
+        nodeFirstChild[0] = -1;
+        nodeCount = 1;
+
+        for (int node = 0; node < nodeCount; node++) {
+            int depth = nodeDepth[node];
+            if (nodeSize[node] <= maxElements + 1 || depth >= maxDepth) {
+                if (depth >= maxDepth && nodeSize[node] > maxElements + 1) {
+                    logger.warn("Octree max division reached.");
+                }
+                continue;
+            }
+
+            if (nodeCount + 8 > nodeDepth.length) {
+                grow(nodeCount + 8);
+            }
+
+            int childShift = 3 * (BITS_PER_AXIS - depth - 1);
+            int firstChild = nodeCount;
+            int start = nodeStart[node];
+            int end = start + nodeSize[node];
+
+            for (int octant = 0; octant < 8; octant++) {
+                int childEnd = upperBound(start, end, childShift, octant);
+
+                int child = firstChild + octant;
+                nodeDepth[child] = depth + 1;
+                nodePrefix[child] = (nodePrefix[node] << 3) | octant;
+                nodeStart[child] = start;
+                nodeSize[child] = childEnd - start;
+                nodeFirstChild[child] = -1;
+
+                start = childEnd;
+            }
+
+            nodeFirstChild[node] = firstChild;
+            nodeCount += 8;
+        }
+    }
+
+    /**
+     * Finds the first index in [from, to) whose octant at the given shift is
+     * larger than the given octant. The codes in that range must share all
+     * bits above the octant.
+     */
+    private int upperBound(int from, int to, int shift, int octant) {
+        int low = from, high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (((int) (codes[mid] >>> shift) & 7) <= octant) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = Math.max(minCapacity, nodeDepth.length * 2);
+        nodeDepth = Arrays.copyOf(nodeDepth, capacity);
+        nodePrefix = Arrays.copyOf(nodePrefix, capacity);
+        nodeStart = Arrays.copyOf(nodeStart, capacity);
+        nodeSize = Arrays.copyOf(nodeSize, capacity);
+        nodeFirstChild = Arrays.copyOf(nodeFirstChild, capacity);
+    }
+
+    /**
+     * Getter for the number of elements in this octree.
+     *
+     * @return the number of elements that fell inside the root cube.
+     */
+    public int getElementCount() {
+        return elementCount;
+    }
+
+    /**
+     * Getter for the number of nodes in this octree, including the root.
+     *
+     * @return the number of nodes.
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Getter for the element indices in Morton order. The elements of node i
+     * are at [{@link #getNodeStart(int)}, {@link #getNodeStart(int)} +
+     * {@link #getNodeSize(int)}).
+     *
+     * @return the sorted indices, only the first {@link #getElementCount()}
+     *         are valid.
+     */
+    public int[] getSortedIndices() {
+        return indices;
+    }
+
+    /**
+     * Getter for the element positions this octree was built with.
+     *
+     * @return the positions, as x, y, z triplets.
+     */
+    public float[] getPositions() {
+        return positions;
+    }
+
+    /**
+     * Getter for the depth of a node.
+     *
+     * @param node
+     *            The index of the node.
+     * @return the depth (root = 0).
+     */
+    public int getNodeDepth(int node) {
+        return nodeDepth[node];
+    }
+
+    /**
+     * Getter for the first element of a node in the sorted indices.
+     *
+     * @param node
+     *            The index of the node.
+     * @return the position of the first element in {@link #getSortedIndices()}.
+     */
+    public int getNodeStart(int node) {
+        return nodeStart[node];
+    }
+
+    /**
+     * Getter for the number of elements in (the subtree of) a node.
+     *
+     * @param node
+     *            The index of the node.
+     * @return the number of elements.
+     */
+    public int getNodeSize(int node) {
+        return nodeSize[node];
+    }
+
+    /**
+     * Getter for the first child of a node. The children are stored
+     * consecutively, ordered by octant.
+     *
+     * @param node
+     *            The index of the node.
+     * @return the index of the first child, or -1 if the node is a leaf.
+     */
+    public int getFirstChild(int node) {
+        return nodeFirstChild[node];
+    }
+
+    /**
+     * Tests whether a node is a leaf.
+     *
+     * @param node
+     *            The index of the node.
+     * @return true if the node has no children.
+     */
+    public boolean isLeaf(int node) {
+        return nodeFirstChild[node] < 0;
+    }
+
+    /**
+     * Getter for the rib size of the nodes at the given depth.
+     *
+     * @param depth
+     *            The depth in the tree.
+     * @return the rib size.
+     */
+    public float getRibSize(int depth) {
+        return ribSize / (1 << depth);
+    }
+
+    /**
+     * Computes the lower corner of a node.
+     *
+     * @param node
+     *            The index of the node.
+     * @param dest
+     *            The vector to store the corner in.
+     * @return The destination vector.
+     */
+    public VecF3 getNodeCorner(int node, VecF3 dest) {
+        int depth = nodeDepth[node];
+        long prefix = nodePrefix[node];
+
+        int x = 0, y = 0, z = 0;
+        for (int level = 0; level < depth; level++) {
+            int octant = (int) (prefix >>> (3 * level)) & 7;
+            x |= ((octant >> 2) & 1) << level;
+            y |= ((octant >> 1) & 1) << level;
+            z |= (octant & 1) << level;
+        }
+
+        float rib = getRibSize(depth);
+        return dest.set(cornerX + x * rib, cornerY + y * rib, cornerZ + z * rib);
+    }
+
+    /**
+     * Adapter to the object based octree. Creates a tree of {@link OctreeNode}s
+     * with the same structure as this octree, finalized (see
+     * {@link OctreeNode#finalizeLeaf(int)} and
+     * {@link OctreeNode#finalizeInner()}). The elements themselves are not
+     * copied, so the result can not be updated with
+     * {@link OctreeNode#finalizeUpdates()}. It is ready to be initialized and
+     * drawn like any other {@link OctreeNode}.
+     *
+     * @param model
+     *            The model to use for graphic representations of the nodes.
+     * @return The root of the new tree.
+     */
+    public OctreeNode toOctreeNode(Model model) {
+        return toOctreeNode(model, 0, new VecF3());
+    }
+
+    private OctreeNode toOctreeNode(Model model, int node, VecF3 corner) {
+        OctreeNode result = new OctreeNode(model, maxElements, nodeDepth[node], getNodeCorner(node, corner),
+                getRibSize(nodeDepth[node]));
+
+        int firstChild = nodeFirstChild[node];
+        if (firstChild < 0) {
+            result.finalizeLeaf(nodeSize[node]);
+        } else {
+            result.ppp = toOctreeNode(model, firstChild + 7, corner);
+            result.ppn = toOctreeNode(model, firstChild + 6, corner);
+            result.pnp = toOctreeNode(model, firstChild + 5, corner);
+            result.pnn = toOctreeNode(model, firstChild + 4, corner);
+            result.npp = toOctreeNode(model, firstChild + 3, corner);
+            result.npn = toOctreeNode(model, firstChild + 2, corner);
+            result.nnp = toOctreeNode(model, firstChild + 1, corner);
+            result.nnn = toOctreeNode(model, firstChild, corner);
+            result.subdivided = true;
+            result.finalizeInner();
+        }
+        result.dirty = false;
+
+        return result;
+    }
+}
@@ -0,0 +1,305 @@
+package nl.esciencecenter.esight.scenegraph;
+
+import java.nio.FloatBuffer;
+import java.util.BitSet;
+
+import javax.media.opengl.GL3;
+
+import nl.esciencecenter.esight.datastructures.GLSLAttrib;
+import nl.esciencecenter.esight.datastructures.VBO;
+import nl.esciencecenter.esight.exceptions.UninitializedException;
+import nl.esciencecenter.esight.math.MatF4;
+import nl.esciencecenter.esight.math.VecF4;
+import nl.esciencecenter.esight.shaders.ShaderProgram;
+
+import com.jogamp.common.nio.Buffers;
+
+/* Copyright [2013] [Netherlands eScience Center]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * GPU resident buffer holding the drawable leaves of a (finalized) octree, one
+ * point per leaf: its center and rib size in {@link #CENTER_ATTRIB}, its color
+ * (density) in {@link #COLOR_ATTRIB}. The whole tree is drawn with a single
+ * GL_POINTS call, using the vs_octree_points.vp and fs_octree_points.fp
+ * shaders, which size each point to the projected size of its cube. Apart
+ * from that call, drawing costs nothing per leaf on the CPU.
+ *
+ * The buffer is updated in place. Every leaf keeps its slot in the buffer, and
+ * {@link OctreeNode#finalizeUpdates()} rewrites only the slots of the leaves
+ * it refreshes; the next draw uploads only the changed slots. Slots
+ * of leaves that were split or merged away are reused by new leaves.
+ *
+ * @author Maarten van Meersbergen <m.vanmeersbergen@esciencecenter.nl>
+ */
+public class OctreeLeafBuffer {
+    /** The shader input for the center (xyz) and rib size (w) of a leaf. */
+    public static final String CENTER_ATTRIB = "LeafCenter";
+    /** The shader input for the color of a leaf. */
+    public static final String COLOR_ATTRIB = "LeafColor";
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Runs of changed slots separated by fewer unchanged slots than this are
+     * uploaded as one, trading a few bytes for fewer calls.
+     */
+    private static final int UPLOAD_GAP = 16;
+
+    private final OctreeNode root;
+
+    /** CPU side copies of the slots, 4 floats per slot. */
+    private FloatBuffer centers, colors;
+    private int capacity;
+    private int slotCount;
+
+    /** Slots that were released, to be reused first. */
+    private int[] freeSlots;
+    private int freeCount;
+
+    /** The slots changed since the last upload. */
+    private final BitSet dirtySlots;
+    private boolean reallocated;
+
+    private VBO vbo;
+
+    /**
+     * Creates a new leaf buffer for the given finalized octree, holding all of
+     * its current drawable leaves. From then on, the buffer follows the
+     * updates finalized with {@link OctreeNode#finalizeUpdates()} on the same
+     * root.
+     *
+     * @param root
+     *            The root of the (finalized) octree.
+     */
+    public OctreeLeafBuffer(OctreeNode root) {
+        this.root = root;
+
+        allocate(INITIAL_CAPACITY);
+        freeSlots = new int[INITIAL_CAPACITY];
+        freeCount = 0;
+        slotCount = 0;
+        dirtySlots = new BitSet();
+
+        fill(root);
+        root.leafBuffer = this;
+    }
+
+    private void fill(OctreeNode node) {
+        if (node.subdivided) {
+            for (int octant = 0; octant < 8; octant++) {
+                fill(node.getChild(octant));
+            }
+        } else {
+            update(node);
+        }
+    }
+
+    /**
+     * Writes the current state of the given node into its slot. Leaves get a
+     * slot if they had none, nodes that are no longer drawable leaves release
+     * theirs.
+     *
+     * @param node
+     *            The (re)finalized node.
+     */
+    void update(OctreeNode node) {
+        if (node.subdivided || !node.drawable) {
+            release(node);
+            return;
+        }
+
+        if (node.leafSlot < 0) {
+            node.leafSlot = takeSlot();
+        }
+        write(node.leafSlot, node.center.get(0), node.center.get(1), node.center.get(2), node.ribSize, node.color);
+    }
+
+    /**
+     * Releases the slot of the given node, if it had one. The slot is cleared
+     * so the shader skips it until it is reused.
+     *
+     * @param node
+     *            The node that is no longer a drawable leaf.
+     */
+    void release(OctreeNode node) {
+        if (node.leafSlot >= 0) {
+            write(node.leafSlot, 0f, 0f, 0f, 0f, null);
+
+            if (freeCount == freeSlots.length) {
+                int[] grown = new int[freeSlots.length * 2];
+                System.arraycopy(freeSlots, 0, grown, 0, freeCount);
+                freeSlots = grown;
+            }
+            freeSlots[freeCount++] = node.leafSlot;
+            node.leafSlot = -1;
+        }
+    }
+
+    private int takeSlot() {
+        if (freeCount > 0) {
+            return freeSlots[--freeCount];
+        }
+        if (slotCount == capacity) {
+            allocate(capacity * 2);
+        }
+        return slotCount++;
+    }
+
+    private void allocate(int newCapacity) {
+        FloatBuffer newCenters = Buffers.newDirectFloatBuffer(newCapacity * 4);
+        FloatBuffer newColors = Buffers.newDirectFloatBuffer(newCapacity * 4);
+        if (centers != null) {
+            centers.rewind();
+            colors.rewind();
+            newCenters.put(centers);
+            newColors.put(colors);
+            newCenters.rewind();
+            newColors.rewind();
+        }
+
+        centers = newCenters;
+        colors = newColors;
+        capacity = newCapacity;
+        reallocated = true;
+    }
+
+    private void write(int slot, float x, float y, float z, float ribSize, VecF4 color) {
+        int index = slot * 4;
+        centers.put(index, x);
+        centers.put(index + 1, y);
+        centers.put(index + 2, z);
+        centers.put(index + 3, ribSize);
+
+        for (int i = 0; i < 4; i++) {
+            colors.put(index + i, (color == null) ? 0f : color.get(i));
+        }
+
+        dirtySlots.set(slot);
+    }
+
+    /**
+     * OpenGL initialization method, uploads the current slots.
+     *
+     * @param gl
+     *            the current GL instance.
+     */
+    public void init(GL3 gl) {
+        if (vbo == null) {
+            vbo = new VBO(gl, GL3.GL_DYNAMIC_DRAW, makeAttribs());
+            reallocated = false;
+            dirtySlots.clear();
+        }
+    }
+
+    private GLSLAttrib[] makeAttribs() {
+        return new GLSLAttrib[] { new GLSLAttrib(centers, CENTER_ATTRIB, GLSLAttrib.SIZE_FLOAT, 4),
+                new GLSLAttrib(colors, COLOR_ATTRIB, GLSLAttrib.SIZE_FLOAT, 4) };
+    }
+
+    /**
+     * Uploads the slots changed since the last upload, in runs of consecutive
+     * slots. The whole buffer is only uploaded again when it had to grow.
+     *
+     * @param gl
+     *            the current GL instance.
+     */
+    private void flush(GL3 gl) {
+        if (reallocated) {
+            vbo.update(gl, makeAttribs());
+            reallocated = false;
+        } else {
+            int first = dirtySlots.nextSetBit(0);
+            while (first >= 0) {
+                int end = dirtySlots.nextClearBit(first);
+                int next = dirtySlots.nextSetBit(end);
+                while (next >= 0 && next - end < UPLOAD_GAP) {
+                    end = dirtySlots.nextClearBit(next);
+                    next = dirtySlots.nextSetBit(end);
+                }
+
+                vbo.update(gl, 0, first * 4, (end - first) * 4);
+                vbo.update(gl, 1, first * 4, (end - first) * 4);
+                first = next;
+            }
+        }
+        dirtySlots.clear();
+    }
+
+    /**
+     * OpenGL draw method. Draws all leaves with a single call, as points
+     * sized to the projected size of their cubes.
+     *
+     * @param gl
+     *            the current GL instance.
+     * @param program
+     *            The ShaderProgram to use, built from vs_octree_points.vp and
+     *            fs_octree_points.fp (or compatible shaders).
+     * @param MVMatrix
+     *            The global Modelview Matrix.
+     * @param PMatrix
+     *            The (perspective) projection matrix.
+     * @param viewportHeight
+     *            The height of the viewport, in pixels.
+     * @throws UninitializedException
+     *             if this method was called before calling the
+     *             {@link #init(GL3)} method.
+     */
+    public void draw(GL3 gl, ShaderProgram program, MatF4 MVMatrix, MatF4 PMatrix, int viewportHeight)
+            throws UninitializedException {
+        if (vbo == null) {
+            throw new UninitializedException();
+        }
+        flush(gl);
+
+        // A length l at depth d projects to l * P[1][1] * (height / 2) / d
+        // pixels.
+        program.setUniformMatrix("MVMatrix", MVMatrix);
+        program.setUniformMatrix("PMatrix", PMatrix);
+        program.setUniform("PointScale", PMatrix.get(5) * 0.5f * viewportHeight);
+        program.use(gl);
+
+        vbo.bind(gl);
+        program.linkAttribs(gl, vbo);
+
+        gl.glEnable(GL3.GL_PROGRAM_POINT_SIZE);
+        gl.glDrawArrays(GL3.GL_POINTS, 0, slotCount);
+    }
+
+    /**
+     * Getter for the number of leaves currently held by this buffer.
+     *
+     * @return the number of leaves.
+     */
+    public int getLeafCount() {
+        return slotCount - freeCount;
+    }
+
+    /**
+     * Deletes the GPU storage of this buffer, and detaches it from its tree.
+     *
+     * @param gl
+     *            the current GL instance.
+     */
+    public void delete(GL3 gl) {
+        if (vbo != null) {
+            vbo.delete(gl);
+            vbo = null;
+        }
+        if (root.leafBuffer == this) {
+            root.leafBuffer = null;
+        }
+    }
+}
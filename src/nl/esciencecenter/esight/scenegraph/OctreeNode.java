@@ -1,15 +1,22 @@
 package nl.esciencecenter.esight.scenegraph;
 
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.media.opengl.GL3;
 
+import nl.esciencecenter.esight.datastructures.GLSLAttrib;
+import nl.esciencecenter.esight.exceptions.InverseNotAvailableException;
 import nl.esciencecenter.esight.exceptions.UninitializedException;
-import nl.esciencecenter.esight.input.InputHandler;
+import nl.esciencecenter.esight.math.Frustum;
 import nl.esciencecenter.esight.math.MatF4;
 import nl.esciencecenter.esight.math.MatrixFMath;
 import nl.esciencecenter.esight.math.VecF3;
 import nl.esciencecenter.esight.math.VecF4;
+import nl.esciencecenter.esight.models.Box;
 import nl.esciencecenter.esight.models.Model;
 import nl.esciencecenter.esight.shaders.ShaderProgram;
 import nl.esciencecenter.esight.util.Settings;
@@ -17,6 +24,8 @@ import nl.esciencecenter.esight.util.Settings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.jogamp.common.nio.Buffers;
+
 /* Copyright [2013] [Netherlands eScience Center]
  * 
  * Licensed under the Apache License, Version 2.0 (the "License");
@@ -45,6 +54,16 @@ import org.slf4j.LoggerFactory;
  */
 public class OctreeNode {
     private final static Logger logger = LoggerFactory.getLogger(OctreeNode.class);
+
+    /**
+     * The number of elements below which the parallel build does not split its
+     * work any further, see {@link #addElements(ForkJoinPool, List)}.
+     */
+    public static int PARALLEL_BUILD_THRESHOLD = 16384;
+
+    /** Half the diagonal of a cube with ribs of length 1. */
+    private static final float HALF_DIAGONAL = (float) (0.5 * Math.sqrt(3.0));
+
     /**
      * The maximum number of elements this node may contain before subdivision
      * occurs.
@@ -73,8 +92,67 @@ public class OctreeNode {
     protected boolean initialized = false;
     /** State holder for finalization step. */
     protected boolean drawable = false;
+    /**
+     * Whether elements were added, moved or removed in the subtree of this
+     * node since it was last finalized.
+     */
+    protected boolean dirty = true;
+    /** The slot of this (leaf) node in the {@link OctreeLeafBuffer}, or -1. */
+    protected int leafSlot = -1;
+    /** The {@link OctreeLeafBuffer} following this tree, if this is its root. */
+    protected OctreeLeafBuffer leafBuffer;
     /** The color for the drawable model. */
     protected VecF4 color;
+    /** The number of elements in the subtree of this node, after finalization. */
+    protected int elementCount;
+    /** The scale matrix for drawable nodes, created upon finalization. */
+    protected MatF4 SMatrix;
+    /**
+     * Storage for the modelview matrix of drawable nodes, reused on every draw
+     * so no garbage is produced per frame.
+     */
+    protected MatF4 currentMVMatrix;
+    /**
+     * Per-instance translation, scale and color of the drawable leaves below
+     * this node, built on the first instanced draw.
+     */
+    protected GLSLAttrib[] instanceAttribs;
+    /** The number of drawable leaves in {@link #instanceAttribs}. */
+    protected int instanceCount;
+    /**
+     * Storage for the inverse of the modelview matrix, used to find the eye
+     * position when this node is the root of a sorted draw.
+     */
+    private MatF4 inverseMVMatrix;
+    /** Storage for the view frustum of level of detail draws rooted at this node. */
+    private Frustum lodFrustum;
+    /** Statistics of the last draw rooted at this node. */
+    private int culledCount, drawnCount, occludedCount;
+    /**
+     * Storage for the eye position in the space of this octree, when this
+     * node is the root of a sorted draw.
+     */
+    private float[] eye;
+    /**
+     * The occlusion query object of this node, 0 until it is first needed,
+     * whether its result is still to be read back (and is still of use), and
+     * the visibility of this node according to the last result.
+     */
+    private int occlusionQuery;
+    private boolean occlusionQueryPending = false;
+    private boolean occlusionQueryStale = false;
+    private boolean occlusionVisible = true;
+    /**
+     * Unit cube drawn as the bounding box of hidden nodes, when this node is
+     * the root of an occlusion culled draw, and storage for query results.
+     */
+    private Model occlusionBox;
+    private int[] occlusionResult;
+    /**
+     * Occlusion queries of nodes that were merged away, to be deleted by the
+     * next occlusion culled draw (or delete) rooted at this node.
+     */
+    private ArrayList<Integer> discardedQueries;
 
     /**
      * Basic constructor for OctreeNode
@@ -130,6 +208,9 @@ public class OctreeNode {
         this.subdivided = other.subdivided;
         this.drawable = other.drawable;
         this.color = other.color;
+        this.elementCount = other.elementCount;
+        this.SMatrix = other.SMatrix;
+        this.currentMVMatrix = other.currentMVMatrix;
     }
 
     /**
@@ -168,6 +249,13 @@ public class OctreeNode {
         if (initialized) {
             model.delete(gl);
 
+            if (occlusionBox != null) {
+                occlusionBox.delete(gl);
+                occlusionBox = null;
+                deleteOcclusionQueries(gl, occlusionResult);
+                deleteDiscardedQueries(gl);
+            }
+
             // if (subdivided) {
             // ppp.delete(gl);
             // ppn.delete(gl);
@@ -191,15 +279,26 @@ public class OctreeNode {
         int newDepth = depth + 1;
 
         ppp = new OctreeNode(model, maxElements, newDepth, center.add(new VecF3(0f, 0f, 0f)), childRibSize);
-        ppn = new OctreeNode(model, maxElements, newDepth, center.add(new VecF3(0f, 0f, -ribSize)), childRibSize);
-        pnp = new OctreeNode(model, maxElements, newDepth, center.add(new VecF3(0f, -ribSize, 0f)), childRibSize);
-        pnn = new OctreeNode(model, maxElements, newDepth, center.add(new VecF3(0f, -ribSize, -ribSize)), childRibSize);
-        npp = new OctreeNode(model, maxElements, newDepth, center.add(new VecF3(-ribSize, 0f, 0f)), childRibSize);
-        npn = new OctreeNode(model, maxElements, newDepth, center.add(new VecF3(-ribSize, 0f, -ribSize)), childRibSize);
-        nnp = new OctreeNode(model, maxElements, newDepth, center.add(new VecF3(-ribSize, -ribSize, 0f)), childRibSize);
-        nnn = new OctreeNode(model, maxElements, newDepth, center.add(new VecF3(-ribSize, -ribSize, -ribSize)),
+        ppn = new OctreeNode(model, maxElements, newDepth, center.add(new VecF3(0f, 0f, -childRibSize)), childRibSize);
+        pnp = new OctreeNode(model, maxElements, newDepth, center.add(new VecF3(0f, -childRibSize, 0f)), childRibSize);
+        pnn = new OctreeNode(model, maxElements, newDepth, center.add(new VecF3(0f, -childRibSize, -childRibSize)), childRibSize);
+        npp = new OctreeNode(model, maxElements, newDepth, center.add(new VecF3(-childRibSize, 0f, 0f)), childRibSize);
+        npn = new OctreeNode(model, maxElements, newDepth, center.add(new VecF3(-childRibSize, 0f, -childRibSize)), childRibSize);
+        nnp = new OctreeNode(model, maxElements, newDepth, center.add(new VecF3(-childRibSize, -childRibSize, 0f)), childRibSize);
+        nnn = new OctreeNode(model, maxElements, newDepth, center.add(new VecF3(-childRibSize, -childRibSize, -childRibSize)),
                 childRibSize);
 
+        // The children share this node's model, so they are initialized if this node is. Otherwise an insert or move
+        // after init() would leave uninitialized children behind for the next traversal to trip over.
+        ppp.initialized = initialized;
+        ppn.initialized = initialized;
+        pnp.initialized = initialized;
+        pnn.initialized = initialized;
+        npp.initialized = initialized;
+        npn.initialized = initialized;
+        nnp.initialized = initialized;
+        nnn.initialized = initialized;
+
         for (OctreeElement element : elements) {
             addElementSubdivided(element);
         }
@@ -233,7 +332,8 @@ public class OctreeNode {
     }
 
     /**
-     * Add an element to this node.
+     * Add an element to this node. Elements can also be added after
+     * {@link #finalizeAdding()}, see {@link #finalizeUpdates()}.
      * 
      * @param element
      *            The {@link OctreeElement} to add to this node.
@@ -244,6 +344,8 @@ public class OctreeNode {
         // If this is the root, check if the location of the element is within
         // the domain governed by this octree.
         if (depth > 0 || isInThisNodesSpace(location)) {
+            dirty = true;
+
             // Check if we are full yet.
             if (!subdivided && (elements.size() > maxElements)) {
                 if (depth < Settings.getInstance().getMaxOctreeDepth()) {
@@ -269,10 +371,10 @@ public class OctreeNode {
 
     /**
      * Finalize the addition of new elements to this node. Calculate things we
-     * have to calculate for drawing (f.e. color), and clear datastructures.
-     * ATTENTION: This is a placeholder, and currently sets the color to
-     * transparent white based on population density compared to
-     * {@link #maxElements}. Override this.
+     * have to calculate for drawing (f.e. color). The leaves keep their
+     * elements, so the tree can be updated afterwards. ATTENTION: This is a
+     * placeholder, and currently sets the color to transparent white based on
+     * population density compared to {@link #maxElements}. Override this.
      */
     public void finalizeAdding() {
         if (subdivided) {
@@ -284,55 +386,392 @@ public class OctreeNode {
             npn.finalizeAdding();
             nnp.finalizeAdding();
             nnn.finalizeAdding();
+
+            finalizeInner();
         } else {
-            color = new VecF4(1f, 1f, 1f, (elements.size() / maxElements));
-            drawable = true;
+            finalizeLeaf(elements.size());
         }
 
-        elements.clear();
+        dirty = false;
     }
 
     /**
-     * Add an element to the proper child.
+     * Removes an element from this (finalized) tree. Call
+     * {@link #finalizeUpdates()} on the root when done updating.
      * 
      * @param element
-     *            The element to add.
+     *            The element to remove, at the location it was added with.
+     * @return true if the element was found and removed.
      */
-    public void addElementSubdivided(OctreeElement element) {
+    public boolean removeElement(OctreeElement element) {
+        OctreeNode leaf = findLeaf(element.getCenter());
+        if (leaf != null && leaf.elements.remove(element)) {
+            markPathDirty(element.getCenter());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Moves an element of this (finalized) tree to a new location. Only if the
+     * element leaves its cell is it removed there and added again. Call
+     * {@link #finalizeUpdates()} on the root when done updating.
+     * 
+     * @param element
+     *            The element to move, at the location it was added with.
+     * @param newLocation
+     *            The new location, copied into the center of the element.
+     * @return true if the element was found and is still inside this tree.
+     */
+    public boolean moveElement(OctreeElement element, VecF3 newLocation) {
         VecF3 location = element.getCenter();
-        if (location.get(0) < center.get(0)) {
-            if (location.get(1) < center.get(1)) {
-                if (location.get(2) < center.get(2)) {
-                    nnn.addElement(element);
-                } else {
-                    nnp.addElement(element);
-                }
+        OctreeNode leaf = findLeaf(location);
+        if (leaf == null || !leaf.elements.contains(element)) {
+            return false;
+        }
+        markPathDirty(location);
+
+        if (leaf == findLeaf(newLocation)) {
+            location.set(newLocation);
+            return true;
+        }
+
+        leaf.elements.remove(element);
+        location.set(newLocation);
+        if (isInThisNodesSpace(location)) {
+            addElement(element);
+            return true;
+        }
+
+        logger.warn("OctreeElement moved outside of the governed domain of this OctreeNode.");
+        return false;
+    }
+
+    /**
+     * Finalizes the changes made by {@link #addElement(OctreeElement)},
+     * {@link #removeElement(OctreeElement)} and
+     * {@link #moveElement(OctreeElement, VecF3)} since the last finalization.
+     * Only the nodes on the paths to changed leaves are visited and refreshed,
+     * so the cost scales with the number of changed cells rather than with
+     * the size of the tree. Leaves that were split are finalized, and nodes
+     * whose children together hold no more than {@link #maxElements} elements
+     * are merged back into a single leaf. An {@link OctreeLeafBuffer} of this
+     * tree is updated along.
+     */
+    public void finalizeUpdates() {
+        finalizeUpdates(this);
+    }
+
+    private void finalizeUpdates(OctreeNode root) {
+        if (!dirty) {
+            return;
+        }
+
+        // The instanced draw data include this subtree
+        instanceAttribs = null;
+
+        if (subdivided) {
+            int total = 0;
+            boolean childrenAreLeaves = true;
+            for (int octant = 0; octant < 8; octant++) {
+                OctreeNode child = getChild(octant);
+                child.finalizeUpdates(root);
+                childrenAreLeaves &= !child.subdivided;
+                total += child.elements.size();
+            }
+
+            if (childrenAreLeaves && total <= maxElements) {
+                merge(root);
             } else {
-                if (location.get(2) < center.get(2)) {
-                    npn.addElement(element);
-                } else {
-                    npp.addElement(element);
-                }
+                finalizeInner();
             }
         } else {
-            if (location.get(1) < center.get(1)) {
-                if (location.get(2) < center.get(2)) {
-                    pnn.addElement(element);
-                } else {
-                    pnp.addElement(element);
+            finalizeLeaf(elements.size());
+        }
+
+        if (root.leafBuffer != null) {
+            root.leafBuffer.update(this);
+        }
+
+        dirty = false;
+    }
+
+    /**
+     * Merges the (leaf) children of this node back into this node, the
+     * opposite of {@link #subdivide()}.
+     */
+    private void merge(OctreeNode root) {
+        for (int octant = 0; octant < 8; octant++) {
+            OctreeNode child = getChild(octant);
+            elements.addAll(child.elements);
+
+            if (root.leafBuffer != null) {
+                root.leafBuffer.release(child);
+            }
+
+            if (child.occlusionQuery != 0) {
+                if (root.discardedQueries == null) {
+                    root.discardedQueries = new ArrayList<Integer>();
                 }
-            } else {
-                if (location.get(2) < center.get(2)) {
-                    ppn.addElement(element);
+                root.discardedQueries.add(child.occlusionQuery);
+            }
+        }
+
+        ppp = ppn = pnp = pnn = npp = npn = nnp = nnn = null;
+        subdivided = false;
+
+        finalizeLeaf(elements.size());
+    }
+
+    /**
+     * Finds the leaf whose cube contains the given location.
+     * 
+     * @param location
+     *            The location to look for.
+     * @return The leaf, or null if the location is outside of this node.
+     */
+    private OctreeNode findLeaf(VecF3 location) {
+        if (!isInThisNodesSpace(location)) {
+            return null;
+        }
+
+        OctreeNode node = this;
+        while (node.subdivided) {
+            node = node.getChild(node.octantOf(location));
+        }
+        return node;
+    }
+
+    private void markPathDirty(VecF3 location) {
+        OctreeNode node = this;
+        node.dirty = true;
+        while (node.subdivided) {
+            node = node.getChild(node.octantOf(location));
+            node.dirty = true;
+        }
+    }
+
+    /**
+     * Prepares this (leaf) node for drawing, based on the number of elements
+     * that ended up in it. ATTENTION: This is a placeholder, see
+     * {@link #finalizeAdding()}. Override this.
+     * 
+     * @param elementCount
+     *            The number of elements in this node.
+     */
+    protected void finalizeLeaf(int elementCount) {
+        this.elementCount = elementCount;
+        color = new VecF4(1f, 1f, 1f, (elementCount / maxElements));
+        SMatrix = MatrixFMath.scale(scale);
+        currentMVMatrix = new MatF4();
+        drawable = true;
+    }
+
+    /**
+     * Prepares this (subdivided) node for drawing as a stand-in for its
+     * children, see {@link #drawLOD(GL3, ShaderProgram, MatF4, MatF4, int)}.
+     * Its element count is the sum of those of its children, and its color is
+     * the average of theirs, so a node covers the same average density as the
+     * 8 cubes it replaces. Assumes the children were finalized.
+     */
+    protected void finalizeInner() {
+        elementCount = 0;
+        float r = 0f, g = 0f, b = 0f, a = 0f;
+        for (int octant = 0; octant < 8; octant++) {
+            OctreeNode child = getChild(octant);
+            elementCount += child.elementCount;
+            r += child.color.get(0);
+            g += child.color.get(1);
+            b += child.color.get(2);
+            a += child.color.get(3);
+        }
+
+        color = new VecF4(r / 8f, g / 8f, b / 8f, a / 8f);
+        SMatrix = MatrixFMath.scale(scale);
+        currentMVMatrix = new MatF4();
+        drawable = true;
+    }
+
+    /**
+     * Getter for the number of elements in the subtree of this node. Only
+     * valid after finalization.
+     * 
+     * @return the number of elements.
+     */
+    public int getElementCount() {
+        return elementCount;
+    }
+
+    /**
+     * Add an element to the proper child.
+     * 
+     * @param element
+     *            The element to add.
+     */
+    public void addElementSubdivided(OctreeElement element) {
+        getChild(octantOf(element.getCenter())).addElement(element);
+    }
+
+    /**
+     * Determines the octant of this node the given location falls in. Octants
+     * are numbered (x << 2) | (y << 1) | z, where a 1 bit means the positive
+     * half of that axis, like in {@link LinearOctree}.
+     * 
+     * @param location
+     *            The location to check.
+     * @return The octant, 0 ({@link #nnn}) to 7 ({@link #ppp}).
+     */
+    protected int octantOf(VecF3 location) {
+        return octantOf(location.get(0), location.get(1), location.get(2));
+    }
+
+    /**
+     * Determines the octant of this node the given location falls in, see
+     * {@link #octantOf(VecF3)}.
+     * 
+     * @param x
+     *            The x coordinate of the location.
+     * @param y
+     *            The y coordinate of the location.
+     * @param z
+     *            The z coordinate of the location.
+     * @return The octant, 0 ({@link #nnn}) to 7 ({@link #ppp}).
+     */
+    protected int octantOf(float x, float y, float z) {
+        int octant = 0;
+        if (x >= center.get(0)) {
+            octant |= 4;
+        }
+        if (y >= center.get(1)) {
+            octant |= 2;
+        }
+        if (z >= center.get(2)) {
+            octant |= 1;
+        }
+        return octant;
+    }
+
+    /**
+     * Getter for the child node of the given octant, see
+     * {@link #octantOf(VecF3)}.
+     * 
+     * @param octant
+     *            The octant, 0 to 7.
+     * @return The child node, or null if this node is not subdivided.
+     */
+    protected OctreeNode getChild(int octant) {
+        switch (octant) {
+        case 0:
+            return nnn;
+        case 1:
+            return nnp;
+        case 2:
+            return npn;
+        case 3:
+            return npp;
+        case 4:
+            return pnn;
+        case 5:
+            return pnp;
+        case 6:
+            return ppn;
+        default:
+            return ppp;
+        }
+    }
+
+    /**
+     * Parallel version of {@link #addElement(OctreeElement)}, for adding many
+     * elements at once. The elements are partitioned by octant, and the
+     * subtrees of the octants are built in parallel on the given pool, down to
+     * parts smaller than {@link #PARALLEL_BUILD_THRESHOLD}. The resulting tree
+     * is the same as when the elements were added one at a time.
+     * 
+     * @param pool
+     *            The fork/join pool to build the tree on.
+     * @param newElements
+     *            The {@link OctreeElement}s to add to this node.
+     */
+    public void addElements(ForkJoinPool pool, List<OctreeElement> newElements) {
+        List<OctreeElement> inside = newElements;
+
+        // If this is the root, leave out the elements outside of its domain.
+        if (depth == 0) {
+            inside = new ArrayList<OctreeElement>(newElements.size());
+            for (OctreeElement element : newElements) {
+                if (isInThisNodesSpace(element.getCenter())) {
+                    inside.add(element);
                 } else {
-                    ppp.addElement(element);
+                    logger.warn("OctreeElement added that is not within governed domain of this OctreeNode.");
                 }
             }
         }
+
+        if (inside.size() <= PARALLEL_BUILD_THRESHOLD) {
+            addElementsSerial(inside);
+        } else {
+            pool.invoke(new BuildTask(this, inside));
+        }
+    }
+
+    private void addElementsSerial(List<OctreeElement> newElements) {
+        for (OctreeElement element : newElements) {
+            addElement(element);
+        }
     }
 
     /**
-     * OpenGL draw method.
+     * Fork/join task that adds a part of the elements to a node, splitting the
+     * work over its children.
+     */
+    private static class BuildTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final OctreeNode node;
+        private final List<OctreeElement> newElements;
+
+        BuildTask(OctreeNode node, List<OctreeElement> newElements) {
+            this.node = node;
+            this.newElements = newElements;
+        }
+
+        @Override
+        protected void compute() {
+            if (newElements.size() <= PARALLEL_BUILD_THRESHOLD) {
+                node.addElementsSerial(newElements);
+                return;
+            }
+
+            // A node subdivides once it holds more than maxElements + 1
+            // elements, regardless of the order they were added in.
+            if (!node.subdivided && node.elements.size() + newElements.size() > node.maxElements + 1
+                    && node.depth < Settings.getInstance().getMaxOctreeDepth()) {
+                node.subdivide();
+            }
+            if (!node.subdivided) {
+                node.addElementsSerial(newElements);
+                return;
+            }
+
+            List<List<OctreeElement>> parts = new ArrayList<List<OctreeElement>>(8);
+            for (int octant = 0; octant < 8; octant++) {
+                parts.add(new ArrayList<OctreeElement>(newElements.size() / 4));
+            }
+            for (OctreeElement element : newElements) {
+                parts.get(node.octantOf(element.getCenter())).add(element);
+            }
+
+            List<BuildTask> tasks = new ArrayList<BuildTask>(8);
+            for (int octant = 0; octant < 8; octant++) {
+                tasks.add(new BuildTask(node.getChild(octant), parts.get(octant)));
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * OpenGL draw method. Draws the leaves back to front as seen from the eye
+     * position in the given modelview matrix, for blending.
      * 
      * @param gl
      *            the current GL instance.
@@ -345,140 +784,592 @@ public class OctreeNode {
      *             {@link #init(GL3)} method.
      */
     public void draw(GL3 gl, ShaderProgram program, MatF4 MVMatrix) throws UninitializedException {
-        if (initialized) {
-            if (subdivided) {
-                draw_sorted(gl, program, MVMatrix);
-            } else {
-                if (drawable) {
-                    MatF4 newM = MVMatrix.mul(TMatrix);
-                    program.setUniformMatrix("MVMatrix", newM);
-                    program.setUniformMatrix("SMatrix", MatrixFMath.scale(scale));
-                    program.setUniformVector("Color", color);
+        draw(gl, program, MVMatrix, true);
+    }
 
-                    program.use(gl);
+    /**
+     * OpenGL draw method. The children of every node are visited in order of
+     * their distance to the eye position in the given modelview matrix: back
+     * to front for blending, or front to back so the depth test rejects as
+     * many fragments as possible.
+     * 
+     * @param gl
+     *            the current GL instance.
+     * @param program
+     *            The ShaderProgram to use in the drawing process.
+     * @param MVMatrix
+     *            The global Modelview Matrix.
+     * @param backToFront
+     *            true to draw far to near, false to draw near to far.
+     * @throws UninitializedException
+     *             if this method was called before calling the
+     *             {@link #init(GL3)} method.
+     */
+    public void draw(GL3 gl, ShaderProgram program, MatF4 MVMatrix, boolean backToFront)
+            throws UninitializedException {
+        drawSorted(gl, program, MVMatrix, null, backToFront, 0f);
+    }
 
-                    model.draw(gl, program);
-                }
-            }
-        } else {
+    /**
+     * Frustum culled OpenGL draw method, see
+     * {@link #draw(GL3, ShaderProgram, MatF4, boolean)}. Subtrees whose cube is
+     * completely outside the frustum are skipped, and subtrees completely
+     * inside it are drawn without testing any further. The number of culled
+     * and drawn nodes is available afterwards from {@link #getCulledCount()}
+     * and {@link #getDrawnCount()}.
+     * 
+     * @param gl
+     *            the current GL instance.
+     * @param program
+     *            The ShaderProgram to use in the drawing process.
+     * @param MVMatrix
+     *            The global Modelview Matrix.
+     * @param frustum
+     *            The view frustum in the space of this octree (see
+     *            {@link Frustum#set(MatF4, MatF4)} with the projection and
+     *            global Modelview Matrix), or null to draw without culling.
+     * @param backToFront
+     *            true to draw far to near, false to draw near to far.
+     * @throws UninitializedException
+     *             if this method was called before calling the
+     *             {@link #init(GL3)} method.
+     */
+    public void draw(GL3 gl, ShaderProgram program, MatF4 MVMatrix, Frustum frustum, boolean backToFront)
+            throws UninitializedException {
+        drawSorted(gl, program, MVMatrix, frustum, backToFront, 0f);
+    }
+
+    /**
+     * Level of detail OpenGL draw method. Like
+     * {@link #draw(GL3, ShaderProgram, MatF4)}, but stops descending into a
+     * node once it projects to fewer pixels than the threshold in the
+     * {@link Settings}, and draws that node in place of its subtree. The cost
+     * of a frame then depends on the screen resolution rather than on the
+     * number of leaves. Nodes outside of the view frustum of the given
+     * matrices are culled, see
+     * {@link #draw(GL3, ShaderProgram, MatF4, Frustum, boolean)}.
+     * 
+     * @param gl
+     *            the current GL instance.
+     * @param program
+     *            The ShaderProgram to use in the drawing process.
+     * @param MVMatrix
+     *            The global Modelview Matrix.
+     * @param PMatrix
+     *            The (perspective) projection matrix.
+     * @param viewportHeight
+     *            The height of the viewport, in pixels.
+     * @throws UninitializedException
+     *             if this method was called before calling the
+     *             {@link #init(GL3)} method.
+     */
+    public void drawLOD(GL3 gl, ShaderProgram program, MatF4 MVMatrix, MatF4 PMatrix, int viewportHeight)
+            throws UninitializedException {
+        drawLOD(gl, program, MVMatrix, PMatrix, viewportHeight, Settings.getInstance()
+                .getOctreeLODPixelThreshold(), true);
+    }
+
+    /**
+     * Level of detail OpenGL draw method, see
+     * {@link #drawLOD(GL3, ShaderProgram, MatF4, MatF4, int)}.
+     * 
+     * @param gl
+     *            the current GL instance.
+     * @param program
+     *            The ShaderProgram to use in the drawing process.
+     * @param MVMatrix
+     *            The global Modelview Matrix.
+     * @param PMatrix
+     *            The (perspective) projection matrix.
+     * @param viewportHeight
+     *            The height of the viewport, in pixels.
+     * @param pixelThreshold
+     *            The projected size, in pixels, below which a node is drawn
+     *            instead of its children.
+     * @param backToFront
+     *            true to draw far to near, false to draw near to far.
+     * @throws UninitializedException
+     *             if this method was called before calling the
+     *             {@link #init(GL3)} method.
+     */
+    public void drawLOD(GL3 gl, ShaderProgram program, MatF4 MVMatrix, MatF4 PMatrix, int viewportHeight,
+            float pixelThreshold, boolean backToFront) throws UninitializedException {
+        // A length l at depth d projects to l * P[1][1] * (height / 2) / d
+        // pixels. Stop at nodes where ribSize * lodFactor < d.
+        float lodFactor = PMatrix.get(5) * 0.5f * viewportHeight / pixelThreshold;
+
+        if (lodFrustum == null) {
+            lodFrustum = new Frustum();
+        }
+        lodFrustum.set(PMatrix, MVMatrix);
+
+        drawSorted(gl, program, MVMatrix, lodFrustum, backToFront, lodFactor);
+    }
+
+    private void drawSorted(GL3 gl, ShaderProgram program, MatF4 MVMatrix, Frustum frustum, boolean backToFront,
+            float lodFactor) throws UninitializedException {
+        if (!initialized) {
             throw new UninitializedException();
         }
+
+        culledCount = 0;
+        drawnCount = 0;
+
+        float[] eye = findEye(MVMatrix);
+
+        // Octree lengths are scaled by the modelview matrix before projection
+        float mvScale = (float) Math.sqrt(MVMatrix.get(0) * MVMatrix.get(0) + MVMatrix.get(4) * MVMatrix.get(4)
+                + MVMatrix.get(8) * MVMatrix.get(8));
+
+        draw(gl, program, MVMatrix, frustum, eye[0], eye[1], eye[2], backToFront, mvScale * lodFactor, mvScale, this);
+    }
+
+    /**
+     * Finds the position of the eye in the space of this octree. The eye is at
+     * the origin of eye space, so at the translation of the inverse modelview
+     * matrix. Falls back to the center of this node if the matrix can not be
+     * inverted, which draws the tree in a fixed order.
+     * 
+     * @param MVMatrix
+     *            The global Modelview Matrix.
+     * @return The eye position, valid until the next call.
+     */
+    private float[] findEye(MatF4 MVMatrix) {
+        if (eye == null) {
+            eye = new float[3];
+        }
+        eye[0] = center.get(0);
+        eye[1] = center.get(1);
+        eye[2] = center.get(2);
+
+        if (subdivided) {
+            if (inverseMVMatrix == null) {
+                inverseMVMatrix = new MatF4();
+            }
+            try {
+                MatrixFMath.inverse(MVMatrix, inverseMVMatrix);
+                float w = inverseMVMatrix.get(15);
+                eye[0] = inverseMVMatrix.get(3) / w;
+                eye[1] = inverseMVMatrix.get(7) / w;
+                eye[2] = inverseMVMatrix.get(11) / w;
+            } catch (InverseNotAvailableException e) {
+                logger.warn("Modelview matrix not invertible, drawing octree unsorted.");
+            }
+        }
+        return eye;
+    }
+
+    private void draw(GL3 gl, ShaderProgram program, MatF4 MVMatrix, Frustum frustum, float eyeX, float eyeY,
+            float eyeZ, boolean backToFront, float lodFactor, float mvScale, OctreeNode root)
+            throws UninitializedException {
+        if (frustum != null) {
+            float halfRibSize = ribSize * 0.5f;
+            int visibility = frustum.classifyBox(center.get(0) - halfRibSize, center.get(1) - halfRibSize,
+                    center.get(2) - halfRibSize, center.get(0) + halfRibSize, center.get(1) + halfRibSize,
+                    center.get(2) + halfRibSize);
+            if (visibility == Frustum.OUTSIDE) {
+                root.culledCount++;
+                return;
+            } else if (visibility == Frustum.INSIDE) {
+                // So are all children, stop testing
+                frustum = null;
+            }
+        }
+
+        if (subdivided && lodFactor > 0f) {
+            // Use the nearest depth of the bounding sphere, so nodes
+            // reaching towards the eye are refined.
+            float depth = -(MVMatrix.get(8) * center.get(0) + MVMatrix.get(9) * center.get(1)
+                    + MVMatrix.get(10) * center.get(2) + MVMatrix.get(11));
+            float nearest = depth - HALF_DIAGONAL * ribSize * mvScale;
+
+            if (nearest > 0f && ribSize * lodFactor < nearest) {
+                drawNode(gl, program, MVMatrix);
+                root.drawnCount++;
+                return;
+            }
+        }
+
+        if (subdivided) {
+            // Visiting the octants as (first ^ i) for i = 0..7 visits the
+            // near x half before the far x half, within those the near y
+            // half first, and within those the near z half first.
+            int first = octantOf(eyeX, eyeY, eyeZ);
+            if (backToFront) {
+                first ^= 7;
+            }
+            for (int i = 0; i < 8; i++) {
+                getChild(first ^ i).draw(gl, program, MVMatrix, frustum, eyeX, eyeY, eyeZ, backToFront, lodFactor,
+                        mvScale, root);
+            }
+        } else if (drawable) {
+            drawNode(gl, program, MVMatrix);
+            root.drawnCount++;
+        }
+    }
+
+    /**
+     * Getter for the number of nodes that were culled, as whole subtrees, by
+     * the last draw rooted at this node.
+     * 
+     * @return the number of culled nodes.
+     */
+    public int getCulledCount() {
+        return culledCount;
+    }
+
+    /**
+     * Getter for the number of nodes that were drawn by the last draw rooted
+     * at this node.
+     * 
+     * @return the number of drawn nodes.
+     */
+    public int getDrawnCount() {
+        return drawnCount;
     }
 
     /**
-     * Draws this node in the proper sorted order based on the current octant in
-     * the {@link InputHandler}
+     * Getter for the number of nodes that were skipped, as whole subtrees,
+     * because they were hidden in the last occlusion culled draw rooted at
+     * this node.
+     * 
+     * @return the number of occluded nodes.
+     */
+    public int getOccludedCount() {
+        return occludedCount;
+    }
+
+    /**
+     * Occlusion culled OpenGL draw method. Draws the leaves front to back, and
+     * wraps every draw in a GL_ANY_SAMPLES_PASSED query. A node whose leaves
+     * all turned out hidden is skipped from then on, and only its bounding
+     * box is tested (without writing color or depth) until it shows up again.
+     * Query results are read back one or more frames later, and only once the
+     * GPU has them available, so the draw never waits for the GPU; in return a
+     * node that comes into view may appear a frame late.
+     * 
+     * This only helps if the leaves write depth, so draw opaque leaves with the
+     * depth test and depth writes enabled. Nodes outside of the given frustum
+     * are culled as in {@link #draw(GL3, ShaderProgram, MatF4, Frustum, boolean)}.
      * 
      * @param gl
-     *            the current opengl instance.
+     *            the current GL instance.
      * @param program
-     *            the shaderprogram to use in drawing.
+     *            The ShaderProgram to use in the drawing process.
      * @param MVMatrix
-     *            the global Modelview Matrix.
+     *            The global Modelview Matrix.
+     * @param frustum
+     *            The view frustum in the space of this octree, or null to draw
+     *            without frustum culling.
+     * @throws UninitializedException
+     *             if this method was called before calling the
+     *             {@link #init(GL3)} method.
      */
-    protected void draw_sorted(GL3 gl, ShaderProgram program, MatF4 MVMatrix) {
-        InputHandler inputHandler = InputHandler.getInstance();
+    public void drawOcclusionCulled(GL3 gl, ShaderProgram program, MatF4 MVMatrix, Frustum frustum)
+            throws UninitializedException {
+        if (!initialized) {
+            throw new UninitializedException();
+        }
 
-        try {
-            if (inputHandler.getCurrentViewOctant() == InputHandler.octants.NNN) {
-                ppp.draw(gl, program, MVMatrix);
+        if (occlusionBox == null) {
+            occlusionBox = new Box(1f, 1f, 1f, true);
+            occlusionBox.init(gl);
+            occlusionResult = new int[1];
+        }
 
-                npp.draw(gl, program, MVMatrix);
-                pnp.draw(gl, program, MVMatrix);
-                ppn.draw(gl, program, MVMatrix);
+        culledCount = 0;
+        drawnCount = 0;
+        occludedCount = 0;
+        deleteDiscardedQueries(gl);
 
-                nnp.draw(gl, program, MVMatrix);
-                pnn.draw(gl, program, MVMatrix);
-                npn.draw(gl, program, MVMatrix);
+        float[] eye = findEye(MVMatrix);
+        drawOcclusionCulled(gl, program, MVMatrix, frustum, eye[0], eye[1], eye[2], this);
+    }
 
-                nnn.draw(gl, program, MVMatrix);
-            } else if (inputHandler.getCurrentViewOctant() == InputHandler.octants.NNP) {
-                ppn.draw(gl, program, MVMatrix);
+    /**
+     * Recursive part of the occlusion culled draw method.
+     * 
+     * @return true if anything in this subtree is (believed to be) visible.
+     */
+    private boolean drawOcclusionCulled(GL3 gl, ShaderProgram program, MatF4 MVMatrix, Frustum frustum,
+            float eyeX, float eyeY, float eyeZ, OctreeNode root) throws UninitializedException {
+        float halfRibSize = ribSize * 0.5f;
+        if (frustum != null) {
+            int visibility = frustum.classifyBox(center.get(0) - halfRibSize, center.get(1) - halfRibSize,
+                    center.get(2) - halfRibSize, center.get(0) + halfRibSize, center.get(1) + halfRibSize,
+                    center.get(2) + halfRibSize);
+            if (visibility == Frustum.OUTSIDE) {
+                root.culledCount++;
+                return false;
+            } else if (visibility == Frustum.INSIDE) {
+                frustum = null;
+            }
+        }
 
-                npn.draw(gl, program, MVMatrix);
-                pnn.draw(gl, program, MVMatrix);
-                ppp.draw(gl, program, MVMatrix);
+        int[] result = root.occlusionResult;
+        if (occlusionQueryPending) {
+            gl.glGetQueryObjectuiv(occlusionQuery, GL3.GL_QUERY_RESULT_AVAILABLE, result, 0);
+            if (result[0] != 0) {
+                gl.glGetQueryObjectuiv(occlusionQuery, GL3.GL_QUERY_RESULT, result, 0);
+                occlusionQueryPending = false;
 
-                nnn.draw(gl, program, MVMatrix);
-                pnp.draw(gl, program, MVMatrix);
-                npp.draw(gl, program, MVMatrix);
+                if (occlusionQueryStale) {
+                    occlusionQueryStale = false;
+                } else {
+                    if (result[0] != 0 && !occlusionVisible) {
+                        // Its children were hidden too, draw them all rather
+                        // than uncovering them one level per frame.
+                        revealOcclusion();
+                    }
+                    occlusionVisible = result[0] != 0;
+                }
+            }
+        }
 
-                nnp.draw(gl, program, MVMatrix);
-            } else if (inputHandler.getCurrentViewOctant() == InputHandler.octants.NPN) {
-                pnp.draw(gl, program, MVMatrix);
+        // A box around the eye is drawn (partly) behind the near plane, and
+        // can not be tested reliably.
+        boolean eyeInside = Math.abs(eyeX - center.get(0)) <= halfRibSize
+                && Math.abs(eyeY - center.get(1)) <= halfRibSize && Math.abs(eyeZ - center.get(2)) <= halfRibSize;
+        if (eyeInside && !occlusionVisible) {
+            revealOcclusion();
+        }
 
-                nnp.draw(gl, program, MVMatrix);
-                ppp.draw(gl, program, MVMatrix);
-                pnn.draw(gl, program, MVMatrix);
+        if (!occlusionVisible) {
+            if (!occlusionQueryPending) {
+                gl.glColorMask(false, false, false, false);
+                gl.glDepthMask(false);
 
-                npp.draw(gl, program, MVMatrix);
-                ppn.draw(gl, program, MVMatrix);
-                nnn.draw(gl, program, MVMatrix);
+                beginOcclusionQuery(gl, result);
+                MatF4 newM = MVMatrix.mulInto(TMatrix, currentMVMatrix);
+                program.setUniformMatrix("MVMatrix", newM);
+                program.setUniformMatrix("SMatrix", SMatrix);
+                program.use(gl);
+                root.occlusionBox.draw(gl, program);
+                gl.glEndQuery(GL3.GL_ANY_SAMPLES_PASSED);
 
-                npn.draw(gl, program, MVMatrix);
-            } else if (inputHandler.getCurrentViewOctant() == InputHandler.octants.NPP) {
-                pnn.draw(gl, program, MVMatrix);
+                gl.glColorMask(true, true, true, true);
+                gl.glDepthMask(true);
+            }
+            root.occludedCount++;
+            return false;
+        }
 
-                nnn.draw(gl, program, MVMatrix);
-                ppn.draw(gl, program, MVMatrix);
-                pnp.draw(gl, program, MVMatrix);
+        if (subdivided) {
+            // Front to back, so near leaves fill the depth buffer first
+            boolean anyVisible = false;
+            int first = octantOf(eyeX, eyeY, eyeZ);
+            for (int i = 0; i < 8; i++) {
+                anyVisible |= getChild(first ^ i).drawOcclusionCulled(gl, program, MVMatrix, frustum, eyeX, eyeY,
+                        eyeZ, root);
+            }
 
-                npn.draw(gl, program, MVMatrix);
-                ppp.draw(gl, program, MVMatrix);
-                nnp.draw(gl, program, MVMatrix);
+            // Once all children are hidden, test this node as a whole.
+            if (!anyVisible && !eyeInside && frustum == null) {
+                occlusionVisible = false;
+            }
+            return anyVisible;
+        } else if (drawable) {
+            if (occlusionQueryPending) {
+                drawNode(gl, program, MVMatrix);
+            } else {
+                beginOcclusionQuery(gl, result);
+                drawNode(gl, program, MVMatrix);
+                gl.glEndQuery(GL3.GL_ANY_SAMPLES_PASSED);
+            }
+            root.drawnCount++;
+            return true;
+        }
+        return false;
+    }
 
-                npp.draw(gl, program, MVMatrix);
-            } else if (inputHandler.getCurrentViewOctant() == InputHandler.octants.PNN) {
-                npp.draw(gl, program, MVMatrix);
+    private void beginOcclusionQuery(GL3 gl, int[] scratch) {
+        if (occlusionQuery == 0) {
+            gl.glGenQueries(1, scratch, 0);
+            occlusionQuery = scratch[0];
+        }
+        gl.glBeginQuery(GL3.GL_ANY_SAMPLES_PASSED, occlusionQuery);
+        occlusionQueryPending = true;
+    }
 
-                ppp.draw(gl, program, MVMatrix);
-                nnp.draw(gl, program, MVMatrix);
-                npn.draw(gl, program, MVMatrix);
+    /**
+     * Marks this node and all of its descendants as visible, so they are drawn
+     * (and tested again) on the next occlusion culled draw. Queries still in
+     * flight were issued while the nodes were hidden, so their results are
+     * ignored.
+     */
+    private void revealOcclusion() {
+        occlusionVisible = true;
+        occlusionQueryStale = occlusionQueryPending;
+        if (subdivided) {
+            for (int octant = 0; octant < 8; octant++) {
+                getChild(octant).revealOcclusion();
+            }
+        }
+    }
 
-                pnp.draw(gl, program, MVMatrix);
-                nnn.draw(gl, program, MVMatrix);
-                ppn.draw(gl, program, MVMatrix);
+    private void deleteDiscardedQueries(GL3 gl) {
+        if (discardedQueries != null && !discardedQueries.isEmpty()) {
+            int[] queries = new int[discardedQueries.size()];
+            for (int i = 0; i < queries.length; i++) {
+                queries[i] = discardedQueries.get(i);
+            }
+            gl.glDeleteQueries(queries.length, queries, 0);
+            discardedQueries.clear();
+        }
+    }
 
-                pnn.draw(gl, program, MVMatrix);
-            } else if (inputHandler.getCurrentViewOctant() == InputHandler.octants.PNP) {
-                npn.draw(gl, program, MVMatrix);
+    private void deleteOcclusionQueries(GL3 gl, int[] scratch) {
+        if (occlusionQuery != 0) {
+            scratch[0] = occlusionQuery;
+            gl.glDeleteQueries(1, scratch, 0);
+            occlusionQuery = 0;
+            occlusionQueryPending = false;
+            occlusionQueryStale = false;
+        }
+        occlusionVisible = true;
+        if (subdivided) {
+            for (int octant = 0; octant < 8; octant++) {
+                getChild(octant).deleteOcclusionQueries(gl, scratch);
+            }
+        }
+    }
 
-                ppn.draw(gl, program, MVMatrix);
-                nnn.draw(gl, program, MVMatrix);
-                npp.draw(gl, program, MVMatrix);
+    private void drawNode(GL3 gl, ShaderProgram program, MatF4 MVMatrix) throws UninitializedException {
+        MatF4 newM = MVMatrix.mulInto(TMatrix, currentMVMatrix);
+        program.setUniformMatrix("MVMatrix", newM);
+        program.setUniformMatrix("SMatrix", SMatrix);
+        program.setUniformVector("Color", color);
 
-                pnn.draw(gl, program, MVMatrix);
-                nnp.draw(gl, program, MVMatrix);
-                ppp.draw(gl, program, MVMatrix);
+        program.use(gl);
 
-                pnp.draw(gl, program, MVMatrix);
-            } else if (inputHandler.getCurrentViewOctant() == InputHandler.octants.PPN) {
-                nnp.draw(gl, program, MVMatrix);
+        model.draw(gl, program);
+    }
 
-                pnp.draw(gl, program, MVMatrix);
-                npp.draw(gl, program, MVMatrix);
-                nnn.draw(gl, program, MVMatrix);
+    /**
+     * Instanced OpenGL draw method. Draws all drawable leaves of this
+     * (sub)tree with a single instanced draw call, passing their translation,
+     * scale and color as per-instance attributes instead of uniforms. Use
+     * together with the vs_instanced.vp and fs_instanced.fp shaders. The
+     * leaves are drawn in a fixed order, so use
+     * {@link #draw(GL3, ShaderProgram, MatF4)} when the blending result depends
+     * on the view direction.
+     * 
+     * @param gl
+     *            the current GL instance.
+     * @param program
+     *            The ShaderProgram to use in the drawing process.
+     * @param MVMatrix
+     *            The global Modelview Matrix.
+     * @throws UninitializedException
+     *             if this method was called before calling the
+     *             {@link #init(GL3)} method.
+     */
+    public void drawInstanced(GL3 gl, ShaderProgram program, MatF4 MVMatrix) throws UninitializedException {
+        if (!initialized) {
+            throw new UninitializedException();
+        }
+
+        if (instanceAttribs == null) {
+            buildInstanceAttribs();
+        }
+        if (instanceCount == 0) {
+            return;
+        }
+
+        // The model may be shared with other octrees, only upload if needed.
+        if (model.getVBO().getInstanceAttribs() != instanceAttribs) {
+            model.setInstanceData(gl, instanceAttribs);
+        }
+
+        program.setUniformMatrix("MVMatrix", MVMatrix);
+        program.use(gl);
+
+        model.drawInstanced(gl, program, instanceCount);
+    }
+
+    /**
+     * Gathers the translation, scale and color of all drawable leaves below
+     * this node into the per-instance attributes.
+     */
+    protected void buildInstanceAttribs() {
+        instanceCount = countDrawableLeaves();
 
-                ppp.draw(gl, program, MVMatrix);
-                npn.draw(gl, program, MVMatrix);
-                pnn.draw(gl, program, MVMatrix);
+        FloatBuffer translations = Buffers.newDirectFloatBuffer(instanceCount * 3);
+        FloatBuffer scales = Buffers.newDirectFloatBuffer(instanceCount);
+        FloatBuffer colors = Buffers.newDirectFloatBuffer(instanceCount * 4);
 
-                ppn.draw(gl, program, MVMatrix);
-            } else if (inputHandler.getCurrentViewOctant() == InputHandler.octants.PPP) {
-                nnn.draw(gl, program, MVMatrix);
+        collectInstances(translations, scales, colors);
 
-                pnn.draw(gl, program, MVMatrix);
-                npn.draw(gl, program, MVMatrix);
-                nnp.draw(gl, program, MVMatrix);
+        translations.rewind();
+        scales.rewind();
+        colors.rewind();
 
-                ppn.draw(gl, program, MVMatrix);
-                npp.draw(gl, program, MVMatrix);
-                pnp.draw(gl, program, MVMatrix);
+        instanceAttribs = new GLSLAttrib[] {
+                new GLSLAttrib(translations, "InstanceTranslation", GLSLAttrib.SIZE_FLOAT, 3),
+                new GLSLAttrib(scales, "InstanceScale", GLSLAttrib.SIZE_FLOAT, 1),
+                new GLSLAttrib(colors, "InstanceColor", GLSLAttrib.SIZE_FLOAT, 4) };
+    }
 
-                ppp.draw(gl, program, MVMatrix);
-            }
-        } catch (UninitializedException e) {
-            e.printStackTrace();
+    private int countDrawableLeaves() {
+        if (subdivided) {
+            return ppp.countDrawableLeaves() + ppn.countDrawableLeaves() + pnp.countDrawableLeaves()
+                    + pnn.countDrawableLeaves() + npp.countDrawableLeaves() + npn.countDrawableLeaves()
+                    + nnp.countDrawableLeaves() + nnn.countDrawableLeaves();
+        }
+        return drawable ? 1 : 0;
+    }
+
+    private void collectInstances(FloatBuffer translations, FloatBuffer scales, FloatBuffer colors) {
+        if (subdivided) {
+            ppp.collectInstances(translations, scales, colors);
+            ppn.collectInstances(translations, scales, colors);
+            pnp.collectInstances(translations, scales, colors);
+            pnn.collectInstances(translations, scales, colors);
+            npp.collectInstances(translations, scales, colors);
+            npn.collectInstances(translations, scales, colors);
+            nnp.collectInstances(translations, scales, colors);
+            nnn.collectInstances(translations, scales, colors);
+        } else if (drawable) {
+            translations.put(center.asBuffer());
+            scales.put(scale);
+            colors.put(color.asBuffer());
+        }
+    }
+
+    /**
+     * Adds the drawable leaves of this (sub)tree to the given render queue,
+     * instead of drawing them directly. The leaves all share the same model,
+     * so the queue binds it only once. Use a back to front queue (see
+     * {@link RenderQueue#setBackToFront(boolean)}) when blending.
+     * 
+     * @param queue
+     *            The queue to add the draw items to.
+     * @param program
+     *            The ShaderProgram to use in the drawing process.
+     * @param MVMatrix
+     *            The global Modelview Matrix.
+     * @throws UninitializedException
+     *             if this method was called before calling the
+     *             {@link #init(GL3)} method.
+     */
+    public void queue(RenderQueue queue, ShaderProgram program, MatF4 MVMatrix) throws UninitializedException {
+        if (!initialized) {
+            throw new UninitializedException();
+        }
+
+        if (subdivided) {
+            ppp.queue(queue, program, MVMatrix);
+            ppn.queue(queue, program, MVMatrix);
+            pnp.queue(queue, program, MVMatrix);
+            pnn.queue(queue, program, MVMatrix);
+            npp.queue(queue, program, MVMatrix);
+            npn.queue(queue, program, MVMatrix);
+            nnp.queue(queue, program, MVMatrix);
+            nnn.queue(queue, program, MVMatrix);
+        } else if (drawable) {
+            int item = queue.add(program, null, model, MVMatrix.mulInto(TMatrix, currentMVMatrix));
+            queue.addUniform(item, "SMatrix", SMatrix);
+            queue.addUniform(item, "Color", color);
         }
     }
 }
@@ -0,0 +1,456 @@
+package nl.esciencecenter.esight.scenegraph;
+
+/* Copyright [2013] [Netherlands eScience Center]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Spatial queries on a {@link LinearOctree}: elements inside a box, inside a
+ * sphere, nearest to a point and near a ray. Results are element indices (into
+ * the positions the octree was built with), written into caller supplied
+ * arrays. The traversal storage is preallocated, so queries do not allocate
+ * once the k-nearest-neighbour storage has grown to the largest k used.
+ *
+ * A query object is not thread safe, use one per thread. It remains valid when
+ * the octree is rebuilt, as long as the maximum depth does not change.
+ *
+ * @author Maarten van Meersbergen <m.vanmeersbergen@esciencecenter.nl>
+ */
+public class OctreeQuery {
+    private final LinearOctree octree;
+
+    /** Traversal stack of nodes, with the lower corner of each node. */
+    private final int[] stackNodes;
+    private final float[] stackCorners;
+    private int stackSize;
+
+    /** Bounded max-heap of the k nearest elements found so far. */
+    private float[] heapDistances;
+    private int[] heapIndices;
+    private int heapSize;
+
+    /**
+     * Creates a new query object for the given octree.
+     *
+     * @param octree
+     *            The octree to query.
+     */
+    public OctreeQuery(LinearOctree octree) {
+        this.octree = octree;
+
+        // Every level of a depth first traversal leaves at most 7 siblings.
+        int capacity = 7 * (octree.maxDepth + 1) + 1;
+        this.stackNodes = new int[capacity];
+        this.stackCorners = new float[3 * capacity];
+
+        this.heapDistances = new float[0];
+        this.heapIndices = new int[0];
+    }
+
+    private void push(int node, float x, float y, float z) {
+        stackNodes[stackSize] = node;
+        stackCorners[3 * stackSize] = x;
+        stackCorners[3 * stackSize + 1] = y;
+        stackCorners[3 * stackSize + 2] = z;
+        stackSize++;
+    }
+
+    private void pushChild(int node, int octant, float x, float y, float z, float childRib) {
+        push(octree.nodeFirstChild[node] + octant, x + ((octant >> 2) & 1) * childRib, y + ((octant >> 1) & 1)
+                * childRib, z + (octant & 1) * childRib);
+    }
+
+    private void pushRoot() {
+        stackSize = 0;
+        push(0, octree.cornerX, octree.cornerY, octree.cornerZ);
+    }
+
+    /**
+     * Finds the elements inside the given axis aligned box.
+     *
+     * @param minX
+     *            The minimum x coordinate of the box.
+     * @param minY
+     *            The minimum y coordinate of the box.
+     * @param minZ
+     *            The minimum z coordinate of the box.
+     * @param maxX
+     *            The maximum x coordinate of the box.
+     * @param maxY
+     *            The maximum y coordinate of the box.
+     * @param maxZ
+     *            The maximum z coordinate of the box.
+     * @param out
+     *            The array to store the element indices in. The query stops
+     *            when it is full.
+     * @return The number of element indices stored.
+     */
+    public int queryBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, int[] out) {
+        final float[] positions = octree.positions;
+        final int[] indices = octree.indices;
+        int found = 0;
+
+        pushRoot();
+        while (stackSize > 0 && found < out.length) {
+            stackSize--;
+            int node = stackNodes[stackSize];
+            float x = stackCorners[3 * stackSize], y = stackCorners[3 * stackSize + 1], z = stackCorners[3 * stackSize + 2];
+            float rib = octree.getRibSize(octree.nodeDepth[node]);
+
+            if (x > maxX || y > maxY || z > maxZ || x + rib < minX || y + rib < minY || z + rib < minZ
+                    || octree.nodeSize[node] == 0) {
+                continue;
+            }
+
+            int start = octree.nodeStart[node];
+            int end = start + octree.nodeSize[node];
+
+            if (x >= minX && y >= minY && z >= minZ && x + rib <= maxX && y + rib <= maxY && z + rib <= maxZ) {
+                // Completely inside, take all elements without testing them
+                for (int i = start; i < end && found < out.length; i++) {
+                    out[found++] = indices[i];
+                }
+            } else if (octree.isLeaf(node)) {
+                for (int i = start; i < end && found < out.length; i++) {
+                    int e = indices[i];
+                    float px = positions[3 * e], py = positions[3 * e + 1], pz = positions[3 * e + 2];
+                    if (px >= minX && py >= minY && pz >= minZ && px <= maxX && py <= maxY && pz <= maxZ) {
+                        out[found++] = e;
+                    }
+                }
+            } else {
+                float childRib = 0.5f * rib;
+                for (int octant = 0; octant < 8; octant++) {
+                    pushChild(node, octant, x, y, z, childRib);
+                }
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Finds the elements inside the given sphere.
+     *
+     * @param centerX
+     *            The x coordinate of the center of the sphere.
+     * @param centerY
+     *            The y coordinate of the center of the sphere.
+     * @param centerZ
+     *            The z coordinate of the center of the sphere.
+     * @param radius
+     *            The radius of the sphere.
+     * @param out
+     *            The array to store the element indices in. The query stops
+     *            when it is full.
+     * @return The number of element indices stored.
+     */
+    public int queryRadius(float centerX, float centerY, float centerZ, float radius, int[] out) {
+        final float[] positions = octree.positions;
+        final int[] indices = octree.indices;
+        final float radiusSquared = radius * radius;
+        int found = 0;
+
+        pushRoot();
+        while (stackSize > 0 && found < out.length) {
+            stackSize--;
+            int node = stackNodes[stackSize];
+            float x = stackCorners[3 * stackSize], y = stackCorners[3 * stackSize + 1], z = stackCorners[3 * stackSize + 2];
+            float rib = octree.getRibSize(octree.nodeDepth[node]);
+
+            if (octree.nodeSize[node] == 0
+                    || minDistanceSquared(centerX, centerY, centerZ, x, y, z, rib) > radiusSquared) {
+                continue;
+            }
+
+            int start = octree.nodeStart[node];
+            int end = start + octree.nodeSize[node];
+
+            if (maxDistanceSquared(centerX, centerY, centerZ, x, y, z, rib) <= radiusSquared) {
+                // Completely inside, take all elements without testing them
+                for (int i = start; i < end && found < out.length; i++) {
+                    out[found++] = indices[i];
+                }
+            } else if (octree.isLeaf(node)) {
+                for (int i = start; i < end && found < out.length; i++) {
+                    int e = indices[i];
+                    if (distanceSquared(positions, e, centerX, centerY, centerZ) <= radiusSquared) {
+                        out[found++] = e;
+                    }
+                }
+            } else {
+                float childRib = 0.5f * rib;
+                for (int octant = 0; octant < 8; octant++) {
+                    pushChild(node, octant, x, y, z, childRib);
+                }
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Finds the k elements nearest to the given point.
+     *
+     * @param x
+     *            The x coordinate of the point.
+     * @param y
+     *            The y coordinate of the point.
+     * @param z
+     *            The z coordinate of the point.
+     * @param k
+     *            The (maximum) number of elements to find.
+     * @param out
+     *            The array to store the element indices in, nearest first.
+     *            Must have room for k indices.
+     * @param outDistances
+     *            The array to store the distances of the elements in, or null.
+     *            Must have room for k distances otherwise.
+     * @return The number of element indices stored, k or less if the octree
+     *         holds fewer elements.
+     */
+    public int queryNearest(float x, float y, float z, int k, int[] out, float[] outDistances) {
+        if (heapIndices.length < k) {
+            heapIndices = new int[k];
+            heapDistances = new float[k];
+        }
+        heapSize = 0;
+
+        final float[] positions = octree.positions;
+        final int[] indices = octree.indices;
+
+        pushRoot();
+        while (stackSize > 0 && k > 0) {
+            stackSize--;
+            int node = stackNodes[stackSize];
+            float cx = stackCorners[3 * stackSize], cy = stackCorners[3 * stackSize + 1], cz = stackCorners[3 * stackSize + 2];
+            float rib = octree.getRibSize(octree.nodeDepth[node]);
+
+            if (octree.nodeSize[node] == 0
+                    || (heapSize == k && minDistanceSquared(x, y, z, cx, cy, cz, rib) >= heapDistances[0])) {
+                continue;
+            }
+
+            if (octree.isLeaf(node)) {
+                int start = octree.nodeStart[node];
+                int end = start + octree.nodeSize[node];
+                for (int i = start; i < end; i++) {
+                    int e = indices[i];
+                    float distance = distanceSquared(positions, e, x, y, z);
+                    if (heapSize < k) {
+                        heapAdd(e, distance);
+                    } else if (distance < heapDistances[0]) {
+                        heapReplaceTop(e, distance);
+                    }
+                }
+            } else {
+                // Push the octant holding the point last, so it is visited
+                // first and the heap fills with near elements quickly.
+                float childRib = 0.5f * rib;
+                int nearest = (x >= cx + childRib ? 4 : 0) | (y >= cy + childRib ? 2 : 0) | (z >= cz + childRib ? 1 : 0);
+                for (int i = 7; i >= 0; i--) {
+                    pushChild(node, nearest ^ i, cx, cy, cz, childRib);
+                }
+            }
+        }
+
+        // Empty the heap from the far end, so the result is nearest first.
+        int found = heapSize;
+        for (int i = found - 1; i >= 0; i--) {
+            out[i] = heapIndices[0];
+            if (outDistances != null) {
+                outDistances[i] = (float) Math.sqrt(heapDistances[0]);
+            }
+            heapRemoveTop();
+        }
+
+        return found;
+    }
+
+    /**
+     * Finds the elements within the given distance of a ray, for picking.
+     *
+     * @param originX
+     *            The x coordinate of the origin of the ray.
+     * @param originY
+     *            The y coordinate of the origin of the ray.
+     * @param originZ
+     *            The z coordinate of the origin of the ray.
+     * @param dirX
+     *            The x component of the direction of the ray.
+     * @param dirY
+     *            The y component of the direction of the ray.
+     * @param dirZ
+     *            The z component of the direction of the ray.
+     * @param radius
+     *            The maximum distance of an element to the ray.
+     * @param out
+     *            The array to store the element indices in. The query stops
+     *            when it is full.
+     * @param outT
+     *            The array to store the position along the ray (in units of
+     *            the direction's length) of every element in, or null.
+     * @return The number of element indices stored.
+     */
+    public int queryRay(float originX, float originY, float originZ, float dirX, float dirY, float dirZ,
+            float radius, int[] out, float[] outT) {
+        final float[] positions = octree.positions;
+        final int[] indices = octree.indices;
+        final float lengthSquared = dirX * dirX + dirY * dirY + dirZ * dirZ;
+        final float radiusSquared = radius * radius;
+        int found = 0;
+
+        if (lengthSquared == 0f) {
+            return 0;
+        }
+
+        pushRoot();
+        while (stackSize > 0 && found < out.length) {
+            stackSize--;
+            int node = stackNodes[stackSize];
+            float x = stackCorners[3 * stackSize], y = stackCorners[3 * stackSize + 1], z = stackCorners[3 * stackSize + 2];
+            float rib = octree.getRibSize(octree.nodeDepth[node]);
+
+            if (octree.nodeSize[node] == 0
+                    || !rayIntersectsBox(originX, originY, originZ, dirX, dirY, dirZ, x - radius, y - radius, z
+                            - radius, x + rib + radius, y + rib + radius, z + rib + radius)) {
+                continue;
+            }
+
+            if (octree.isLeaf(node)) {
+                int start = octree.nodeStart[node];
+                int end = start + octree.nodeSize[node];
+                for (int i = start; i < end && found < out.length; i++) {
+                    int e = indices[i];
+                    float px = positions[3 * e] - originX;
+                    float py = positions[3 * e + 1] - originY;
+                    float pz = positions[3 * e + 2] - originZ;
+
+                    // Project onto the ray, and measure the distance to it
+                    float t = Math.max(0f, (px * dirX + py * dirY + pz * dirZ) / lengthSquared);
+                    float dx = px - t * dirX, dy = py - t * dirY, dz = pz - t * dirZ;
+                    if (dx * dx + dy * dy + dz * dz <= radiusSquared) {
+                        if (outT != null) {
+                            outT[found] = t;
+                        }
+                        out[found++] = e;
+                    }
+                }
+            } else {
+                float childRib = 0.5f * rib;
+                for (int octant = 0; octant < 8; octant++) {
+                    pushChild(node, octant, x, y, z, childRib);
+                }
+            }
+        }
+
+        return found;
+    }
+
+    /** Slab test of a ray (t >= 0) against an axis aligned box. */
+    private static boolean rayIntersectsBox(float ox, float oy, float oz, float dx, float dy, float dz, float minX,
+            float minY, float minZ, float maxX, float maxY, float maxZ) {
+        float tMin = 0f, tMax = Float.POSITIVE_INFINITY;
+
+        if (dx != 0f) {
+            float t1 = (minX - ox) / dx, t2 = (maxX - ox) / dx;
+            tMin = Math.max(tMin, Math.min(t1, t2));
+            tMax = Math.min(tMax, Math.max(t1, t2));
+        } else if (ox < minX || ox > maxX) {
+            return false;
+        }
+        if (dy != 0f) {
+            float t1 = (minY - oy) / dy, t2 = (maxY - oy) / dy;
+            tMin = Math.max(tMin, Math.min(t1, t2));
+            tMax = Math.min(tMax, Math.max(t1, t2));
+        } else if (oy < minY || oy > maxY) {
+            return false;
+        }
+        if (dz != 0f) {
+            float t1 = (minZ - oz) / dz, t2 = (maxZ - oz) / dz;
+            tMin = Math.max(tMin, Math.min(t1, t2));
+            tMax = Math.min(tMax, Math.max(t1, t2));
+        } else if (oz < minZ || oz > maxZ) {
+            return false;
+        }
+
+        return tMin <= tMax;
+    }
+
+    private static float distanceSquared(float[] positions, int element, float x, float y, float z) {
+        float dx = positions[3 * element] - x;
+        float dy = positions[3 * element + 1] - y;
+        float dz = positions[3 * element + 2] - z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /** Squared distance from a point to the nearest point of a cube. */
+    private static float minDistanceSquared(float px, float py, float pz, float x, float y, float z, float rib) {
+        float dx = Math.max(Math.max(x - px, px - (x + rib)), 0f);
+        float dy = Math.max(Math.max(y - py, py - (y + rib)), 0f);
+        float dz = Math.max(Math.max(z - pz, pz - (z + rib)), 0f);
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /** Squared distance from a point to the farthest corner of a cube. */
+    private static float maxDistanceSquared(float px, float py, float pz, float x, float y, float z, float rib) {
+        float dx = Math.max(Math.abs(x - px), Math.abs(x + rib - px));
+        float dy = Math.max(Math.abs(y - py), Math.abs(y + rib - py));
+        float dz = Math.max(Math.abs(z - pz), Math.abs(z + rib - pz));
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private void heapAdd(int element, float distance) {
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heapDistances[parent] >= distance) {
+                break;
+            }
+            heapDistances[i] = heapDistances[parent];
+            heapIndices[i] = heapIndices[parent];
+            i = parent;
+        }
+        heapDistances[i] = distance;
+        heapIndices[i] = element;
+    }
+
+    private void heapReplaceTop(int element, float distance) {
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && heapDistances[child + 1] > heapDistances[child]) {
+                child++;
+            }
+            if (heapDistances[child] <= distance) {
+                break;
+            }
+            heapDistances[i] = heapDistances[child];
+            heapIndices[i] = heapIndices[child];
+            i = child;
+        }
+        heapDistances[i] = distance;
+        heapIndices[i] = element;
+    }
+
+    private void heapRemoveTop() {
+        heapSize--;
+        if (heapSize > 0) {
+            heapReplaceTop(heapIndices[heapSize], heapDistances[heapSize]);
+        }
+    }
+}
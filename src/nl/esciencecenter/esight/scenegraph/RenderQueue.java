@@ -0,0 +1,385 @@
+package nl.esciencecenter.esight.scenegraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javax.media.opengl.GL3;
+
+import nl.esciencecenter.esight.datastructures.VBO;
+import nl.esciencecenter.esight.exceptions.UninitializedException;
+import nl.esciencecenter.esight.math.MatF4;
+import nl.esciencecenter.esight.math.MatrixF;
+import nl.esciencecenter.esight.math.VectorF;
+import nl.esciencecenter.esight.models.Model;
+import nl.esciencecenter.esight.shaders.ShaderProgram;
+import nl.esciencecenter.esight.textures.Texture;
+
+/* Copyright [2013] [Netherlands eScience Center]
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Flattened render queue. Instead of drawing depth-first, a traversal (see
+ * {@link SGNode#queue(RenderQueue, ShaderProgram, MatF4)} and
+ * {@link OctreeNode#queue(RenderQueue, ShaderProgram, MatF4)}) adds draw items
+ * to this queue. {@link #submit(GL3)} then sorts them by program, texture, VBO
+ * and depth, and only switches OpenGL state when it actually changes between
+ * consecutive items.
+ * 
+ * The items are pooled, so a queue that is cleared and refilled every frame
+ * produces no garbage once it has grown to the size of the scene.
+ * 
+ * @author Maarten van Meersbergen <m.vanmeersbergen@esciencecenter.nl>
+ */
+public class RenderQueue {
+    /** Bit layout of the sort keys, from most to least significant. */
+    private static final int INDEX_BITS = 20;
+    private static final int DEPTH_BITS = 12;
+    private static final int VBO_BITS = 15;
+    private static final int TEXTURE_BITS = 8;
+    private static final int PROGRAM_BITS = 8;
+
+    private static final int DEPTH_SHIFT = INDEX_BITS;
+    private static final int VBO_SHIFT = DEPTH_SHIFT + DEPTH_BITS;
+    private static final int TEXTURE_SHIFT = VBO_SHIFT + VBO_BITS;
+    private static final int PROGRAM_SHIFT = TEXTURE_SHIFT + TEXTURE_BITS;
+
+    private static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+    private static final int DEPTH_MAX = (1 << DEPTH_BITS) - 1;
+    private static final int VBO_MASK = (1 << VBO_BITS) - 1;
+    private static final int TEXTURE_MAX = (1 << TEXTURE_BITS) - 1;
+    private static final int PROGRAM_MAX = (1 << PROGRAM_BITS) - 1;
+
+    /** The maximum number of items in a queue. */
+    public static final int MAX_ITEMS = 1 << INDEX_BITS;
+
+    /** The uniform the modelview matrix of an item is passed to. */
+    public static final String MV_MATRIX_UNIFORM = "MVMatrix";
+
+    /** A single, pooled, draw item. */
+    private static class Item {
+        ShaderProgram program;
+        Texture texture;
+        Model model;
+        VBO vbo;
+        final MatF4 mvMatrix = new MatF4();
+
+        final ArrayList<String> matrixNames = new ArrayList<String>();
+        final ArrayList<MatrixF> matrices = new ArrayList<MatrixF>();
+        final ArrayList<String> vectorNames = new ArrayList<String>();
+        final ArrayList<VectorF> vectors = new ArrayList<VectorF>();
+
+        void clear() {
+            program = null;
+            texture = null;
+            model = null;
+            vbo = null;
+            matrixNames.clear();
+            matrices.clear();
+            vectorNames.clear();
+            vectors.clear();
+        }
+    }
+
+    private Item[] items;
+    private long[] keys;
+    private int size;
+
+    /** Programs and textures seen this frame, their index is their sort id. */
+    private final ArrayList<ShaderProgram> programs;
+    private final ArrayList<Texture> textures;
+
+    /** Whether items with the same state are sorted far to near. */
+    private boolean backToFront;
+
+    /** Statistics of the last submit. */
+    private int programChanges, textureChanges, vboChanges, drawCalls;
+
+    /**
+     * Creates a new, empty, render queue, sorting items with the same state
+     * near to far.
+     */
+    public RenderQueue() {
+        this(256);
+    }
+
+    /**
+     * Creates a new, empty, render queue, sorting items with the same state
+     * near to far.
+     * 
+     * @param initialCapacity
+     *            The number of items to preallocate.
+     */
+    public RenderQueue(int initialCapacity) {
+        items = new Item[Math.max(1, initialCapacity)];
+        keys = new long[items.length];
+        size = 0;
+
+        programs = new ArrayList<ShaderProgram>();
+        textures = new ArrayList<Texture>();
+        backToFront = false;
+    }
+
+    /**
+     * Sets the depth order of items that share the same state. Near to far
+     * (the default) is best for opaque geometry, far to near is needed for
+     * blending transparent geometry.
+     * 
+     * @param backToFront
+     *            true to sort far to near, false to sort near to far.
+     */
+    public void setBackToFront(boolean backToFront) {
+        this.backToFront = backToFront;
+    }
+
+    /**
+     * Removes all items from this queue, keeping the pooled storage.
+     */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            items[i].clear();
+        }
+        size = 0;
+
+        programs.clear();
+        textures.clear();
+    }
+
+    /**
+     * Getter for the number of items in this queue.
+     * 
+     * @return the number of items.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds a draw item to this queue.
+     * 
+     * @param program
+     *            The program to draw the model with.
+     * @param texture
+     *            The texture to bind before drawing, or null if none.
+     * @param model
+     *            The (initialized) model to draw.
+     * @param MVMatrix
+     *            The modelview matrix for this item. It is copied, so the
+     *            given matrix may be reused after this call.
+     * @return The index of the new item, to be used with
+     *         {@link #addUniform(int, String, MatrixF)} and
+     *         {@link #addUniform(int, String, VectorF)}.
+     * @throws UninitializedException
+     *             if the model was not initialized.
+     */
+    public int add(ShaderProgram program, Texture texture, Model model,
+            MatF4 MVMatrix) throws UninitializedException {
+        if (size == MAX_ITEMS) {
+            throw new IllegalStateException("RenderQueue overflow, more than "
+                    + MAX_ITEMS + " items.");
+        }
+        if (size == items.length) {
+            int newLength = Math.min(items.length * 2, MAX_ITEMS);
+            items = Arrays.copyOf(items, newLength);
+            keys = Arrays.copyOf(keys, newLength);
+        }
+        if (items[size] == null) {
+            items[size] = new Item();
+        }
+
+        Item item = items[size];
+        item.program = program;
+        item.texture = texture;
+        item.model = model;
+        item.vbo = model.getVBO();
+        item.mvMatrix.set(MVMatrix);
+
+        keys[size] = sortKey(item, size);
+
+        return size++;
+    }
+
+    /**
+     * Adds a matrix uniform to pass to the program when drawing the given
+     * item. The value is not copied, so it should not change before
+     * {@link #submit(GL3)}.
+     * 
+     * @param item
+     *            The index of the item, as returned by
+     *            {@link #add(ShaderProgram, Texture, Model, MatF4)}.
+     * @param name
+     *            The name of the uniform in the shader.
+     * @param value
+     *            The value to pass.
+     */
+    public void addUniform(int item, String name, MatrixF value) {
+        items[item].matrixNames.add(name);
+        items[item].matrices.add(value);
+    }
+
+    /**
+     * Adds a vector uniform to pass to the program when drawing the given
+     * item. The value is not copied, so it should not change before
+     * {@link #submit(GL3)}.
+     * 
+     * @param item
+     *            The index of the item, as returned by
+     *            {@link #add(ShaderProgram, Texture, Model, MatF4)}.
+     * @param name
+     *            The name of the uniform in the shader.
+     * @param value
+     *            The value to pass.
+     */
+    public void addUniform(int item, String name, VectorF value) {
+        items[item].vectorNames.add(name);
+        items[item].vectors.add(value);
+    }
+
+    private long sortKey(Item item, int index) {
+        long programId = Math.min(idOf(programs, item.program), PROGRAM_MAX);
+        long textureId = (item.texture == null) ? 0 : Math.min(
+                idOf(textures, item.texture) + 1, TEXTURE_MAX);
+        long vboId = System.identityHashCode(item.vbo) & VBO_MASK;
+
+        // View space looks down the negative Z axis. The bits of a positive
+        // float sort like the float itself, keep the most significant ones.
+        float distance = Math.max(-item.mvMatrix.get(11), 0f);
+        long depth = Float.floatToIntBits(distance) >>> (31 - DEPTH_BITS);
+        if (backToFront) {
+            depth = DEPTH_MAX - depth;
+        }
+
+        return (programId << PROGRAM_SHIFT) | (textureId << TEXTURE_SHIFT)
+                | (vboId << VBO_SHIFT) | (depth << DEPTH_SHIFT) | index;
+    }
+
+    private static <T> int idOf(ArrayList<T> seen, T object) {
+        for (int i = 0; i < seen.size(); i++) {
+            if (seen.get(i) == object) {
+                return i;
+            }
+        }
+        seen.add(object);
+        return seen.size() - 1;
+    }
+
+    /**
+     * Sorts the items in this queue and draws them, skipping program, texture
+     * and VBO binds that are already current. The queue is not cleared.
+     * 
+     * @param gl
+     *            the current GL instance.
+     * @throws UninitializedException
+     *             if one of the programs was not initialized.
+     */
+    public void submit(GL3 gl) throws UninitializedException {
+        Arrays.sort(keys, 0, size);
+
+        programChanges = 0;
+        textureChanges = 0;
+        vboChanges = 0;
+        drawCalls = 0;
+
+        ShaderProgram currentProgram = null;
+        Texture currentTexture = null;
+        VBO currentVBO = null;
+
+        for (int i = 0; i < size; i++) {
+            Item item = items[(int) (keys[i] & INDEX_MASK)];
+            ShaderProgram program = item.program;
+
+            if (program != currentProgram) {
+                // use() passes all uniforms set on the program
+                program.setUniformMatrix(MV_MATRIX_UNIFORM, item.mvMatrix);
+                for (int u = 0; u < item.matrices.size(); u++) {
+                    program.setUniformMatrix(item.matrixNames.get(u),
+                            item.matrices.get(u));
+                }
+                for (int u = 0; u < item.vectors.size(); u++) {
+                    program.setUniformVector(item.vectorNames.get(u),
+                            item.vectors.get(u));
+                }
+                program.use(gl);
+
+                currentProgram = program;
+                // Attribute locations are per program, so link again
+                currentVBO = null;
+                programChanges++;
+            } else {
+                // Same program, only pass what differs per item
+                program.passUniformMat(gl, MV_MATRIX_UNIFORM,
+                        item.mvMatrix.asBuffer());
+                for (int u = 0; u < item.matrices.size(); u++) {
+                    program.passUniformMat(gl, item.matrixNames.get(u),
+                            item.matrices.get(u).asBuffer());
+                }
+                for (int u = 0; u < item.vectors.size(); u++) {
+                    program.passUniformVec(gl, item.vectorNames.get(u),
+                            item.vectors.get(u).asBuffer());
+                }
+            }
+
+            if (item.texture != null && item.texture != currentTexture) {
+                item.texture.use(gl);
+                currentTexture = item.texture;
+                textureChanges++;
+            }
+
+            if (item.vbo != currentVBO) {
+                item.model.bind(gl, program);
+                currentVBO = item.vbo;
+                vboChanges++;
+            }
+
+            item.model.drawArrays(gl);
+            drawCalls++;
+        }
+    }
+
+    /**
+     * Getter for the number of program changes in the last submit.
+     * 
+     * @return the number of program changes.
+     */
+    public int getProgramChanges() {
+        return programChanges;
+    }
+
+    /**
+     * Getter for the number of texture binds in the last submit.
+     * 
+     * @return the number of texture binds.
+     */
+    public int getTextureChanges() {
+        return textureChanges;
+    }
+
+    /**
+     * Getter for the number of VBO binds in the last submit.
+     * 
+     * @return the number of VBO binds.
+     */
+    public int getVBOChanges() {
+        return vboChanges;
+    }
+
+    /**
+     * Getter for the number of draw calls in the last submit.
+     * 
+     * @return the number of draw calls.
+     */
+    public int getDrawCalls() {
+        return drawCalls;
+    }
+}
@@ -1,13 +1,18 @@
 package nl.esciencecenter.esight.scenegraph;
 
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.media.opengl.GL3;
 
 import nl.esciencecenter.esight.exceptions.UninitializedException;
+import nl.esciencecenter.esight.math.Frustum;
+import nl.esciencecenter.esight.math.MatD4;
 import nl.esciencecenter.esight.math.MatF4;
-import nl.esciencecenter.esight.math.MatrixFMath;
+import nl.esciencecenter.esight.math.QuatF;
+import nl.esciencecenter.esight.math.VecD3;
 import nl.esciencecenter.esight.math.VecF3;
+import nl.esciencecenter.esight.models.BoundingBox;
 import nl.esciencecenter.esight.models.LightSource;
 import nl.esciencecenter.esight.models.Model;
 import nl.esciencecenter.esight.shaders.ShaderProgram;
@@ -30,6 +35,21 @@ import nl.esciencecenter.esight.shaders.ShaderProgram;
 /**
  * Bsic implementation of a Scenegraph node.
  * 
+ * The graph is double-buffered, so other threads can change it while it is
+ * being drawn. Changes are only recorded by the changing thread, in the update
+ * queues of the graph the node belongs to (every node starts out as the root
+ * of a graph of its own, and joins the graph of its parent when it is added
+ * as a child). New children and models are queued in the order they were
+ * added. A changed transformation only queues its node, on the first change
+ * after the last traversal, and keeps its latest translation and rotation in
+ * the node itself. The render thread drains the queues of the graph it
+ * traverses once, at the start of the traversal, and holds no locks while
+ * drawing, so all changes made to a graph before a traversal starts are drawn
+ * together. New children and models of initialized nodes need the GL to be
+ * initialized, a traversal without it (a queue) leaves them out until the
+ * next traversal with it. Every graph should be drawn (and initialized and
+ * deleted) by a single, render, thread, with a single GL context.
+ * 
  * @author Maarten van Meersbergen <m.vanmeersbergen@esciencecenter.nl>
  */
 public class SGNode {
@@ -39,15 +59,6 @@ public class SGNode {
      * node.
      */
     protected MatF4 TMatrix;
-    /**
-     * The rotation matrix for the elements (and children) of this Scenegraph
-     * node.
-     */
-    protected MatF4 RMatrix;
-    /**
-     * The scale matrix for the elements (and children) of this Scenegraph node.
-     */
-    protected MatF4 SMatrix;
 
     /** Store for the children. */
     protected ArrayList<SGNode> children;
@@ -61,14 +72,143 @@ public class SGNode {
     /** State holder. */
     private boolean initialized = false;
 
+    /** A new child or model of a node, recorded by the changing thread. */
+    private static final class Addition {
+        final SGNode node;
+        final SGNode child;
+        final Model model;
+
+        Addition(SGNode node, SGNode child, Model model) {
+            this.node = node;
+            this.child = child;
+            this.model = model;
+        }
+    }
+
+    /** The update queues of a graph, shared by all of its nodes. */
+    private static final class Graph {
+        /** The new children and models, in the order they were added. */
+        final ConcurrentLinkedQueue<Addition> additions =
+                new ConcurrentLinkedQueue<Addition>();
+
+        /** The nodes with a changed transformation. */
+        final ConcurrentLinkedQueue<SGNode> transformed =
+                new ConcurrentLinkedQueue<SGNode>();
+
+        /**
+         * The nodes with new children or models that still have to be
+         * initialized, only used by the render thread.
+         */
+        final ArrayList<SGNode> uninitialized = new ArrayList<SGNode>();
+    }
+
+    /**
+     * The graph this node belongs to. Changed by the render thread when the
+     * node joins another graph, under the lock on this node.
+     */
+    private volatile Graph graph;
+
+    /**
+     * The translation and orientation this node's TMatrix is built from.
+     * Rotations are accumulated in the (renormalized) quaternion instead of
+     * the matrix, so repeated calls do not make the matrix drift. The position
+     * is kept in double precision for camera-relative rendering. These are
+     * the producer side values, guarded by the lock on this node, TMatrix is
+     * only rebuilt from them by {@link #swapUpdates(GL3)}.
+     */
+    private final VecD3 position;
+    private final QuatF orientation;
+
+    /**
+     * Whether this node is queued because its transformation changed, guarded
+     * by the lock on this node.
+     */
+    private boolean transformPending = false;
+
+    /**
+     * New children and models of this (initialized) node, swapped in by a
+     * traversal without GL, that are only drawn once they are initialized.
+     */
+    private final ArrayList<SGNode> uninitializedChildren;
+    private final ArrayList<Model> uninitializedModels;
+
+    /** Double precision version of TMatrix, used for camera-relative draws. */
+    private final MatD4 localMatrix;
+
+    /**
+     * Version of the local transformation, incremented whenever TMatrix
+     * changes. The cached world matrices below remember the local and parent
+     * versions they were computed from, so static subtrees reuse them frame
+     * after frame instead of multiplying again.
+     */
+    private int localVersion = 0;
+
+    /** Cached world matrix (parent world x TMatrix) for normal draws. */
+    private final MatF4 worldMatrix;
+    private int worldVersion = 0;
+    private int worldLocalVersion = -1;
+    private int worldParentVersion = -1;
+
+    /** Cached double precision world matrix for camera-relative draws. */
+    private final MatD4 worldMatrixD;
+    private int worldVersionD = 0;
+    private int worldLocalVersionD = -1;
+    private int worldParentVersionD = -1;
+
+    /**
+     * World space bounds of the models of this node, and of the models of the
+     * whole subtree, used for culling. They are recomputed only when the world
+     * matrix, the number of models or the bounds of a child changed. A model
+     * without (initialized) bounds makes its node and subtree unbounded, which
+     * are never culled.
+     */
+    private final BoundingBox modelBounds;
+    private final BoundingBox subtreeBounds;
+    private boolean modelsUnbounded, subtreeUnbounded;
+    private int subtreeModelCount;
+    private int boundsVersion = 0;
+    private int boundsWorldVersion = -1;
+    private int boundsModelCount = -1;
+    private long boundsChildrenVersion = -1;
+
+    /** Statistics of the last culled traversal rooted at this node. */
+    private int culledCount, drawnCount;
+
+    /** Identity, the parent world matrices of a root draw. */
+    private static final MatF4 IDENTITY = new MatF4();
+    private static final MatD4 IDENTITY_D = new MatD4();
+
+    /**
+     * Scratch storage for the modelview matrix of this node's models, written
+     * by every traversal that draws or queues them.
+     */
+    private final MatF4 modelViewMatrix;
+
+    /** Scratch storage for incremental transformations. */
+    private final QuatF scratchQuat;
+    private final VecF3 scratchVec;
+
     /**
      * Basic constructor for SGNode
      */
     public SGNode() {
         TMatrix = new MatF4();
+        position = new VecD3();
+        orientation = new QuatF();
+        localMatrix = new MatD4();
+        worldMatrix = new MatF4();
+        worldMatrixD = new MatD4();
+        modelViewMatrix = new MatF4();
+        modelBounds = new BoundingBox();
+        subtreeBounds = new BoundingBox();
+        scratchQuat = new QuatF();
+        scratchVec = new VecF3();
 
         children = new ArrayList<SGNode>();
         models = new ArrayList<Model>();
+        uninitializedChildren = new ArrayList<SGNode>();
+        uninitializedModels = new ArrayList<Model>();
+        graph = new Graph();
     }
 
     /**
@@ -78,13 +218,21 @@ public class SGNode {
      *            the current GL instance.
      */
     public void init(GL3 gl) {
+        swapUpdates(gl);
+        initTree(gl);
+    }
+
+    /**
+     * Recursive part of the init method.
+     */
+    private void initTree(GL3 gl) {
         if (!initialized) {
             for (Model m : models) {
                 m.init(gl);
             }
 
             for (SGNode child : children) {
-                child.init(gl);
+                child.initTree(gl);
             }
         }
 
@@ -98,6 +246,8 @@ public class SGNode {
      *            the current GL instance.
      */
     public void delete(GL3 gl) {
+        swapUpdates(gl);
+
         for (Model m : models) {
             m.delete(gl);
         }
@@ -108,23 +258,26 @@ public class SGNode {
     }
 
     /**
-     * Add a child to this node.
+     * Add a child to this node. The child is drawn from the next traversal on,
+     * and initialized by it if this node already was. A traversal without GL
+     * leaves the child out until the next traversal with GL.
      * 
      * @param child
      *            the child to add.
      */
-    public void addChild(SGNode child) {
-        children.add(child);
+    public synchronized void addChild(SGNode child) {
+        graph.additions.add(new Addition(this, child, null));
     }
 
     /**
-     * Add a model to this level of the scenegraph
+     * Add a model to this level of the scenegraph. The model is drawn from the
+     * next traversal on, and initialized as in {@link #addChild(SGNode)}.
      * 
      * @param model
      *            the model to add
      */
-    public void addModel(Model model) {
-        models.add(model);
+    public synchronized void addModel(Model model) {
+        graph.additions.add(new Addition(this, null, model));
     }
 
     /**
@@ -134,7 +287,24 @@ public class SGNode {
      *            the new translation.
      */
     public synchronized void setTranslation(VecF3 translation) {
-        this.TMatrix = MatrixFMath.translate(translation);
+        position.set(translation);
+        orientation.setIdentity();
+        publishTransform();
+    }
+
+    /**
+     * Set the translation for this level of the scenegraph, in double
+     * precision. Only camera-relative draws (see
+     * {@link #draw(GL3, ShaderProgram, MatF4, VecD3)}) retain the full
+     * precision.
+     * 
+     * @param translation
+     *            the new translation.
+     */
+    public synchronized void setTranslation(VecD3 translation) {
+        position.set(translation);
+        orientation.setIdentity();
+        publishTransform();
     }
 
     /**
@@ -144,8 +314,11 @@ public class SGNode {
      * @param translation
      *            the new translation to do.
      */
-    public void translate(VecF3 translation) {
-        this.TMatrix = TMatrix.mul(MatrixFMath.translate(translation));
+    public synchronized void translate(VecF3 translation) {
+        orientation.rotateInto(translation, scratchVec);
+        position.set(position.get(0) + scratchVec.get(0), position.get(1)
+                + scratchVec.get(1), position.get(2) + scratchVec.get(2));
+        publishTransform();
     }
 
     /**
@@ -157,8 +330,8 @@ public class SGNode {
      * @param axis
      *            The axis around which to rotate.
      */
-    public void rotate(float rotation, VecF3 axis) {
-        this.TMatrix = TMatrix.mul(MatrixFMath.rotate(rotation, axis));
+    public synchronized void rotate(float rotation, VecF3 axis) {
+        rotate(scratchQuat.setRotate(rotation, axis));
     }
 
     /**
@@ -168,10 +341,178 @@ public class SGNode {
      * @param rotation
      *            The rotation to perform.
      */
-    public void rotate(VecF3 rotation) {
-        this.TMatrix = TMatrix.mul(MatrixFMath.rotationX(rotation.get(0)));
-        this.TMatrix = TMatrix.mul(MatrixFMath.rotationY(rotation.get(1)));
-        this.TMatrix = TMatrix.mul(MatrixFMath.rotationZ(rotation.get(2)));
+    public synchronized void rotate(VecF3 rotation) {
+        rotate(scratchQuat.setRotationXYZ(rotation.get(0), rotation.get(1),
+                rotation.get(2)));
+    }
+
+    /**
+     * Rotate this level. (multiply with the previously entered translation
+     * matrix).
+     * 
+     * @param rotation
+     *            The rotation to perform, as a unit quaternion.
+     */
+    public synchronized void rotate(QuatF rotation) {
+        orientation.mulInto(rotation, orientation).normalize();
+        publishTransform();
+    }
+
+    /**
+     * Mark the position and orientation as changed, to be swapped in at the
+     * start of the next traversal. Call with the lock on this node held.
+     */
+    private void publishTransform() {
+        if (!transformPending) {
+            transformPending = true;
+            graph.transformed.add(this);
+        }
+    }
+
+    /**
+     * Swap the recorded changes to the graph of this node in, see
+     * {@link SGNode}. Drains the update queues of the graph once, and
+     * initializes the new children and models of its initialized nodes that
+     * were left out by earlier traversals without GL. Called by the render
+     * thread at the start of every traversal.
+     * 
+     * @param gl
+     *            the current GL instance, to initialize new children and
+     *            models of initialized nodes with, or null if not available.
+     */
+    private void swapUpdates(GL3 gl) {
+        Graph graph = this.graph;
+
+        if (gl != null) {
+            for (int i = 0; i < graph.uninitialized.size(); i++) {
+                graph.uninitialized.get(i).initNew(gl);
+            }
+            graph.uninitialized.clear();
+        }
+
+        // Additions first, a new child moves the changes of its own graph to
+        // this one.
+        Addition addition = graph.additions.poll();
+        while (addition != null) {
+            SGNode node = addition.node;
+            if (addition.child != null) {
+                SGNode child = addition.child;
+                child.joinGraph(graph);
+
+                // The cached world transform of the child depended on its old
+                // parent
+                child.localVersion++;
+                if (!node.initialized) {
+                    node.children.add(child);
+                } else if (gl != null) {
+                    child.initTree(gl);
+                    node.children.add(child);
+                } else {
+                    node.uninitializedChildren.add(child);
+                    node.markUninitialized(graph);
+                }
+            } else {
+                if (!node.initialized) {
+                    node.models.add(addition.model);
+                } else if (gl != null) {
+                    addition.model.init(gl);
+                    node.models.add(addition.model);
+                } else {
+                    node.uninitializedModels.add(addition.model);
+                    node.markUninitialized(graph);
+                }
+            }
+            addition = graph.additions.poll();
+        }
+
+        SGNode node = graph.transformed.poll();
+        while (node != null) {
+            synchronized (node) {
+                node.updateTMatrix();
+                node.transformPending = false;
+            }
+            node = graph.transformed.poll();
+        }
+    }
+
+    /**
+     * Move this node and its subtree to the given graph, together with the
+     * changes queued in the graph they belonged to. Changes are queued under
+     * the lock on the changed node, so after the graph of a node is switched
+     * under that lock, none are queued in the old graph anymore.
+     */
+    private void joinGraph(Graph target) {
+        Graph old;
+        synchronized (this) {
+            old = graph;
+            graph = target;
+        }
+        if (old == target) {
+            return;
+        }
+
+        for (int i = 0; i < children.size(); i++) {
+            children.get(i).joinGraph(target);
+        }
+        for (int i = 0; i < uninitializedChildren.size(); i++) {
+            uninitializedChildren.get(i).joinGraph(target);
+        }
+
+        Addition addition = old.additions.poll();
+        while (addition != null) {
+            target.additions.add(addition);
+            addition = old.additions.poll();
+        }
+        SGNode node = old.transformed.poll();
+        while (node != null) {
+            target.transformed.add(node);
+            node = old.transformed.poll();
+        }
+        target.uninitialized.addAll(old.uninitialized);
+        old.uninitialized.clear();
+    }
+
+    private void markUninitialized(Graph graph) {
+        if (uninitializedChildren.size() + uninitializedModels.size() == 1) {
+            graph.uninitialized.add(this);
+        }
+    }
+
+    /**
+     * Initialize the children and models left out by traversals without GL,
+     * and add them to the ones that are drawn.
+     */
+    private void initNew(GL3 gl) {
+        for (int i = 0; i < uninitializedChildren.size(); i++) {
+            uninitializedChildren.get(i).initTree(gl);
+        }
+        children.addAll(uninitializedChildren);
+        uninitializedChildren.clear();
+
+        for (int i = 0; i < uninitializedModels.size(); i++) {
+            uninitializedModels.get(i).init(gl);
+        }
+        models.addAll(uninitializedModels);
+        uninitializedModels.clear();
+    }
+
+    /**
+     * Rebuild the TMatrix from the current position and orientation. Call with
+     * the lock on this node held.
+     */
+    private void updateTMatrix() {
+        orientation.toMatF4(TMatrix);
+        localMatrix.set(TMatrix);
+
+        localMatrix.set(3, position.get(0));
+        localMatrix.set(7, position.get(1));
+        localMatrix.set(11, position.get(2));
+
+        TMatrix.set(3, (float) position.get(0));
+        TMatrix.set(7, (float) position.get(1));
+        TMatrix.set(11, (float) position.get(2));
+
+        localVersion++;
     }
 
     /**
@@ -186,23 +527,400 @@ public class SGNode {
      * @throws UninitializedException
      *             if this method was called before the init() method.
      */
-    public synchronized void draw(GL3 gl, ShaderProgram program, MatF4 MVMatrix) throws UninitializedException {
+    public void draw(GL3 gl, ShaderProgram program, MatF4 MVMatrix) throws UninitializedException {
+        swapUpdates(gl);
+        draw(gl, program, MVMatrix, IDENTITY, 0);
+    }
+
+    /**
+     * Recursive part of the draw method. The world matrix of this node is only
+     * recomputed if this node or one of its ancestors changed since the last
+     * draw; the modelview matrix is only computed for nodes with models, into
+     * the node's own scratch matrix.
+     */
+    private void draw(GL3 gl, ShaderProgram program,
+            MatF4 MVMatrix, MatF4 parentWorldMatrix, int parentWorldVersion)
+            throws UninitializedException {
         if (!initialized) {
             throw new UninitializedException();
         }
 
-        MatF4 newM = MVMatrix.mul(TMatrix);
+        updateWorldMatrix(parentWorldMatrix, parentWorldVersion);
 
-        for (Model m : models) {
-            program.setUniformMatrix("MVMatrix", newM);
+        if (!models.isEmpty()) {
+            MatF4 newM = MVMatrix.mulInto(worldMatrix, modelViewMatrix);
 
-            program.use(gl);
+            for (int i = 0; i < models.size(); i++) {
+                program.setUniformMatrix("MVMatrix", newM);
 
-            m.draw(gl, program);
+                program.use(gl);
+
+                models.get(i).draw(gl, program);
+            }
         }
 
-        for (SGNode child : children) {
-            child.draw(gl, program, newM);
+        for (int i = 0; i < children.size(); i++) {
+            children.get(i).draw(gl, program, MVMatrix, worldMatrix,
+                    worldVersion);
+        }
+    }
+
+    /**
+     * Recompute the cached world matrix, if this node or one of its ancestors
+     * changed since it was last computed.
+     * 
+     * @param parentWorldMatrix
+     *            The world matrix of the parent.
+     * @param parentWorldVersion
+     *            The version of the world matrix of the parent.
+     */
+    private void updateWorldMatrix(MatF4 parentWorldMatrix,
+            int parentWorldVersion) {
+        if (worldLocalVersion != localVersion
+                || worldParentVersion != parentWorldVersion) {
+            parentWorldMatrix.mulInto(TMatrix, worldMatrix);
+            worldLocalVersion = localVersion;
+            worldParentVersion = parentWorldVersion;
+            worldVersion++;
+        }
+    }
+
+    /**
+     * Frustum culled OpenGL draw method. Subtrees whose world space bounds are
+     * completely outside the frustum are skipped without visiting them, and
+     * subtrees completely inside it are drawn without testing any further.
+     * The number of culled and drawn models is available afterwards from
+     * {@link #getCulledCount()} and {@link #getDrawnCount()}.
+     * 
+     * @param gl
+     *            the current gl instance.
+     * @param program
+     *            The shaderProgram to use for the drawing process.
+     * @param MVMatrix
+     *            The global Modelview Matrix.
+     * @param frustum
+     *            The view frustum in world space (see
+     *            {@link Frustum#set(MatF4, MatF4)} with the projection and
+     *            global Modelview Matrix), or null to draw without culling.
+     * @throws UninitializedException
+     *             if this method was called before the init() method.
+     */
+    public void draw(GL3 gl, ShaderProgram program,
+            MatF4 MVMatrix, Frustum frustum) throws UninitializedException {
+        swapUpdates(gl);
+        updateBounds(IDENTITY, 0);
+
+        culledCount = 0;
+        drawnCount = 0;
+        draw(gl, program, MVMatrix, frustum, this);
+    }
+
+    /**
+     * Recursive part of the frustum culled draw method. The world matrices and
+     * bounds have already been brought up to date by
+     * {@link #updateBounds(MatF4, int)}; a null frustum means the subtree is
+     * known to be visible.
+     */
+    private void draw(GL3 gl, ShaderProgram program,
+            MatF4 MVMatrix, Frustum frustum, SGNode root)
+            throws UninitializedException {
+        if (!initialized) {
+            throw new UninitializedException();
+        }
+
+        if (frustum != null && !subtreeUnbounded) {
+            int visibility = subtreeBounds.classify(frustum);
+            if (visibility == Frustum.OUTSIDE) {
+                root.culledCount += subtreeModelCount;
+                return;
+            } else if (visibility == Frustum.INSIDE) {
+                frustum = null;
+            }
+        }
+
+        if (!models.isEmpty()) {
+            if (frustum == null || modelsUnbounded
+                    || modelBounds.intersects(frustum)) {
+                MatF4 newM = MVMatrix.mulInto(worldMatrix, modelViewMatrix);
+
+                for (int i = 0; i < models.size(); i++) {
+                    program.setUniformMatrix("MVMatrix", newM);
+
+                    program.use(gl);
+
+                    models.get(i).draw(gl, program);
+                }
+                root.drawnCount += models.size();
+            } else {
+                root.culledCount += models.size();
+            }
+        }
+
+        for (int i = 0; i < children.size(); i++) {
+            children.get(i).draw(gl, program, MVMatrix, frustum, root);
+        }
+    }
+
+    /**
+     * Bring the world matrices and bounds of this subtree up to date. The
+     * bounds of a node are only recomputed if its world matrix, its models or
+     * the bounds of one of its children changed since they were last
+     * computed, so static subtrees cost one comparison per node.
+     * 
+     * @param parentWorldMatrix
+     *            The world matrix of the parent.
+     * @param parentWorldVersion
+     *            The version of the world matrix of the parent.
+     */
+    private void updateBounds(MatF4 parentWorldMatrix, int parentWorldVersion) {
+        updateWorldMatrix(parentWorldMatrix, parentWorldVersion);
+
+        // Versions only grow, so the sum changes whenever one of them does.
+        long childrenVersion = children.size();
+        for (int i = 0; i < children.size(); i++) {
+            SGNode child = children.get(i);
+            child.updateBounds(worldMatrix, worldVersion);
+            childrenVersion += child.boundsVersion;
+        }
+
+        if (boundsWorldVersion == worldVersion
+                && boundsModelCount == models.size()
+                && boundsChildrenVersion == childrenVersion) {
+            return;
+        }
+
+        modelBounds.reset();
+        modelsUnbounded = false;
+        for (int i = 0; i < models.size(); i++) {
+            BoundingBox bounds = models.get(i).getBoundingBox();
+            if (bounds.isInitialized()) {
+                modelBounds.resize(bounds, worldMatrix);
+            } else {
+                modelsUnbounded = true;
+            }
+        }
+
+        subtreeBounds.reset();
+        subtreeBounds.resize(modelBounds);
+        subtreeUnbounded = modelsUnbounded;
+        subtreeModelCount = models.size();
+        for (int i = 0; i < children.size(); i++) {
+            SGNode child = children.get(i);
+            subtreeBounds.resize(child.subtreeBounds);
+            subtreeUnbounded |= child.subtreeUnbounded;
+            subtreeModelCount += child.subtreeModelCount;
+        }
+
+        boundsWorldVersion = worldVersion;
+        boundsModelCount = models.size();
+        boundsChildrenVersion = childrenVersion;
+        boundsVersion++;
+    }
+
+    /**
+     * Getter for the world space bounds of the models in this node and its
+     * children, as computed by the last frustum culled traversal. The box is
+     * uninitialized if there were no bounded models.
+     * 
+     * @return the bounds of this subtree.
+     */
+    public BoundingBox getBounds() {
+        return subtreeBounds;
+    }
+
+    /**
+     * Getter for the number of models that were skipped by the last frustum
+     * culled traversal rooted at this node.
+     * 
+     * @return the number of culled models.
+     */
+    public int getCulledCount() {
+        return culledCount;
+    }
+
+    /**
+     * Getter for the number of models that were drawn (or queued) by the last
+     * frustum culled traversal rooted at this node.
+     * 
+     * @return the number of drawn models.
+     */
+    public int getDrawnCount() {
+        return drawnCount;
+    }
+
+    /**
+     * Adds the models of this node and its children to the given render
+     * queue, instead of drawing them directly. See {@link RenderQueue}.
+     * 
+     * @param queue
+     *            The queue to add the draw items to.
+     * @param program
+     *            The shaderProgram to use for the drawing process.
+     * @param MVMatrix
+     *            The global Modelview Matrix.
+     * @throws UninitializedException
+     *             if this method was called before the init() method.
+     */
+    public void queue(RenderQueue queue, ShaderProgram program,
+            MatF4 MVMatrix) throws UninitializedException {
+        swapUpdates(null);
+        queue(queue, program, MVMatrix, IDENTITY, 0);
+    }
+
+    /**
+     * Recursive part of the queue method.
+     */
+    private void queue(RenderQueue queue, ShaderProgram program,
+            MatF4 MVMatrix, MatF4 parentWorldMatrix, int parentWorldVersion)
+            throws UninitializedException {
+        if (!initialized) {
+            throw new UninitializedException();
+        }
+
+        updateWorldMatrix(parentWorldMatrix, parentWorldVersion);
+
+        if (!models.isEmpty()) {
+            MatF4 newM = MVMatrix.mulInto(worldMatrix, modelViewMatrix);
+
+            for (int i = 0; i < models.size(); i++) {
+                queue.add(program, null, models.get(i), newM);
+            }
+        }
+
+        for (int i = 0; i < children.size(); i++) {
+            children.get(i).queue(queue, program, MVMatrix, worldMatrix,
+                    worldVersion);
+        }
+    }
+
+    /**
+     * Frustum culled version of
+     * {@link #queue(RenderQueue, ShaderProgram, MatF4)}, see
+     * {@link #draw(GL3, ShaderProgram, MatF4, Frustum)}.
+     * 
+     * @param queue
+     *            The queue to add the draw items to.
+     * @param program
+     *            The shaderProgram to use for the drawing process.
+     * @param MVMatrix
+     *            The global Modelview Matrix.
+     * @param frustum
+     *            The view frustum in world space, or null to queue without
+     *            culling.
+     * @throws UninitializedException
+     *             if this method was called before the init() method.
+     */
+    public void queue(RenderQueue queue, ShaderProgram program,
+            MatF4 MVMatrix, Frustum frustum) throws UninitializedException {
+        swapUpdates(null);
+        updateBounds(IDENTITY, 0);
+
+        culledCount = 0;
+        drawnCount = 0;
+        queue(queue, program, MVMatrix, frustum, this);
+    }
+
+    /**
+     * Recursive part of the frustum culled queue method.
+     */
+    private void queue(RenderQueue queue, ShaderProgram program,
+            MatF4 MVMatrix, Frustum frustum, SGNode root)
+            throws UninitializedException {
+        if (!initialized) {
+            throw new UninitializedException();
+        }
+
+        if (frustum != null && !subtreeUnbounded) {
+            int visibility = subtreeBounds.classify(frustum);
+            if (visibility == Frustum.OUTSIDE) {
+                root.culledCount += subtreeModelCount;
+                return;
+            } else if (visibility == Frustum.INSIDE) {
+                frustum = null;
+            }
+        }
+
+        if (!models.isEmpty()) {
+            if (frustum == null || modelsUnbounded
+                    || modelBounds.intersects(frustum)) {
+                MatF4 newM = MVMatrix.mulInto(worldMatrix, modelViewMatrix);
+
+                for (int i = 0; i < models.size(); i++) {
+                    queue.add(program, null, models.get(i), newM);
+                }
+                root.drawnCount += models.size();
+            } else {
+                root.culledCount += models.size();
+            }
+        }
+
+        for (int i = 0; i < children.size(); i++) {
+            children.get(i).queue(queue, program, MVMatrix, frustum, root);
+        }
+    }
+
+    /**
+     * Camera-relative OpenGL draw method. The world transforms of this node
+     * and its children are composed in double precision, and only the result
+     * relative to the view origin is converted to float for the shader. This
+     * avoids jitter for scenes with large world coordinates, without having to
+     * re-upload vertex data when the camera moves far.
+     * 
+     * @param gl
+     *            the current gl instance.
+     * @param program
+     *            The shaderProgram to use for the drawing process.
+     * @param viewMatrix
+     *            The view matrix, relative to the view origin (as produced by
+     *            ESightGLEventListener.lookAt()).
+     * @param viewOrigin
+     *            The world space position the view matrix is relative to.
+     * @throws UninitializedException
+     *             if this method was called before the init() method.
+     */
+    public void draw(GL3 gl, ShaderProgram program,
+            MatF4 viewMatrix, VecD3 viewOrigin) throws UninitializedException {
+        swapUpdates(gl);
+        draw(gl, program, viewMatrix, viewOrigin, IDENTITY_D, 0);
+    }
+
+    /**
+     * Recursive part of the camera-relative draw method, see
+     * {@link #draw(GL3, ShaderProgram, MatF4, VecD3)}.
+     */
+    private void draw(GL3 gl, ShaderProgram program,
+            MatF4 viewMatrix, VecD3 viewOrigin, MatD4 parentWorldMatrix,
+            int parentWorldVersion)
+            throws UninitializedException {
+        if (!initialized) {
+            throw new UninitializedException();
+        }
+
+        if (worldLocalVersionD != localVersion
+                || worldParentVersionD != parentWorldVersion) {
+            parentWorldMatrix.mulInto(localMatrix, worldMatrixD);
+            worldLocalVersionD = localVersion;
+            worldParentVersionD = parentWorldVersion;
+            worldVersionD++;
+        }
+
+        if (!models.isEmpty()) {
+            MatF4 newM = worldMatrixD.toCameraRelative(viewOrigin,
+                    modelViewMatrix);
+            viewMatrix.mulInto(newM, newM);
+
+            for (int i = 0; i < models.size(); i++) {
+                program.setUniformMatrix("MVMatrix", newM);
+
+                program.use(gl);
+
+                models.get(i).draw(gl, program);
+            }
+        }
+
+        for (int i = 0; i < children.size(); i++) {
+            children.get(i).draw(gl, program, viewMatrix, viewOrigin,
+                    worldMatrixD, worldVersionD);
         }
     }
 
@@ -4,9 +4,9 @@ import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Map.Entry;
 
 import javax.media.opengl.GL3;
 
@@ -61,16 +61,43 @@ public class ShaderProgram {
     private GeometryShader gs;
     private final FragmentShader fs;
 
-    private final HashMap<String, FloatBuffer> uniformFloatMatrices;
-    private final HashMap<String, FloatBuffer> uniformFloatVectors;
+    /** A staged uniform variable, and its location in the linked program. */
+    private static class Uniform {
+        static final int MATRIX = 0;
+        static final int VECTOR = 1;
+        static final int BOOLEAN = 2;
+        static final int INT = 3;
+        static final int FLOAT = 4;
+
+        /** The location of a uniform that was not looked up yet. */
+        static final int UNRESOLVED = -2;
+
+        final String name;
+        int kind;
+        FloatBuffer buffer;
+        int intValue;
+        float floatValue;
+        int location = UNRESOLVED;
+
+        Uniform(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * The staged uniforms, by name for staging and as a list for use(), which
+     * passes them without allocating iterators.
+     */
+    private final HashMap<String, Uniform> uniforms;
+    private final ArrayList<Uniform> uniformList;
     private final HashMap<String, ShortBuffer> uniformShortVectors;
-    private final HashMap<String, Boolean> uniformBooleans;
-    private final HashMap<String, Integer> uniformInts;
-    private final HashMap<String, Float> uniformFloats;
 
     private boolean geometry_enabled = false;
     private boolean warningsGiven = false;
 
+    /** Reusable storage for status queries, to avoid allocating on use. */
+    private final IntBuffer statusBuffer = Buffers.newDirectIntBuffer(1);
+
     /**
      * Basic constructor for ShaderProgram with Vertex and Fragment shaders.
      * 
@@ -83,12 +110,9 @@ public class ShaderProgram {
         pointer = 0;
         this.vs = vs;
         this.fs = fs;
-        uniformFloatMatrices = new HashMap<String, FloatBuffer>();
-        uniformFloatVectors = new HashMap<String, FloatBuffer>();
+        uniforms = new HashMap<String, Uniform>();
+        uniformList = new ArrayList<Uniform>();
         uniformShortVectors = new HashMap<String, ShortBuffer>();
-        uniformBooleans = new HashMap<String, Boolean>();
-        uniformInts = new HashMap<String, Integer>();
-        uniformFloats = new HashMap<String, Float>();
     }
 
     /**
@@ -106,12 +130,9 @@ public class ShaderProgram {
         this.vs = vs;
         this.gs = gs;
         this.fs = fs;
-        uniformFloatMatrices = new HashMap<String, FloatBuffer>();
-        uniformFloatVectors = new HashMap<String, FloatBuffer>();
+        uniforms = new HashMap<String, Uniform>();
+        uniformList = new ArrayList<Uniform>();
         uniformShortVectors = new HashMap<String, ShortBuffer>();
-        uniformBooleans = new HashMap<String, Boolean>();
-        uniformInts = new HashMap<String, Integer>();
-        uniformFloats = new HashMap<String, Float>();
 
         geometry_enabled = true;
     }
@@ -146,6 +167,11 @@ public class ShaderProgram {
             printError(gl);
         }
 
+        // The locations of the uniforms differ per linked program
+        for (int i = 0; i < uniformList.size(); i++) {
+            uniformList.get(i).location = Uniform.UNRESOLVED;
+        }
+
         warningsGiven = false;
         checkCompatibility(vs, fs);
     }
@@ -226,19 +252,8 @@ public class ShaderProgram {
 
             for (Map.Entry<String, Class> uniformEntry : neededUniforms
                     .entrySet()) {
-                boolean thisEntryAvailable = false;
-                if (uniformFloatMatrices.containsKey(uniformEntry.getKey())) {
-                    thisEntryAvailable = true;
-                } else if (uniformFloats.containsKey(uniformEntry.getKey())) {
-                    thisEntryAvailable = true;
-                } else if (uniformFloatVectors.containsKey(uniformEntry
-                        .getKey())) {
-                    thisEntryAvailable = true;
-                } else if (uniformInts.containsKey(uniformEntry.getKey())) {
-                    thisEntryAvailable = true;
-                } else if (uniformBooleans.containsKey(uniformEntry.getKey())) {
-                    thisEntryAvailable = true;
-                }
+                boolean thisEntryAvailable = uniforms.containsKey(uniformEntry
+                        .getKey());
 
                 if (!thisEntryAvailable) {
                     allPresent = false;
@@ -323,7 +338,8 @@ public class ShaderProgram {
     /**
      * use method for this shader. sets this shader as the current rendering
      * shader and loads all staged uniform variables. Also checks for the
-     * presence of all uniforms and checks for additional opengl errors.
+     * presence of all uniforms, until the warnings have been given, and checks
+     * for additional opengl errors.
      * 
      * @param gl
      *            The opengl instance.
@@ -336,28 +352,36 @@ public class ShaderProgram {
 
         gl.glUseProgram(pointer);
 
-        for (Entry<String, FloatBuffer> var : uniformFloatMatrices.entrySet()) {
-            passUniformMat(gl, var.getKey(), var.getValue());
-        }
-        for (Entry<String, FloatBuffer> var : uniformFloatVectors.entrySet()) {
-            passUniformVec(gl, var.getKey(), var.getValue());
-        }
-        for (Entry<String, Boolean> var : uniformBooleans.entrySet()) {
-            passUniform(gl, var.getKey(), var.getValue());
-        }
-        for (Entry<String, Integer> var : uniformInts.entrySet()) {
-            passUniform(gl, var.getKey(), var.getValue());
-        }
-        for (Entry<String, Float> var : uniformFloats.entrySet()) {
-            passUniform(gl, var.getKey(), var.getValue());
+        for (int i = 0; i < uniformList.size(); i++) {
+            Uniform uniform = uniformList.get(i);
+            if (uniform.location == Uniform.UNRESOLVED) {
+                uniform.location = gl.glGetUniformLocation(pointer,
+                        uniform.name);
+            }
+
+            switch (uniform.kind) {
+            case Uniform.MATRIX:
+                passUniformMat(gl, uniform.location, uniform.buffer);
+                break;
+            case Uniform.VECTOR:
+                passUniformVec(gl, uniform.location, uniform.buffer);
+                break;
+            case Uniform.FLOAT:
+                gl.glUniform1f(uniform.location, uniform.floatValue);
+                break;
+            default:
+                gl.glUniform1i(uniform.location, uniform.intValue);
+                break;
+            }
         }
 
-        checkUniforms(vs, fs);
+        if (!warningsGiven) {
+            checkUniforms(vs, fs);
+        }
 
         // Check for errors
-        IntBuffer buf = Buffers.newDirectIntBuffer(1);
-        gl.glGetProgramiv(pointer, GL3.GL_LINK_STATUS, buf);
-        if (buf.get(0) == 0) {
+        gl.glGetProgramiv(pointer, GL3.GL_LINK_STATUS, statusBuffer);
+        if (statusBuffer.get(0) == 0) {
             logger.error("Use error");
             printError(gl);
         }
@@ -372,14 +396,42 @@ public class ShaderProgram {
      *            The list of attributes to link.
      */
     public void linkAttribs(GL3 gl, GLSLAttrib... attribs) {
-        int nextStart = 0;
-        for (GLSLAttrib attrib : attribs) {
+        linkAttribs(gl, attribs, GLSLAttrib.getStarts(attribs));
+    }
+
+    /**
+     * Link method for linking the attribute objects of a VBO to the shader
+     * inputs, using the layout cached by the VBO. Assumes the VBO is bound.
+     * 
+     * @param gl
+     *            The opengl instance.
+     * @param vbo
+     *            The VBO holding the attributes to link.
+     */
+    public void linkAttribs(GL3 gl, VBO vbo) {
+        linkAttribs(gl, vbo.getAttribs(), vbo.getStarts());
+    }
+
+    /**
+     * Internal method for linking attributes, stored in the currently bound
+     * array buffer as laid out by starts.
+     * 
+     * @param gl
+     *            The opengl instance.
+     * @param attribs
+     *            The list of attributes to link.
+     * @param starts
+     *            The layout of the attributes in the array buffer, @see
+     *            GLSLAttrib#getStarts(GLSLAttrib...)
+     */
+    private void linkAttribs(GL3 gl, GLSLAttrib[] attribs, int[] starts) {
+        for (int i = 0; i < attribs.length; i++) {
+            GLSLAttrib attrib = attribs[i];
             int ptr = gl.glGetAttribLocation(pointer, attrib.name);
-            gl.glVertexAttribPointer(ptr, attrib.vectorSize, GL3.GL_FLOAT,
-                    false, 0, nextStart);
+            gl.glVertexAttribPointer(ptr, attrib.vectorSize, attrib.type,
+                    attrib.normalized, attrib.stride, starts[i]
+                            + attrib.offset);
             gl.glEnableVertexAttribArray(ptr);
-
-            nextStart += attrib.buffer.capacity() * Buffers.SIZEOF_FLOAT;
         }
 
         checkIns(vs, attribs);
@@ -387,6 +439,63 @@ public class ShaderProgram {
         warningsGiven = true;
     }
 
+    /**
+     * Link method for instanced drawing. Binds the given VBO and links both
+     * its per-vertex attributes and its per-instance attributes (@see
+     * VBO#setInstanceAttribs(GL3, GLSLAttrib...)) to the shader inputs. The
+     * per-instance attributes advance once per instance instead of once per
+     * vertex. Attributes the shader does not use are skipped.
+     * 
+     * @param gl
+     *            The opengl instance.
+     * @param vbo
+     *            The VBO holding the attributes to link.
+     */
+    public void linkInstancedAttribs(GL3 gl, VBO vbo) {
+        GLSLAttrib[] attribs = vbo.getAttribs();
+        GLSLAttrib[] instanceAttribs = vbo.getInstanceAttribs();
+
+        vbo.bind(gl);
+        linkAttribPointers(gl, 0, attribs, vbo.getStarts());
+
+        vbo.bindInstanceBuffer(gl);
+        linkAttribPointers(gl, 1, instanceAttribs, vbo.getInstanceStarts());
+
+        if (!warningsGiven) {
+            checkIns(vs, vbo.getAllAttribs());
+            warningsGiven = true;
+        }
+    }
+
+    /**
+     * Internal method for linking attributes, stored in the currently bound
+     * array buffer as laid out by {@link GLSLAttrib#getStarts(GLSLAttrib...)},
+     * with the given divisor.
+     * 
+     * @param gl
+     *            The opengl instance.
+     * @param divisor
+     *            0 for per-vertex attributes, 1 for per-instance attributes.
+     * @param attribs
+     *            The list of attributes to link.
+     * @param starts
+     *            The layout of the attributes in the array buffer.
+     */
+    private void linkAttribPointers(GL3 gl, int divisor, GLSLAttrib[] attribs,
+            int[] starts) {
+        for (int i = 0; i < attribs.length; i++) {
+            GLSLAttrib attrib = attribs[i];
+            int ptr = gl.glGetAttribLocation(pointer, attrib.name);
+            if (ptr >= 0) {
+                gl.glVertexAttribPointer(ptr, attrib.vectorSize, attrib.type,
+                        attrib.normalized, attrib.stride, starts[i]
+                                + attrib.offset);
+                gl.glVertexAttribDivisor(ptr, divisor);
+                gl.glEnableVertexAttribArray(ptr);
+            }
+        }
+    }
+
     /**
      * Internal method for getting the error code and message from opengl and
      * logging them.
@@ -414,11 +523,7 @@ public class ShaderProgram {
      *            The Vector to stage.
      */
     public void setUniformVector(String name, VectorF var) {
-        if (!uniformFloatVectors.containsKey(name)) {
-            warningsGiven = false;
-        }
-        uniformFloatVectors.put(name, var.asBuffer());
-
+        stageUniform(name, Uniform.VECTOR).buffer = var.asBuffer();
     }
 
     /**
@@ -431,7 +536,7 @@ public class ShaderProgram {
      *            The Vector to stage.
      */
     public void setUniformVector(String name, VectorS var) {
-        if (!uniformFloatVectors.containsKey(name)) {
+        if (!uniformShortVectors.containsKey(name)) {
             warningsGiven = false;
         }
         uniformShortVectors.put(name, var.asBuffer());
@@ -448,10 +553,7 @@ public class ShaderProgram {
      *            The Matrix to stage.
      */
     public void setUniformMatrix(String name, MatrixF var) {
-        if (!uniformFloatMatrices.containsKey(name)) {
-            warningsGiven = false;
-        }
-        uniformFloatMatrices.put(name, var.asBuffer());
+        stageUniform(name, Uniform.MATRIX).buffer = var.asBuffer();
     }
 
     /**
@@ -465,10 +567,7 @@ public class ShaderProgram {
      */
 
     public void setUniform(String name, Boolean var) {
-        if (!uniformBooleans.containsKey(name)) {
-            warningsGiven = false;
-        }
-        uniformBooleans.put(name, var);
+        stageUniform(name, Uniform.BOOLEAN).intValue = var ? 1 : 0;
     }
 
     /**
@@ -482,10 +581,7 @@ public class ShaderProgram {
      */
 
     public void setUniform(String name, Integer var) {
-        if (!uniformInts.containsKey(name)) {
-            warningsGiven = false;
-        }
-        uniformInts.put(name, var);
+        stageUniform(name, Uniform.INT).intValue = var;
     }
 
     /**
@@ -498,10 +594,30 @@ public class ShaderProgram {
      *            The Float to stage.
      */
     public void setUniform(String name, Float var) {
-        if (!uniformFloats.containsKey(name)) {
+        stageUniform(name, Uniform.FLOAT).floatValue = var;
+    }
+
+    /**
+     * Internal method for staging a uniform variable. A uniform that was not
+     * staged before gets a slot of its own, and is checked for on the next
+     * use.
+     * 
+     * @param name
+     *            The name in the GLSL code for this uniform variable.
+     * @param kind
+     *            The kind of variable to stage.
+     * @return The slot to store the value in.
+     */
+    private Uniform stageUniform(String name, int kind) {
+        Uniform uniform = uniforms.get(name);
+        if (uniform == null) {
+            uniform = new Uniform(name);
+            uniforms.put(name, uniform);
+            uniformList.add(uniform);
             warningsGiven = false;
         }
-        uniformFloats.put(name, var);
+        uniform.kind = kind;
+        return uniform;
     }
 
     /**
@@ -520,8 +636,11 @@ public class ShaderProgram {
      */
     public void passUniformVec(GL3 gl, String pointerNameInShader,
             FloatBuffer var) {
-        int ptr = gl.glGetUniformLocation(pointer, pointerNameInShader);
+        passUniformVec(gl,
+                gl.glGetUniformLocation(pointer, pointerNameInShader), var);
+    }
 
+    private void passUniformVec(GL3 gl, int ptr, FloatBuffer var) {
         int vecSize = var.capacity();
         if (vecSize == 1) {
             gl.glUniform1fv(ptr, 1, var);
@@ -608,8 +727,11 @@ public class ShaderProgram {
      */
     public void passUniformMat(GL3 gl, String pointerNameInShader,
             FloatBuffer var) {
-        int ptr = gl.glGetUniformLocation(pointer, pointerNameInShader);
+        passUniformMat(gl,
+                gl.glGetUniformLocation(pointer, pointerNameInShader), var);
+    }
 
+    private void passUniformMat(GL3 gl, int ptr, FloatBuffer var) {
         int matSize = var.capacity();
         if (matSize == 4) {
             gl.glUniformMatrix2fv(ptr, 1, true, var);
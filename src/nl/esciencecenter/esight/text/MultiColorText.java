@@ -112,6 +112,12 @@ public class MultiColorText extends Model {
         initialized = true;
     }
 
+    @Override
+    public BoundingBox getBoundingBox() {
+        // The bounds are kept up to date by makeVBO
+        return bbox;
+    }
+
     /**
      * Setter for the string. Recalculates the {@link VBO} afterwards.
      * 
@@ -193,6 +199,7 @@ public class MultiColorText extends Model {
         // and
         // update BoundingBox.
         VecF4[] myVertices = new VecF4[vertices.size()];
+        bbox.reset();
         int i = 0;
         for (Vertex v : vertices) {
             VecF3 vec = new VecF3(v.getX(), v.getY(), v.getZ());
@@ -327,7 +334,7 @@ public class MultiColorText extends Model {
 
             vbo.bind(gl);
 
-            program.linkAttribs(gl, vbo.getAttribs());
+            program.linkAttribs(gl, vbo);
 
             gl.glDrawArrays(GL3.GL_TRIANGLES, 0, numVertices);
         }
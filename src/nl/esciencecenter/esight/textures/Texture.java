@@ -162,6 +162,16 @@ public abstract class Texture {
         this.initialized = initialized;
     }
 
+    /**
+     * Binds this Texture to its MultitexUnit, initializing it first if needed.
+     * 
+     * @param gl
+     *            The current OpenGL instance.
+     * @throws UninitializedException
+     *             if the texture could not be initialized.
+     */
+    public abstract void use(GL3 gl) throws UninitializedException;
+
     /**
      * Deletes this Texture from memory.
      * 
@@ -34,6 +34,7 @@ public class Settings {
     // Settings for the gas cloud octree
     private final int MAX_OCTREE_DEPTH = 25;
     private final float OCTREE_EDGES = 800f;
+    private float OCTREE_LOD_PIXEL_THRESHOLD = 2f;
 
     // Settings that should never change, but are listed here to make sure they
     // can be found if necessary
@@ -100,6 +101,8 @@ public class Settings {
             // Settings for the gas cloud octree
             // MAX_OCTREE_DEPTH = props.getIntProperty("MAX_OCTREE_DEPTH");
             // OCTREE_EDGES = props.getFloatProperty("OCTREE_EDGES");
+            OCTREE_LOD_PIXEL_THRESHOLD = props.getFloatProperty(
+                    "OCTREE_LOD_PIXEL_THRESHOLD", OCTREE_LOD_PIXEL_THRESHOLD);
 
             // Settings that should never change, but are listed here to make
             // sure they can be found if necessary
@@ -166,6 +169,14 @@ public class Settings {
         return OCTREE_EDGES;
     }
 
+    public float getOctreeLODPixelThreshold() {
+        return OCTREE_LOD_PIXEL_THRESHOLD;
+    }
+
+    public void setOctreeLODPixelThreshold(float value) {
+        OCTREE_LOD_PIXEL_THRESHOLD = value;
+    }
+
     public int getMaxExpectedModels() {
         return MAX_EXPECTED_MODELS;
     }